@@ -0,0 +1,83 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.DoesNothingExecutorService;
+import okhttp3.OkHttpClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.flippingcopilot.model.FlipManagerTest.generateFlipsBetween;
+import static com.flippingcopilot.model.FlipManagerTest.randomIntBetween;
+
+public class FlipManagerBenchmark {
+
+    @Test
+    public void testColumnarHeapFootprint() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> generated = generateFlipsBetween(oneYearAgo, now, 200_000, List.of(0));
+        // flips decoded from the server each carry their own item name string
+        generated.forEach(f -> f.setItemName(new String("Item " + f.getAccountId())));
+        generated.sort(Comparator.comparing(FlipV2::getClosedTime).thenComparing(FlipV2::getId, Comparator.reverseOrder()));
+
+        // previous layout: the bucket held the FlipV2 objects themselves
+        List<FlipV2> objectLayout = new ArrayList<>(generated);
+        generated = null;
+        int n = objectLayout.size();
+        long withObjects = Heap.used();
+
+        FlipColumns columnarLayout = new FlipColumns(0);
+        objectLayout.forEach(columnarLayout::insert);
+        long withBoth = Heap.used();
+        long columnarBytes = withBoth - withObjects;
+
+        objectLayout = null;
+        long objectBytes = withBoth - Heap.used();
+
+        System.out.printf("heap footprint of %d flips: objects %d bytes, columns %d bytes%n", n, objectBytes, columnarBytes);
+        Assert.assertEquals(n, columnarLayout.size());
+        Assert.assertTrue(columnarBytes < objectBytes);
+    }
+
+    @Test
+    public void testTopItemsTime() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 100_000, List.of(0, 1, 2));
+        flips.forEach(f -> {
+            f.setItemId(randomIntBetween(1, 4000));
+            f.setItemName("Item " + f.getItemId());
+        });
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.mergeFlips(flips, null);
+
+        long worst = 0;
+        for (int i = 0; i < 20; i++) {
+            int start = randomIntBetween(oneYearAgo - 100_000, now);
+            Integer accountId = i % 4 == 3 ? null : i % 4;
+            ItemSortKey sortKey = ItemSortKey.values()[i % ItemSortKey.values().length];
+            long s = System.nanoTime();
+            flipManager.topItems(start, accountId, 10, sortKey);
+            worst = Math.max(worst, System.nanoTime() - s);
+        }
+        System.out.printf("top items of %d flips: %dms at worst%n", flips.size(), worst / 1000_000);
+    }
+
+    @Test
+    public void testBulkMergeTime() {
+        int now = (int) Instant.now().getEpochSecond();
+        int twoYearsAgo = (int) Instant.now().minus(730, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(twoYearsAgo, now, 200_000, List.of(0, 1, 2));
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        long s = System.nanoTime();
+        flipManager.mergeFlips(flips, null);
+        System.out.printf("bulk merge of %d flips took %dms%n", flips.size(), (System.nanoTime() - s) / 1000_000);
+        Assert.assertEquals(flips.size(), flipManager.calculateStats(0, Integer.MAX_VALUE, null).flipsMade);
+    }
+}
@@ -0,0 +1,19 @@
+package com.flippingcopilot.model;
+
+final class Heap {
+
+    private Heap() {
+    }
+
+    /**
+     * The bytes in use on the heap after a few rounds of garbage collection, to compare before and after building a
+     * structure. Only indicative, the collector is free to ignore the requests.
+     */
+    static long used() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
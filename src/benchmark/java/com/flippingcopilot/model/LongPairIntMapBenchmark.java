@@ -0,0 +1,51 @@
+package com.flippingcopilot.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static com.flippingcopilot.model.LongPairIntMapTest.mergeAll;
+
+public class LongPairIntMapBenchmark {
+
+    @Test
+    public void testCloseTimeIndexAtOneMillionFlips() {
+        int n = 1_000_000;
+        Random random = new Random(11);
+        UUID[] ids = new UUID[n];
+        int[] closeTimes = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = UUID.randomUUID();
+            closeTimes[i] = random.nextInt();
+        }
+        long before = Heap.used();
+
+        // previous index: a HashMap of UUID to boxed close time, the ids held by it rather than by the flips
+        Map<UUID, Integer> boxed = new HashMap<>();
+        long s = System.nanoTime();
+        mergeAll(ids, closeTimes, (id, t) -> {
+            Integer existing = boxed.get(id);
+            boxed.put(new UUID(id.getMostSignificantBits(), id.getLeastSignificantBits()), existing == null ? t : existing + t);
+        });
+        long boxedNanos = System.nanoTime() - s;
+        long withBoxed = Heap.used();
+
+        LongPairIntMap primitive = new LongPairIntMap();
+        s = System.nanoTime();
+        mergeAll(ids, closeTimes, (id, t) -> {
+            int existing = primitive.get(id);
+            primitive.put(id, existing == LongPairIntMap.MISSING ? t : existing + t);
+        });
+        long primitiveNanos = System.nanoTime() - s;
+        long withBoth = Heap.used();
+
+        System.out.printf("close time index of %d flips: HashMap %d bytes %dms, LongPairIntMap %d bytes %dms%n", n,
+                withBoxed - before, boxedNanos / 1000_000, withBoth - withBoxed, primitiveNanos / 1000_000);
+        Assert.assertEquals(boxed.size(), primitive.size());
+        Assert.assertTrue(withBoth - withBoxed < (withBoxed - before) / 2);
+    }
+}
@@ -0,0 +1,28 @@
+package com.flippingcopilot.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.flippingcopilot.model.NameInternerTest.decodeHistory;
+
+public class NameInternerBenchmark {
+
+    @Test
+    public void testDecodedHistoryHeapWithInterning() {
+        List<FlipV2> flips = decodeHistory(200_000, 2_000);
+        long decoded = Heap.used();
+
+        NameInterner interner = new NameInterner();
+        flips.forEach(interner::intern);
+        long interned = Heap.used();
+
+        int n = flips.size();
+        flips = null;
+        long baseline = Heap.used();
+
+        System.out.printf("heap of %d decoded flips: %d bytes, %d bytes after interning names%n", n, decoded - baseline, interned - baseline);
+        Assert.assertTrue(interned - baseline < decoded - baseline);
+    }
+}
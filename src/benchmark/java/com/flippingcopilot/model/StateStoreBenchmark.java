@@ -0,0 +1,73 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.flippingcopilot.model.StateStoreTest.geBurst;
+
+public class StateStoreBenchmark {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("state-store-benchmark");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    // JMH isn't a dependency of the plugin, so this is a plain timed comparison of a burst of offer updates across
+    // the 8 slots against the file per slot saves it replaces
+    @Test
+    public void testGeBurstFasterThanFilePerSlot() throws IOException {
+        int updates = 4000;
+        List<SavedOffer> offers = geBurst(updates);
+        Gson gson = new Gson();
+        StateStore store = new StateStore(dir.resolve("state.bin").toFile());
+        long filePerSlot = Long.MAX_VALUE, stored = Long.MAX_VALUE;
+        try {
+            // a few rounds so the later ones run warmed up, the best of them is reported
+            for (int round = 0; round < 3; round++) {
+                long s = System.nanoTime();
+                for (int i = 0; i < updates; i++) {
+                    Path slotFile = dir.resolve(String.format("acc_1_%d.json", i % 8));
+                    Files.write(slotFile, gson.toJson(offers.get(i)).getBytes(StandardCharsets.UTF_8));
+                }
+                filePerSlot = Math.min(filePerSlot, System.nanoTime() - s);
+
+                s = System.nanoTime();
+                for (int i = 0; i < updates; i++) {
+                    store.put(String.format("offer/%d/%d", round, i % 8), RecordCodec.encode(offers.get(i)));
+                }
+                stored = Math.min(stored, System.nanoTime() - s);
+            }
+            RecordCodec.Reader reader = new RecordCodec.Reader(ByteBuffer.wrap(store.get("offer/2/7")));
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(offers.get(updates - 1), reader.savedOffer());
+        } finally {
+            store.close();
+        }
+        System.out.printf("file per slot: %8.0f writes/s%n", updates * 1e9 / filePerSlot);
+        System.out.printf("state store:   %8.0f writes/s%n", updates * 1e9 / stored);
+
+        Assert.assertTrue(stored < filePerSlot);
+    }
+}
@@ -0,0 +1,74 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.Persistance;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static com.flippingcopilot.model.TransactionLogReplayTest.generateTransactions;
+
+public class TransactionLogReplayBenchmark {
+
+    private static final String DISPLAY_NAME = "replay-benchmark";
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("all-transactions-benchmark");
+        Persistance.setUp(directory.toString());
+        Persistance.gson = new GsonBuilder()
+                .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+                .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, ctx) -> Instant.ofEpochSecond(json.getAsLong()))
+                .create();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Persistance.closeTransactionLogs();
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    @Test
+    public void testLongLogReplayedInBoundedMemory() {
+        int now = (int) Instant.now().getEpochSecond();
+        Random random = new Random(2);
+        int n = 0;
+        // written in chunks so the benchmark itself never holds the whole log
+        for (int chunk = 0; chunk < 100; chunk++) {
+            List<Transaction> transactions = generateTransactions(now - 3600 * 24 * 1000 + chunk * 3600 * 24 * 10, 10_000, 500, random);
+            Persistance.transactionLog(DISPLAY_NAME).append(transactions);
+            n += transactions.size();
+        }
+
+        long before = Heap.used();
+        long[] profit = new long[1];
+        TransactionLogReplay replay = new TransactionLogReplay(0, f -> profit[0] += f.getProfit());
+        long s = System.nanoTime();
+        Persistance.readAllTransactions(DISPLAY_NAME, replay::accept);
+        long retained = Heap.used() - before;
+        replay.finish();
+        System.out.printf("replaying %d logged transactions into %d flips took %dms, %d bytes retained%n", n,
+                replay.getFlips(), (System.nanoTime() - s) / 1000_000, retained);
+
+        Assert.assertEquals(n, replay.getTransactions());
+        Assert.assertTrue(retained < 16 * 1024 * 1024);
+    }
+}
@@ -0,0 +1,86 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.flippingcopilot.model.UnAckedTransactionLogTest.transaction;
+
+public class UnAckedTransactionLogBenchmark {
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+            .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, ctx) -> Instant.ofEpochSecond(json.getAsLong()))
+            .create();
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("un-acked-benchmark", ".bin");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".lock"));
+    }
+
+    @Test
+    public void testAppendCostFlatAsBacklogGrows() throws IOException {
+        int backlog = 10_000;
+        UnAckedTransactionLog log = UnAckedTransactionLog.load(file.toFile(), gson);
+        File rewritten = new File(file.toFile().getParentFile(), file.getFileName() + ".rewrite");
+        List<Transaction> all = new ArrayList<>();
+        long[] appendNanos = new long[backlog / 1000];
+        long[] rewriteNanos = new long[backlog / 1000];
+        try {
+            for (int i = 0; i < backlog; i++) {
+                Transaction t = transaction(i);
+                all.add(t);
+                long s = System.nanoTime();
+                log.append(t);
+                appendNanos[i / 1000] += System.nanoTime() - s;
+
+                // what a fill cost before: rewriting the whole backlog, sampled to keep the run short
+                if (i % 50 == 0) {
+                    s = System.nanoTime();
+                    try (BufferedWriter w = new BufferedWriter(new FileWriter(rewritten, false))) {
+                        for (Transaction p : all) {
+                            w.write(gson.toJson(p));
+                            w.newLine();
+                        }
+                    }
+                    rewriteNanos[i / 1000] += (System.nanoTime() - s) * 50;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(rewritten.toPath());
+        }
+        for (int k = 0; k < appendNanos.length; k++) {
+            System.out.printf("backlog %5d..%5d: append %6dns, full rewrite %9dns per transaction%n",
+                    k * 1000, (k + 1) * 1000, appendNanos[k] / 1000, rewriteNanos[k] / 1000);
+        }
+        // the append cost doesn't grow with the backlog, the rewrite cost does
+        long firstAppends = appendNanos[1];
+        long lastAppends = appendNanos[appendNanos.length - 1];
+        Assert.assertTrue(lastAppends < firstAppends * 4);
+        Assert.assertTrue(rewriteNanos[rewriteNanos.length - 1] > lastAppends * 10);
+    }
+}
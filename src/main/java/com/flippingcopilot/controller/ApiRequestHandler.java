@@ -3,8 +3,9 @@ package com.flippingcopilot.controller;
 import com.flippingcopilot.model.*;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.inject.Singleton;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.client.callback.ClientThread;
 import okhttp3.*;
@@ -14,18 +15,20 @@ import java.lang.reflect.Type;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 @Slf4j
 @Singleton
-@RequiredArgsConstructor(onConstructor_ = @javax.inject.Inject)
 public class ApiRequestHandler {
 
-    private static final String serverUrl = System.getenv("FLIPPING_COPILOT_HOST") != null ? System.getenv("FLIPPING_COPILOT_HOST")  : "https://api.flippingcopilot.com";
+    private static final int FLIPS_PROGRESS_INTERVAL = 5000;
+    private static final String DEFAULT_SERVER_URL = System.getenv("FLIPPING_COPILOT_HOST") != null ? System.getenv("FLIPPING_COPILOT_HOST")  : "https://api.flippingcopilot.com";
 
     // dependencies
     private final OkHttpClient client;
@@ -33,10 +36,33 @@ public class ApiRequestHandler {
     private final LoginResponseManager loginResponseManager;
     private final SuggestionPreferencesManager preferencesManager;
     private final ClientThread clientThread;
+    private final NameInterner nameInterner;
+    private final String serverUrl;
 
     // state
     private Instant lastDebugMessageSent = Instant.now();
 
+    @javax.inject.Inject
+    public ApiRequestHandler(OkHttpClient client, Gson gson, LoginResponseManager loginResponseManager,
+                             SuggestionPreferencesManager preferencesManager, ClientThread clientThread,
+                             NameInterner nameInterner) {
+        this(client, gson, loginResponseManager, preferencesManager, clientThread, nameInterner, DEFAULT_SERVER_URL);
+    }
+
+    /**
+     * Sends the requests to the server at the base url rather than the copilot server, e.g. a local stand-in.
+     */
+    public ApiRequestHandler(OkHttpClient client, Gson gson, LoginResponseManager loginResponseManager,
+                             SuggestionPreferencesManager preferencesManager, ClientThread clientThread,
+                             NameInterner nameInterner, String serverUrl) {
+        this.client = client;
+        this.gson = gson;
+        this.loginResponseManager = loginResponseManager;
+        this.preferencesManager = preferencesManager;
+        this.clientThread = clientThread;
+        this.nameInterner = nameInterner;
+        this.serverUrl = serverUrl;
+    }
 
     public void authenticate(String username, String password, Runnable callback) {
         Request request = new Request.Builder()
@@ -133,6 +159,13 @@ public class ApiRequestHandler {
                     }
                     String body = response.body() == null ? "" : response.body().string();
                     List<FlipV2> changedFlips = gson.fromJson(body, new TypeToken<List<FlipV2>>(){}.getType());
+                    // an empty or null body acknowledges the batch without changing any flip
+                    if (changedFlips == null) {
+                        changedFlips = Collections.emptyList();
+                    } else {
+                        changedFlips.removeIf(Objects::isNull);
+                    }
+                    changedFlips.forEach(nameInterner::intern);
                     onSuccess.accept(changedFlips);
                 } catch (IOException | JsonParseException e) {
                     log.warn("error reading/parsing sync transactions response body", e);
@@ -174,27 +207,63 @@ public class ApiRequestHandler {
     public Map<String, Integer> loadUserDisplayNames() throws HttpResponseException {
         Type respType = new TypeToken<Map<String, Integer>>(){}.getType();
         Map<String, Integer> names = doHttpRequest("GET", null, "/profit-tracking/rs-account-names", respType);
-        return names == null ? new HashMap<>() : names;
+        Map<String, Integer> interned = new HashMap<>();
+        if (names != null) {
+            names.forEach((name, accountId) -> interned.put(nameInterner.displayName(accountId, name), accountId));
+        }
+        return interned;
     }
 
-    public List<FlipV2> LoadFlips() throws HttpResponseException {
-        Type respType = new TypeToken<List<FlipV2>>(){}.getType();
-        List<FlipV2> flips = doHttpRequest("GET", null, "/profit-tracking/client-flips", respType);
-        return flips == null ? new ArrayList<>() : flips;
-    }
+    /**
+     * Streams the flips created or updated at or after the since time (epoch seconds) to the consumer as they are
+     * decoded off the response body, a since time of 0 loads the full flip history. Neither the body nor the decoded
+     * flips are held, so memory stays flat however long the history is. The progress callback receives the number of
+     * flips decoded so far. Returns the number of flips.
+     */
+    public int streamFlipsSince(int since, Consumer<FlipV2> onFlip, IntConsumer onProgress) throws HttpResponseException {
+        String route = since > 0 ? "/profit-tracking/client-flips?since=" + since : "/profit-tracking/client-flips";
+        Request request = authorizedRequest(route).get().build();
 
-    public <T> T doHttpRequest(String method, JsonElement bodyJson, String route, Type responseType) throws HttpResponseException {
-        String jwtToken = loginResponseManager.getJwtToken();
-        if (jwtToken == null) {
-            throw new IllegalStateException("Not authenticated");
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new HttpResponseException(response.code(), extractErrorMessage(response));
+            }
+            if (response.body() == null) {
+                return 0;
+            }
+            int n = 0;
+            JsonReader reader = new JsonReader(response.body().charStream());
+            if (reader.peek() == JsonToken.NULL) {
+                return 0;
+            }
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                throw new JsonSyntaxException("expected an array of flips but was " + reader.peek());
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                FlipV2 flip = gson.fromJson(reader, FlipV2.class);
+                if (flip == null) {
+                    continue;
+                }
+                // the decoded name copies are dropped here rather than kept by whatever holds on to the flip
+                nameInterner.intern(flip);
+                onFlip.accept(flip);
+                if (++n % FLIPS_PROGRESS_INTERVAL == 0) {
+                    onProgress.accept(n);
+                }
+            }
+            reader.endArray();
+            onProgress.accept(n);
+            return n;
+        } catch (JsonParseException | IOException e) {
+            // what the consumer throws isn't a server error, so it isn't caught here
+            throw new HttpResponseException(-1, "Unknown server error (possible system update)", e);
         }
+    }
 
+    public <T> T doHttpRequest(String method, JsonElement bodyJson, String route, Type responseType) throws HttpResponseException {
         RequestBody body = bodyJson == null ? null : RequestBody.create(MediaType.get("application/json; charset=utf-8"), bodyJson.toString());
-        Request request = new Request.Builder()
-                .url(serverUrl + route)
-                .addHeader("Authorization", "Bearer " + jwtToken)
-                .method(method, body)
-                .build();
+        Request request = authorizedRequest(route).method(method, body).build();
 
         try (Response response = client.newCall(request).execute()) {
             if (response.isSuccessful()) {
@@ -211,6 +280,16 @@ public class ApiRequestHandler {
         }
     }
 
+    private Request.Builder authorizedRequest(String route) {
+        String jwtToken = loginResponseManager.getJwtToken();
+        if (jwtToken == null) {
+            throw new IllegalStateException("Not authenticated");
+        }
+        return new Request.Builder()
+                .url(serverUrl + route)
+                .addHeader("Authorization", "Bearer " + jwtToken);
+    }
+
     public void sendDebugData(JsonObject bodyJson) {
         String jwtToken = loginResponseManager.getJwtToken();
         Instant now = Instant.now();
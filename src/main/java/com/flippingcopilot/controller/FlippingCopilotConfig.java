@@ -149,6 +149,36 @@ public interface FlippingCopilotConfig extends Config
         return new Keybind(KeyEvent.VK_E, 0);
     }
 
+    @ConfigItem(
+            keyName = "statsTimeZone",
+            name = "Stats time zone",
+            description = "Time zone (e.g. Europe/London) whose midnight starts each day and week of the flip stats. Leave blank to use the system time zone."
+    )
+    default String statsTimeZone()
+    {
+        return "";
+    }
+
+    @ConfigItem(
+            keyName = "flipRetentionWeeks",
+            name = "Flip history kept in memory (weeks)",
+            description = "Flips older than this many weeks are kept on disk and loaded when scrolled to, only their stats stay in memory. 0 keeps all flips in memory."
+    )
+    default int flipRetentionWeeks()
+    {
+        return 26;
+    }
+
+    @ConfigItem(
+            keyName = "stateSaveWindowSeconds",
+            name = "State save window (seconds)",
+            description = "Changes to offers, session stats and preferences are saved together at most this often, the latest are always saved on shut down. 0 saves each change straight away."
+    )
+    default int stateSaveWindowSeconds()
+    {
+        return 5;
+    }
+
     @ConfigItem(
             keyName = "filterDirectory",
             name = "Filter Directory",
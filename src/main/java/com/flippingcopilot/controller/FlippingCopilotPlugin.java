@@ -21,6 +21,8 @@ import net.runelite.client.util.ImageUtil;
 
 import javax.inject.Inject;
 import java.awt.image.BufferedImage;
+import java.time.DateTimeException;
+import java.time.ZoneId;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -82,7 +84,7 @@ public class FlippingCopilotPlugin extends Plugin {
 	@Inject
 	private TransactionManger transactionManger;
 	@Inject
-	private OfferManager offerManager;
+	private StateSaveScheduler stateSaveScheduler;
 
 	private MainPanel mainPanel;
 	private StatsPanelV2 statsPanel;
@@ -113,6 +115,9 @@ public class FlippingCopilotPlugin extends Plugin {
 		statsPanel = mainPanel.copilotPanel.statsPanel;
 
 		mainPanel.refresh();
+		flipManager.setTimeZone(statsTimeZone());
+		flipManager.setRetentionWeeks(config.flipRetentionWeeks());
+		stateSaveScheduler.setWindowMillis(TimeUnit.SECONDS.toMillis(config.stateSaveWindowSeconds()));
 		if(loginResponseManager.isLoggedIn()) {
 			flipManager.loadFlipsAsync();
 		}
@@ -136,7 +141,11 @@ public class FlippingCopilotPlugin extends Plugin {
 
 	@Override
 	protected void shutDown() throws Exception {
-		offerManager.saveAll();
+		stateSaveScheduler.flush();
+		log.debug("state saves: {} requested, {} written, {} coalesced", stateSaveScheduler.getSaves(),
+				stateSaveScheduler.getWrites(), stateSaveScheduler.getCoalesced());
+		Persistance.closeTransactionLogs();
+		Persistance.closeStateStore();
 		highlightController.removeAll();
 		clientToolbar.removeNavigation(navButton);
 		if(loginResponseManager.isLoggedIn()) {
@@ -246,7 +255,7 @@ public class FlippingCopilotPlugin extends Plugin {
 	@Subscribe
 	public void onClientShutdown(ClientShutdown clientShutdownEvent) {
 		log.debug("client shutdown event received");
-		offerManager.saveAll();
+		stateSaveScheduler.flush();
 		if(loginResponseManager.isLoggedIn()) {
 			String displayName = osrsLoginManager.getLastDisplayName();
 			webHookController.sendMessage(flipManager.calculateStats(sessionManager.getCachedSessionData().startTime, displayName), sessionManager.getCachedSessionData(), displayName, false);
@@ -263,6 +272,28 @@ public class FlippingCopilotPlugin extends Plugin {
 			if (event.getKey().equals("suggestionHighlights")) {
 				clientThread.invokeLater(() -> highlightController.redraw());
 			}
+			if (event.getKey().equals("statsTimeZone")) {
+				flipManager.setTimeZone(statsTimeZone());
+			}
+			if (event.getKey().equals("flipRetentionWeeks")) {
+				flipManager.setRetentionWeeks(config.flipRetentionWeeks());
+			}
+			if (event.getKey().equals("stateSaveWindowSeconds")) {
+				stateSaveScheduler.setWindowMillis(TimeUnit.SECONDS.toMillis(config.stateSaveWindowSeconds()));
+			}
+		}
+	}
+
+	private ZoneId statsTimeZone() {
+		String zone = config.statsTimeZone();
+		if (zone == null || zone.isBlank()) {
+			return ZoneId.systemDefault();
+		}
+		try {
+			return ZoneId.of(zone.trim());
+		} catch (DateTimeException e) {
+			log.warn("invalid stats time zone '{}', using the system time zone", zone);
+			return ZoneId.systemDefault();
 		}
 	}
 }
\ No newline at end of file
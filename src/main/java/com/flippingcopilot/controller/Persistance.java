@@ -1,7 +1,11 @@
 package com.flippingcopilot.controller;
 
+import com.flippingcopilot.model.FlipSnapshot;
 import com.flippingcopilot.model.LoginResponse;
+import com.flippingcopilot.model.RecordCodec;
+import com.flippingcopilot.model.SegmentedTransactionLog;
 import com.flippingcopilot.model.SessionData;
+import com.flippingcopilot.model.StateStore;
 import com.flippingcopilot.model.Transaction;
 import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
@@ -10,30 +14,41 @@ import lombok.extern.slf4j.Slf4j;
 import net.runelite.client.RuneLite;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 @Slf4j
 public class Persistance {
     public static Gson gson;
     public static final File PARENT_DIRECTORY = new File(RuneLite.RUNELITE_DIR, "flipping-copilot");
-    public static final String UN_ACKED_TRANSACTIONS_FILE_TEMPLATE = "%s_un_acked.jsonl";
-    public static final String ALL_TRANSACTIONS_FILE_TEMPLATE = "%s_all_transactions.jsonl";
+    public static final String UN_ACKED_TRANSACTIONS_FILE_TEMPLATE = "%s_un_acked.bin";
+    public static final String LEGACY_UN_ACKED_TRANSACTIONS_FILE_TEMPLATE = "%s_un_acked.jsonl";
+    public static final String TRANSACTION_LOG_DIRECTORY_TEMPLATE = "%s_transactions";
+    public static final String ALL_TRANSACTIONS_FILE_TEMPLATE = "%s_all_transactions.bin";
+    public static final String LEGACY_ALL_TRANSACTIONS_FILE_TEMPLATE = "%s_all_transactions.jsonl";
     public static final String LOGIN_RESPONSE_JSON_FILE = "login-response.json";
+    public static final String FLIP_SNAPSHOT_FILE_TEMPLATE = "%d_flips.bin";
+    public static final String FLIP_SPILL_FILE_PREFIX_TEMPLATE = "%d_cold_flips_";
+    public static final String STATE_STORE_FILE = "state.bin";
     public static File directory;
+    private static final Map<File, SegmentedTransactionLog> transactionLogs = new ConcurrentHashMap<>();
+    private static StateStore stateStore;
 
     public static void setUp(String directoryPath) throws IOException {
         directory = new File(directoryPath);
@@ -101,59 +116,177 @@ public class Persistance {
     }
 
 
-    public static List<Transaction> loadUnAckedTransactions(String displayName) {
-        List<Transaction> transactions = new ArrayList<>();
-        File file = new File(PARENT_DIRECTORY, String.format(UN_ACKED_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
+    public static File unAckedTransactionsFile(String displayName) {
+        return new File(directory, String.format(UN_ACKED_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
+    }
+
+    /**
+     * The json lines log of unacknowledged transactions written by earlier versions, imported into the binary one.
+     */
+    public static File legacyUnAckedTransactionsFile(String displayName) {
+        return new File(directory, String.format(LEGACY_UN_ACKED_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
+    }
+
+    public static void storeTransaction(Transaction t, String displayName) {
+        transactionLog(displayName).append(t);
+    }
+
+    /**
+     * The account's segmented log of all transactions. Opening it the first time moves the transactions of the single
+     * file logs written by earlier versions into it.
+     */
+    public static SegmentedTransactionLog transactionLog(String displayName) {
+        File dir = new File(directory, String.format(TRANSACTION_LOG_DIRECTORY_TEMPLATE, hashDisplayName(displayName)));
+        return transactionLogs.computeIfAbsent(dir, k -> openTransactionLog(k, displayName));
+    }
+
+    private static SegmentedTransactionLog openTransactionLog(File dir, String displayName) {
+        SegmentedTransactionLog transactionLog = new SegmentedTransactionLog(dir, true);
+        File legacy = legacyAllTransactionsFile(displayName);
+        File records = allTransactionsFile(displayName);
+        if ((legacy.exists() || records.exists()) && transactionLog.importIfEmpty(c -> {
+            readLegacyTransactions(legacy, c);
+            readTransactionRecords(records, c);
+        })) {
+            log.info("moved all transactions files {} and {} into segmented log {}", legacy, records, dir);
+            legacy.delete();
+            records.delete();
+        }
+        return transactionLog;
+    }
+
+    public static void closeTransactionLogs() {
+        transactionLogs.values().forEach(SegmentedTransactionLog::close);
+        transactionLogs.clear();
+    }
+
+    /**
+     * The store of the offers, paused flags, suggestion preferences and session stats, opened on first use.
+     */
+    public static synchronized StateStore stateStore() {
+        if (stateStore == null) {
+            stateStore = new StateStore(new File(directory, STATE_STORE_FILE));
+        }
+        return stateStore;
+    }
+
+    public static synchronized void closeStateStore() {
+        if (stateStore != null) {
+            stateStore.close();
+            stateStore = null;
+        }
+    }
+
+    /**
+     * The single file binary log of all transactions of earlier versions.
+     */
+    public static File allTransactionsFile(String displayName) {
+        return new File(directory, String.format(ALL_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
+    }
+
+    public static File legacyAllTransactionsFile(String displayName) {
+        return new File(directory, String.format(LEGACY_ALL_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
+    }
+
+    /**
+     * Streams the account's transactions logged by {@link #storeTransaction} to the consumer, in the order they were
+     * stored. Records that can't be decoded are skipped. Returns the number of transactions read.
+     */
+    public static int readAllTransactions(String displayName, Consumer<Transaction> consumer) {
+        return transactionLog(displayName).readAll(consumer);
+    }
+
+    private static void readTransactionRecords(File file, Consumer<Transaction> consumer) {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            // read rather than mapped so the file can be deleted once moved
+            RecordCodec.Reader reader = new RecordCodec.Reader(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            while (reader.next()) {
+                if (reader.type() != RecordCodec.TRANSACTION) {
+                    continue;
+                }
+                try {
+                    consumer.accept(reader.transaction());
+                } catch (IllegalArgumentException e) {
+                    log.warn("error decoding transaction record at {} file {}", reader.recordStart(), file, e);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("error reading all transactions file {}", file, e);
+        }
+    }
+
+    private static void readLegacyTransactions(File file, Consumer<Transaction> consumer) {
         if (!file.exists()) {
-            return new ArrayList<>();
+            return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
             String line;
             while ((line = reader.readLine()) != null) {
                 if (line.isEmpty()) {
                     continue;
                 }
+                Transaction transaction;
                 try {
-                    Transaction transaction = gson.fromJson(line, Transaction.class);
-                    transactions.add(transaction);
+                    transaction = gson.fromJson(line, Transaction.class);
                 } catch (JsonSyntaxException e) {
                     log.warn("error deserializing transaction line '{}' file {}", line, file, e);
+                    continue;
                 }
+                consumer.accept(transaction);
             }
-        } catch (FileNotFoundException e) {
-            log.info("no existing un acked transactions file for {}", displayName);
-            return new ArrayList<>();
         } catch (IOException e) {
-            log.warn("error loading un acked transaction file {}", file, e);
-            return new ArrayList<>();
+            log.warn("error reading legacy all transactions file {}", file, e);
         }
-        return transactions;
     }
 
-    public static void storeTransaction(Transaction t, String displayName) {
-        File allTransacitonsFile = new File(PARENT_DIRECTORY, String.format(ALL_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(allTransacitonsFile, true))) {
-            String json = gson.toJson(t);
-            w.write(json);
-            w.newLine();
-        } catch (IOException e) {
-            log.warn("error storing un acked transactions to file {}", allTransacitonsFile, e);
+    /**
+     * Loads the locally persisted flips of the copilot user, decoded column by column.
+     * Returns null if there is no valid snapshot (missing, of an older version or failing its checksum), the caller
+     * should then fall back to a full download.
+     */
+    public static FlipSnapshot loadFlipSnapshot(int userId) {
+        File file = new File(directory, String.format(FLIP_SNAPSHOT_FILE_TEMPLATE, userId));
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            // read rather than mapped, a live mapping keeps the file from being replaced by the next store on Windows
+            return FlipSnapshot.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        } catch (IOException | IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            log.warn("error loading flip snapshot file {}, a full flip download will be done", file, e);
+            return null;
         }
     }
 
-    public static void storeUnAckedTransactions(List<Transaction> transactions, String displayName) {
-        File unackedTransactionsFile = new File(PARENT_DIRECTORY, String.format(UN_ACKED_TRANSACTIONS_FILE_TEMPLATE, hashDisplayName(displayName)));
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(unackedTransactionsFile, false))) {
-            for (Transaction transaction : transactions) {
-                String json = gson.toJson(transaction);
-                w.write(json);
-                w.newLine();
+    public static void storeFlipSnapshot(int userId, FlipSnapshot snapshot) {
+        File file = new File(directory, String.format(FLIP_SNAPSHOT_FILE_TEMPLATE, userId));
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                snapshot.encode(channel);
+                channel.force(false);
             }
+            // replace the previous snapshot in one step so a crash mid write can't leave a truncated file
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            log.warn("error storing un acked transactions to file {}", unackedTransactionsFile, e);
+            log.warn("error storing flip snapshot to file {}", file, e);
         }
     }
 
+    /**
+     * Creates a scratch file for the flips of weeks past the retention horizon to be spilled to during a session.
+     * Each client gets a file of its own, clients running side by side for the same user would otherwise overwrite
+     * each other's weeks. The spill store deletes the file when closed, otherwise it goes when the client exits.
+     */
+    public static File createFlipSpillFile(int userId) throws IOException {
+        File file = Files.createTempFile(directory.toPath(), String.format(FLIP_SPILL_FILE_PREFIX_TEMPLATE, userId), ".seg").toFile();
+        file.deleteOnExit();
+        return file;
+    }
+
     public static String hashDisplayName(String displayName) {
         if(displayName == null) {
             return "null";
@@ -0,0 +1,45 @@
+package com.flippingcopilot.model;
+
+/**
+ * Day and hour level stats inside a week bucket. When a time range boundary falls mid-week the stats for the
+ * partial week can be summed from a handful of day and hour buckets, only the flips of the single hour containing
+ * the boundary have to be scanned. Days are local days in the configured time zone, so a day can have 23 or 25 hours
+ * around daylight saving changes.
+ */
+final class DayHourStats {
+
+    static final int DAYS = 7;
+    static final int HOURS = 25;
+
+    private static final int FIELDS = 4;
+
+    private final long[] days = new long[DAYS * FIELDS];
+    private final long[] hours = new long[DAYS * HOURS * FIELDS];
+
+    void add(int day, int hour, Stats s, int sign) {
+        add(days, day * FIELDS, s, sign);
+        add(hours, (day * HOURS + hour) * FIELDS, s, sign);
+    }
+
+    void addDayTo(int day, Stats into) {
+        addTo(days, day * FIELDS, into);
+    }
+
+    void addHourTo(int day, int hour, Stats into) {
+        addTo(hours, (day * HOURS + hour) * FIELDS, into);
+    }
+
+    private static void add(long[] values, int i, Stats s, int sign) {
+        values[i] += sign * s.profit;
+        values[i + 1] += sign * s.gross;
+        values[i + 2] += sign * s.taxPaid;
+        values[i + 3] += sign * s.flipsMade;
+    }
+
+    private static void addTo(long[] values, int i, Stats into) {
+        into.profit += values[i];
+        into.gross += values[i + 1];
+        into.taxPaid += values[i + 2];
+        into.flipsMade += (int) values[i + 3];
+    }
+}
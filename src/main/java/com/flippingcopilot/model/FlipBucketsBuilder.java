@@ -0,0 +1,309 @@
+package com.flippingcopilot.model;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+/**
+ * Builds the week buckets for a large batch of flips, i.e. the flip history download, on the fork-join pool. Flips
+ * are staged into per account {@link FlipColumns} as they are decoded via {@link #add}, so a streamed download never
+ * holds the response body or a list of {@link FlipV2} objects. {@link #build} then deduplicates and sorts each
+ * account's (closed time, row) keys in parallel, splits them into weeks and fills each week by its own task. The
+ * builder only reads the rows it was given, so {@link FlipManager} can run {@link #build} without holding its lock and
+ * swap the result in afterwards.
+ */
+final class FlipBucketsBuilder {
+
+    private static final int WEEKS_PER_TASK = 4;
+
+    // inputs, per account the new flips in arrival order followed by the manager's existing flips
+    private final Map<Integer, Staged> staged = new HashMap<>();
+    private int newFlipCount;
+    // the last new flip per account and item that opened or closed a position, replayed onto the open flip index
+    final Map<Integer, Map<Integer, FlipV2>> lastOpenFlipChanges = new HashMap<>();
+    final Map<Integer, String> itemNames = new HashMap<>();
+
+    // outputs
+    ZoneId timeZone;
+    final List<FlipManager.WeekAggregate> weeks = new ArrayList<>(365 * 5);
+    final Map<Integer, StatsFenwickTree> accountIdToWeekTree = new HashMap<>();
+    final StatsFenwickTree allAccountsWeekTree = new StatsFenwickTree(FlipManager.INITIAL_TREE_WEEKS);
+    LongPairIntMap closeTimes;
+    int flipCount;
+
+    private List<WeekRows> weekRows;
+
+    /**
+     * Stages a new flip, a later copy of a flip replaces an earlier one.
+     */
+    void add(FlipV2 flip) {
+        Staged s = staged.computeIfAbsent(flip.getAccountId(), Staged::new);
+        if (s.rows.size() > s.newRows) {
+            throw new IllegalStateException("new flips must be added before the existing ones");
+        }
+        s.rows.append(flip);
+        s.newRows++;
+        newFlipCount++;
+        if (flip.getItemName() != null) {
+            itemNames.putIfAbsent(flip.getItemId(), flip.getItemName());
+        }
+        // only the last such flip per item decides the open flip index entry
+        if (flip.getClosedQuantity() < flip.getOpenedQuantity() || flip.isClosed()) {
+            lastOpenFlipChanges.computeIfAbsent(flip.getAccountId(), (k) -> new HashMap<>()).put(flip.getItemId(), flip);
+        }
+    }
+
+    /**
+     * Stages rows sorted by closed time as new flips, e.g. a persisted snapshot. The rows are adopted rather than
+     * copied when the account has nothing staged yet. Their item names should be put in {@link #itemNames} first.
+     */
+    void add(FlipColumns rows) {
+        Staged s = staged.get(rows.accountId);
+        if (s == null) {
+            s = new Staged(rows);
+            staged.put(rows.accountId, s);
+        } else if (s.rows.size() > s.newRows) {
+            throw new IllegalStateException("new flips must be added before the existing ones");
+        } else {
+            for (int i = 0; i < rows.size(); i++) {
+                s.rows.appendRow(rows, i);
+            }
+        }
+        s.newRows += rows.size();
+        newFlipCount += rows.size();
+        // the latest row per item decides its open flip index entry, so only those are materialised
+        Map<Integer, FlipV2> changes = lastOpenFlipChanges.computeIfAbsent(rows.accountId, (k) -> new HashMap<>());
+        Set<Integer> seen = new HashSet<>();
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if ((rows.closedQuantity(i) < rows.openedQuantity(i) || rows.closed(i)) && seen.add(rows.itemId(i))) {
+                changes.put(rows.itemId(i), rows.get(i, itemNames::get));
+            }
+        }
+    }
+
+    /**
+     * Stages the manager's existing rows, a new flip always replaces an existing row with the same id.
+     */
+    void addExisting(FlipColumns rows) {
+        Staged s = staged.computeIfAbsent(rows.accountId, Staged::new);
+        for (int i = 0; i < rows.size(); i++) {
+            s.rows.appendRow(rows, i);
+        }
+    }
+
+    int newFlipCount() {
+        return newFlipCount;
+    }
+
+    /**
+     * Materialises the staged new flips, for when there are too few of them to be worth a rebuild. Flips of the same
+     * account keep their arrival order.
+     */
+    List<FlipV2> newFlips() {
+        List<FlipV2> flips = new ArrayList<>(newFlipCount);
+        IntFunction<String> names = itemNames::get;
+        for (Staged s : staged.values()) {
+            for (int i = 0; i < s.newRows; i++) {
+                flips.add(s.rows.get(i, names));
+            }
+        }
+        return flips;
+    }
+
+    FlipBucketsBuilder build(ZoneId timeZone) {
+        this.timeZone = timeZone;
+        Staged[] accounts = staged.values().toArray(new Staged[0]);
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(accounts.length);
+                for (Staged s : accounts) {
+                    tasks.add(ForkJoinTask.adapt(s::dedupeAndSort));
+                }
+                invokeAll(tasks);
+                splitWeeks(accounts);
+                invokeAll(new FillWeeks(0, weekRows.size()));
+            }
+        });
+        closeTimes = new LongPairIntMap(Arrays.stream(accounts).mapToInt(s -> s.liveRows).sum());
+        for (Staged s : accounts) {
+            FlipColumns rows = s.rows;
+            for (int i = 0; i < rows.size(); i++) {
+                if (!s.replaced[i]) {
+                    closeTimes.put(rows.idMsb(i), rows.idLsb(i), rows.closedTime(i));
+                }
+            }
+        }
+        weekRows.forEach(wr -> weeks.add(wr.week));
+        weeks.removeIf(w -> w.allStats.flipsMade == 0);
+        for (FlipManager.WeekAggregate w : weeks) {
+            allAccountsWeekTree.add(w.index, w.allStats);
+            w.accountIdToStats.forEach((accountId, stats) -> accountIdToWeekTree
+                    .computeIfAbsent(accountId, (k) -> new StatsFenwickTree(FlipManager.INITIAL_TREE_WEEKS))
+                    .add(w.index, stats));
+        }
+        flipCount = closeTimes.size();
+        staged.clear();
+        weekRows = null;
+        return this;
+    }
+
+    private void splitWeeks(Staged[] accounts) {
+        Map<Integer, WeekRows> byIndex = new HashMap<>();
+        for (Staged s : accounts) {
+            int weekEnd = Integer.MIN_VALUE;
+            WeekRows current = null;
+            for (int i = 0; i < s.keys.length; i++) {
+                int time = (int) (s.keys[i] >> 32);
+                if (time >= weekEnd) {
+                    if (current != null) {
+                        current.addSegment(s, i);
+                    }
+                    current = byIndex.computeIfAbsent(FlipManager.weekIndex(time, timeZone),
+                            (index) -> new WeekRows(new FlipManager.WeekAggregate(index, timeZone)));
+                    current.startSegment(i);
+                    weekEnd = current.week.weekEnd;
+                }
+            }
+            if (current != null) {
+                current.addSegment(s, s.keys.length);
+            }
+        }
+        weekRows = new ArrayList<>(byIndex.values());
+        weekRows.sort(Comparator.comparingInt(wr -> wr.week.index));
+    }
+
+    private static void fillWeek(WeekRows wr) {
+        Stats added = new Stats();
+        for (int seg = 0; seg < wr.accounts.size(); seg++) {
+            Staged s = wr.accounts.get(seg);
+            int from = wr.bounds[seg * 2];
+            int to = wr.bounds[seg * 2 + 1];
+            long[] keys = s.keys;
+            // same second ties are ordered by id, as the rows of FlipColumns are
+            for (int i = from + 1; i < to; i++) {
+                long key = keys[i];
+                int j = i - 1;
+                while (j >= from && (keys[j] >> 32) == (key >> 32) && s.compareIdsDescending((int) keys[j], (int) key) > 0) {
+                    keys[j + 1] = keys[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+            }
+            for (int i = from; i < to; i++) {
+                int row = (int) keys[i];
+                if (!s.replaced[row]) {
+                    wr.week.appendRow(s.rows, row, added);
+                }
+            }
+        }
+    }
+
+    private static final class Staged {
+
+        final FlipColumns rows;
+        // rows [0, newRows) are new flips, the rest are existing ones
+        int newRows;
+
+        long[] keys;
+        boolean[] replaced;
+        int liveRows;
+
+        Staged(int accountId) {
+            this(new FlipColumns(accountId, 64));
+        }
+
+        Staged(FlipColumns rows) {
+            this.rows = rows;
+        }
+
+        void dedupeAndSort() {
+            int n = rows.size();
+            LongPairIntMap lastRow = new LongPairIntMap(n);
+            boolean[] r = new boolean[n];
+            long[] k = new long[n];
+            for (int i = 0; i < n; i++) {
+                int previous = lastRow.put(rows.idMsb(i), rows.idLsb(i), i);
+                if (previous != LongPairIntMap.MISSING) {
+                    if (i >= newRows) {
+                        // an existing row never replaces a new flip
+                        lastRow.put(rows.idMsb(i), rows.idLsb(i), previous);
+                        r[i] = true;
+                    } else {
+                        r[previous] = true;
+                    }
+                }
+                k[i] = ((long) rows.closedTime(i) << 32) | i;
+            }
+            Arrays.parallelSort(k);
+            keys = k;
+            replaced = r;
+            liveRows = lastRow.size();
+        }
+
+        int compareIdsDescending(int a, int b) {
+            int c = Long.compare(rows.idMsb(b), rows.idMsb(a));
+            return c != 0 ? c : Long.compare(rows.idLsb(b), rows.idLsb(a));
+        }
+    }
+
+    // the sorted key ranges of each account that fall in a week
+    private static final class WeekRows {
+
+        final FlipManager.WeekAggregate week;
+        final List<Staged> accounts = new ArrayList<>(4);
+        int[] bounds = new int[8];
+        private int segmentStart;
+
+        WeekRows(FlipManager.WeekAggregate week) {
+            this.week = week;
+        }
+
+        void startSegment(int from) {
+            segmentStart = from;
+        }
+
+        void addSegment(Staged s, int to) {
+            int n = accounts.size();
+            if (bounds.length < (n + 1) * 2) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[n * 2] = segmentStart;
+            bounds[n * 2 + 1] = to;
+            accounts.add(s);
+        }
+    }
+
+    private class FillWeeks extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+
+        FillWeeks(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= WEEKS_PER_TASK) {
+                for (int w = from; w < to; w++) {
+                    fillWeek(weekRows.get(w));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FillWeeks(from, mid), new FillWeeks(mid, to));
+        }
+    }
+}
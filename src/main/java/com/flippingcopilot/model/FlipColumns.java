@@ -0,0 +1,356 @@
+package com.flippingcopilot.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+/**
+ * Struct-of-arrays storage for the flips of a single rs account. Each flip is a row spread over parallel primitive
+ * columns instead of a {@link FlipV2} object (plus its UUID, boxed fields and item name string), which cuts the
+ * per-flip heap cost roughly in half. Rows are kept sorted by closed time ascending with the flip id (descending) as
+ * tie-breaker, the same order the weekly buckets have always used. {@link FlipV2} objects are only materialised via
+ * {@link #get} for the rows that are actually displayed.
+ */
+final class FlipColumns {
+
+    // bytes held per row across all the columns below
+    static final int ROW_BYTES = 2 * 8 + 5 * 4 + 4 * 8 + 1;
+
+    final int accountId;
+
+    private int size;
+    private long[] idMsb;
+    private long[] idLsb;
+    private int[] closedTime;
+    private int[] openedTime;
+    private int[] itemId;
+    private int[] openedQuantity;
+    private int[] closedQuantity;
+    private long[] spent;
+    private long[] receivedPostTax;
+    private long[] profit;
+    private long[] taxPaid;
+    private boolean[] closed;
+
+    FlipColumns(int accountId) {
+        this(accountId, 8);
+    }
+
+    FlipColumns(int accountId, int capacity) {
+        this.accountId = accountId;
+        allocate(Math.max(capacity, 1));
+    }
+
+    int size() {
+        return size;
+    }
+
+    int closedTime(int i) {
+        return closedTime[i];
+    }
+
+    int itemId(int i) {
+        return itemId[i];
+    }
+
+    long profit(int i) {
+        return profit[i];
+    }
+
+    long spent(int i) {
+        return spent[i];
+    }
+
+    long taxPaid(int i) {
+        return taxPaid[i];
+    }
+
+    int openedQuantity(int i) {
+        return openedQuantity[i];
+    }
+
+    int closedQuantity(int i) {
+        return closedQuantity[i];
+    }
+
+    boolean closed(int i) {
+        return closed[i];
+    }
+
+    long idMsb(int i) {
+        return idMsb[i];
+    }
+
+    long idLsb(int i) {
+        return idLsb[i];
+    }
+
+    void addTo(int i, Stats stats) {
+        stats.profit += profit[i];
+        stats.gross += spent[i];
+        stats.taxPaid += taxPaid[i];
+        stats.flipsMade += 1;
+    }
+
+    void addTo(int i, ItemStatsMap itemStats) {
+        itemStats.add(itemId[i], profit[i], spent[i], taxPaid[i], 1);
+    }
+
+    void subtractFrom(int i, Stats stats) {
+        stats.profit -= profit[i];
+        stats.gross -= spent[i];
+        stats.taxPaid -= taxPaid[i];
+        stats.flipsMade -= 1;
+    }
+
+    /**
+     * Inserts the flip at its sorted position and returns the row index it was written to.
+     */
+    int insert(FlipV2 flip) {
+        UUID id = flip.getId();
+        int i = search(flip.getClosedTime(), id.getMostSignificantBits(), id.getLeastSignificantBits());
+        i = i < 0 ? -i - 1 : i;
+        ensureCapacity(size + 1);
+        int n = size - i;
+        if (n > 0) {
+            System.arraycopy(idMsb, i, idMsb, i + 1, n);
+            System.arraycopy(idLsb, i, idLsb, i + 1, n);
+            System.arraycopy(closedTime, i, closedTime, i + 1, n);
+            System.arraycopy(openedTime, i, openedTime, i + 1, n);
+            System.arraycopy(itemId, i, itemId, i + 1, n);
+            System.arraycopy(openedQuantity, i, openedQuantity, i + 1, n);
+            System.arraycopy(closedQuantity, i, closedQuantity, i + 1, n);
+            System.arraycopy(spent, i, spent, i + 1, n);
+            System.arraycopy(receivedPostTax, i, receivedPostTax, i + 1, n);
+            System.arraycopy(profit, i, profit, i + 1, n);
+            System.arraycopy(taxPaid, i, taxPaid, i + 1, n);
+            System.arraycopy(closed, i, closed, i + 1, n);
+        }
+        write(i, flip);
+        size++;
+        return i;
+    }
+
+    /**
+     * Appends the flip as the last row, the caller must add flips in sorted order.
+     */
+    void append(FlipV2 flip) {
+        ensureCapacity(size + 1);
+        write(size, flip);
+        size++;
+    }
+
+    /**
+     * Appends a copy of row i of the source columns as the last row, the caller must add rows in sorted order.
+     */
+    void appendRow(FlipColumns src, int i) {
+        ensureCapacity(size + 1);
+        idMsb[size] = src.idMsb[i];
+        idLsb[size] = src.idLsb[i];
+        closedTime[size] = src.closedTime[i];
+        openedTime[size] = src.openedTime[i];
+        itemId[size] = src.itemId[i];
+        openedQuantity[size] = src.openedQuantity[i];
+        closedQuantity[size] = src.closedQuantity[i];
+        spent[size] = src.spent[i];
+        receivedPostTax[size] = src.receivedPostTax[i];
+        profit[size] = src.profit[i];
+        taxPaid[size] = src.taxPaid[i];
+        closed[size] = src.closed[i];
+        size++;
+    }
+
+    void remove(int i) {
+        int n = size - i - 1;
+        if (n > 0) {
+            System.arraycopy(idMsb, i + 1, idMsb, i, n);
+            System.arraycopy(idLsb, i + 1, idLsb, i, n);
+            System.arraycopy(closedTime, i + 1, closedTime, i, n);
+            System.arraycopy(openedTime, i + 1, openedTime, i, n);
+            System.arraycopy(itemId, i + 1, itemId, i, n);
+            System.arraycopy(openedQuantity, i + 1, openedQuantity, i, n);
+            System.arraycopy(closedQuantity, i + 1, closedQuantity, i, n);
+            System.arraycopy(spent, i + 1, spent, i, n);
+            System.arraycopy(receivedPostTax, i + 1, receivedPostTax, i, n);
+            System.arraycopy(profit, i + 1, profit, i, n);
+            System.arraycopy(taxPaid, i + 1, taxPaid, i, n);
+            System.arraycopy(closed, i + 1, closed, i, n);
+        }
+        size--;
+    }
+
+    /**
+     * Binary search for the row with the given closed time and id. Returns the row index if found, otherwise
+     * -(insertion point) - 1 in the same way as {@link Arrays#binarySearch}.
+     */
+    int search(int time, long msb, long lsb) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareRow(mid, time, msb, lsb);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid; // key found
+        }
+        return -(low + 1);  // key not found (low = insertion point)
+    }
+
+    /**
+     * Returns the index of the first row closed at or after the time.
+     */
+    int lowerBound(int time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (closedTime[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Compares row i with row j of the other columns in the row order.
+     */
+    int compareRows(int i, FlipColumns other, int j) {
+        return compareRow(i, other.closedTime[j], other.idMsb[j], other.idLsb[j]);
+    }
+
+    private int compareRow(int i, int time, long msb, long lsb) {
+        // sorts time ascending with id as (descending) tie-breaker, matches UUID.compareTo
+        int c = Integer.compare(closedTime[i], time);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compare(msb, idMsb[i]);
+        return c != 0 ? c : Long.compare(lsb, idLsb[i]);
+    }
+
+    /**
+     * Materialises the row as a {@link FlipV2}. Item names are not stored per row, they are resolved through the
+     * provided lookup.
+     */
+    FlipV2 get(int i, IntFunction<String> itemNames) {
+        FlipV2 f = new FlipV2();
+        f.setId(new UUID(idMsb[i], idLsb[i]));
+        f.setAccountId(accountId);
+        f.setItemId(itemId[i]);
+        f.setItemName(itemNames.apply(itemId[i]));
+        f.setOpenedTime(openedTime[i]);
+        f.setOpenedQuantity(openedQuantity[i]);
+        f.setSpent(spent[i]);
+        f.setClosedTime(closedTime[i]);
+        f.setClosedQuantity(closedQuantity[i]);
+        f.setReceivedPostTax(receivedPostTax[i]);
+        f.setProfit(profit[i]);
+        f.setTaxPaid(taxPaid[i]);
+        f.setClosed(closed[i]);
+        return f;
+    }
+
+    /**
+     * Writes the rows column after column, each column being a block of fixed width values. The buffer needs
+     * {@link #ROW_BYTES} per row remaining.
+     */
+    void writeColumns(ByteBuffer buf) {
+        buf.asLongBuffer().put(idMsb, 0, size);
+        buf.position(buf.position() + size * 8);
+        buf.asLongBuffer().put(idLsb, 0, size);
+        buf.position(buf.position() + size * 8);
+        for (int[] column : new int[][]{closedTime, openedTime, itemId, openedQuantity, closedQuantity}) {
+            buf.asIntBuffer().put(column, 0, size);
+            buf.position(buf.position() + size * 4);
+        }
+        for (long[] column : new long[][]{spent, receivedPostTax, profit, taxPaid}) {
+            buf.asLongBuffer().put(column, 0, size);
+            buf.position(buf.position() + size * 8);
+        }
+        for (int i = 0; i < size; i++) {
+            buf.put((byte) (closed[i] ? 1 : 0));
+        }
+    }
+
+    /**
+     * Reads n rows written by {@link #writeColumns}, the columns are bulk copied out of the buffer.
+     */
+    static FlipColumns readColumns(int accountId, int n, ByteBuffer buf) {
+        FlipColumns c = new FlipColumns(accountId, n);
+        buf.asLongBuffer().get(c.idMsb, 0, n);
+        buf.position(buf.position() + n * 8);
+        buf.asLongBuffer().get(c.idLsb, 0, n);
+        buf.position(buf.position() + n * 8);
+        for (int[] column : new int[][]{c.closedTime, c.openedTime, c.itemId, c.openedQuantity, c.closedQuantity}) {
+            buf.asIntBuffer().get(column, 0, n);
+            buf.position(buf.position() + n * 4);
+        }
+        for (long[] column : new long[][]{c.spent, c.receivedPostTax, c.profit, c.taxPaid}) {
+            buf.asLongBuffer().get(column, 0, n);
+            buf.position(buf.position() + n * 8);
+        }
+        for (int i = 0; i < n; i++) {
+            c.closed[i] = buf.get() != 0;
+        }
+        c.size = n;
+        return c;
+    }
+
+    long estimatedBytes() {
+        return (long) idMsb.length * ROW_BYTES;
+    }
+
+    private void write(int i, FlipV2 flip) {
+        idMsb[i] = flip.getId().getMostSignificantBits();
+        idLsb[i] = flip.getId().getLeastSignificantBits();
+        closedTime[i] = flip.getClosedTime();
+        openedTime[i] = flip.getOpenedTime();
+        itemId[i] = flip.getItemId();
+        openedQuantity[i] = flip.getOpenedQuantity();
+        closedQuantity[i] = flip.getClosedQuantity();
+        spent[i] = flip.getSpent();
+        receivedPostTax[i] = flip.getReceivedPostTax();
+        profit[i] = flip.getProfit();
+        taxPaid[i] = flip.getTaxPaid();
+        closed[i] = flip.isClosed();
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= idMsb.length) {
+            return;
+        }
+        int capacity = Math.max(required, idMsb.length + (idMsb.length >> 1));
+        idMsb = Arrays.copyOf(idMsb, capacity);
+        idLsb = Arrays.copyOf(idLsb, capacity);
+        closedTime = Arrays.copyOf(closedTime, capacity);
+        openedTime = Arrays.copyOf(openedTime, capacity);
+        itemId = Arrays.copyOf(itemId, capacity);
+        openedQuantity = Arrays.copyOf(openedQuantity, capacity);
+        closedQuantity = Arrays.copyOf(closedQuantity, capacity);
+        spent = Arrays.copyOf(spent, capacity);
+        receivedPostTax = Arrays.copyOf(receivedPostTax, capacity);
+        profit = Arrays.copyOf(profit, capacity);
+        taxPaid = Arrays.copyOf(taxPaid, capacity);
+        closed = Arrays.copyOf(closed, capacity);
+    }
+
+    private void allocate(int capacity) {
+        idMsb = new long[capacity];
+        idLsb = new long[capacity];
+        closedTime = new int[capacity];
+        openedTime = new int[capacity];
+        itemId = new int[capacity];
+        openedQuantity = new int[capacity];
+        closedQuantity = new int[capacity];
+        spent = new long[capacity];
+        receivedPostTax = new long[capacity];
+        profit = new long[capacity];
+        taxPaid = new long[capacity];
+        closed = new boolean[capacity];
+    }
+}
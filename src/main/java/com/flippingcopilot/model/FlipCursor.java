@@ -0,0 +1,36 @@
+package com.flippingcopilot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.UUID;
+
+/**
+ * Keyset position in the flip log. The log is listed newest first, closed time descending with the flip id
+ * (ascending) as tie-breaker, and a page after a cursor starts with the flip listed right after the cursor's flip.
+ * Unlike a page number a cursor stays put when new flips arrive, and seeking to it costs a binary search per week
+ * rather than skipping every newer flip.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public final class FlipCursor {
+
+    private final int closedTime;
+    // null when seeking to a time, the position is then before every flip closed at that time
+    private final UUID id;
+
+    public static FlipCursor after(FlipV2 flip) {
+        return new FlipCursor(flip.getClosedTime(), flip.getId());
+    }
+
+    /**
+     * Position for jumping to a date, the page after it starts with the newest flip closed before the time.
+     */
+    public static FlipCursor beforeTime(int time) {
+        return new FlipCursor(time, null);
+    }
+}
@@ -1,6 +1,7 @@
 package com.flippingcopilot.model;
 
 import com.flippingcopilot.controller.ApiRequestHandler;
+import com.flippingcopilot.controller.Persistance;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -8,11 +9,22 @@ import okhttp3.OkHttpClient;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
 /**
@@ -22,157 +34,514 @@ import java.util.stream.Collectors;
  * A bucketed aggregation strategy is used where we keep pre-computed weekly buckets of statistics and flips. For any
  * time range we can efficiently combine the weekly buckets and only have to re-calculate statistics for the partial
  * weeks on the boundaries of the time range. Have tested the UI experience with >100k flips.
+ * The weekly statistics are additionally indexed by a Fenwick tree per account (and one for all accounts) so the full
+ * weeks of any [start, end) range are summed in O(log weeks) rather than by walking every later week. Within a week
+ * the stats are also bucketed by day and hour ({@link DayHourStats}) so a boundary falling mid-week only needs a few
+ * bucket additions plus a scan of the flips in one hour. Weeks and days follow local midnight in the configured
+ * time zone. Each week also keeps per-item stats per account so the item leaderboard ({@link #topItems}) merges a
+ * few thousand item totals per week instead of visiting every flip.
+ * A large merge relative to the flips already held, e.g. the initial history download, skips the flip by flip
+ * sorted inserts and builds all the buckets in a single pass over the sorted flips instead. The flips are persisted
+ * locally with a sync cursor so later logins only download the flips that changed since.
+ * The flips of each bucket are held in {@link FlipColumns} (parallel primitive arrays) rather than as {@link FlipV2}
+ * objects, only the flips of the page being displayed are materialised as {@link FlipV2}. Weeks older than the
+ * retention horizon keep only their aggregates on the heap, their flips are spilled to a {@link WeekSpillStore} and
+ * read back when a page or a range boundary falls in them.
+ * Reads (stats, pages, item leaderboard) share a read lock and never mutate the cache, so the UI and client threads
+ * only wait on an in progress merge, not on each other. Callbacks are run after the lock has been released. After
+ * every change an immutable {@link FlipStatsSnapshot} is also published, the stats panel polls that without locking.
  */
 @Slf4j
 @Singleton
 @RequiredArgsConstructor(onConstructor_ = @Inject)
 public class FlipManager {
 
-    private static final int WEEK_SECS = 7 * 24 * 60 * 60;
+    private static final int HOUR_SECS = 60 * 60;
+    static final int INITIAL_TREE_WEEKS = 4096;
+    private static final int BULK_MERGE_MIN_FLIPS = 1000;
+    // the sync cursor is set this far before the request time to cover clock skew and flips updated mid request
+    private static final int SYNC_CURSOR_OVERLAP_SECS = 10 * 60;
+    // a delta sync doesn't learn of the flips deleted on the server, so the full history is downloaded again this often
+    static final int FULL_SYNC_INTERVAL_SECS = 7 * 24 * HOUR_SECS;
+    // stands in for the id of an account whose flips were rebuilt offline before the server told its real id
+    static final int OFFLINE_ACCOUNT_ID = -2;
 
     // dependencies
     private final ApiRequestHandler api;
     private final ScheduledExecutorService executorService;
     private final OkHttpClient okHttpClient;
+    private final LoginResponseManager loginResponseManager;
 
     @Setter
     private Runnable flipsChangedCallback = () -> {};
+    // called with the number of flips downloaded so far while the flip history streams in, and with -1 once merged
+    @Setter
+    private IntConsumer flipsLoadingCallback = (n) -> {};
 
     // state
     private String intervalDisplayName;
     private int intervalStartTime;
     private Stats intervalStats = new Stats();
+    private ZoneId timeZone = ZoneId.systemDefault();
 
     final Map<String, Integer> displayNameToAccountId = new HashMap<>();
-    final Map<Integer, Map<Integer, FlipV2>> lastOpenFLipByItemId = new HashMap<>();
-    final Map<UUID, Integer> existingCloseTimes = new HashMap<>();
+    final OpenFlipIndex lastOpenFLipByItemId = new OpenFlipIndex();
+    final ProvisionalFlips provisionalFlips = new ProvisionalFlips();
+    LongPairIntMap existingCloseTimes = new LongPairIntMap();
+    final Map<Integer, String> itemNames = new HashMap<>();
     final List<WeekAggregate> weeks = new ArrayList<>(365*5);
+    final Map<Integer, StatsFenwickTree> accountIdToWeekTree = new HashMap<>();
+    StatsFenwickTree allAccountsWeekTree = new StatsFenwickTree(INITIAL_TREE_WEEKS);
+
+    // reads share the lock, merges and other mutations take it exclusively
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = lock.readLock();
+    private final Lock writeLock = lock.writeLock();
+
+    // weeks older than this many weeks have their flips spilled to the spill store, if one is open, 0 keeps all resident
+    private volatile int retentionWeeks;
+    private WeekSpillStore spillStore;
 
-    private int resetSeq = 0;
+    // non-null while a history load is building buckets outside the lock, records the flips merged in the meantime
+    private List<FlipV2> mergedDuringBuild;
+    // the loaded flips were loaded locally while the server couldn't be reached, from the snapshot or rebuilt from the
+    // transaction log, they are dropped before the server's flips are merged
+    private boolean offlineFlips;
+    private volatile int resetSeq = 0;
+    private volatile FlipStatsSnapshot statsSnapshot = new FlipStatsSnapshot(0, null, 0, new Stats(), Collections.emptyList());
     public volatile boolean flipsLoaded;
 
-    public synchronized String getIntervalDisplayName() {
-        return intervalDisplayName;
+    public String getIntervalDisplayName() {
+        readLock.lock();
+        try {
+            return intervalDisplayName;
+        } finally {
+            readLock.unlock();
+        }
     }
 
-    public synchronized List<String> getDisplayNameOptions() {
-        return displayNameToAccountId.keySet().stream().sorted().collect(Collectors.toList());
+    public List<String> getDisplayNameOptions() {
+        readLock.lock();
+        try {
+            return displayNameToAccountId.keySet().stream().sorted().collect(Collectors.toList());
+        } finally {
+            readLock.unlock();
+        }
     }
 
-    public synchronized long estimateTransactionProfit(String displayName, Transaction t) {
-        Integer accountId = displayNameToAccountId.get(displayName);
-        if (accountId != null && lastOpenFLipByItemId.containsKey(accountId)) {
-            FlipV2 flip = lastOpenFLipByItemId.get(accountId).get(t.getItemId());
-            if(flip != null) {
-                return flip.calculateProfit(t);
+    public long estimateTransactionProfit(String displayName, Transaction t) {
+        readLock.lock();
+        try {
+            Integer accountId = displayNameToAccountId.get(displayName);
+            if (accountId != null) {
+                FlipV2 flip = lastOpenFLipByItemId.get(accountId, t.getItemId());
+                if(flip != null) {
+                    return flip.calculateProfit(t);
+                }
             }
+            return 0;
+        } finally {
+            readLock.unlock();
         }
-        return 0;
     }
 
-    public synchronized void mergeFlips(List<FlipV2> flips, String displayName) {
-        if(!flips.isEmpty() && displayName != null) {
-            displayNameToAccountId.put(displayName, flips.get(0).getAccountId());
+    /**
+     * Applies a transaction the server hasn't acknowledged yet to a provisional copy of the account's open flip of
+     * the item, so the stats include it straight away. The provisional flip is replaced once the server's flips for
+     * the transaction are merged via {@link #mergeAckedFlips}. The transaction of an account the server hasn't told
+     * the id of yet is kept until the id is known.
+     */
+    public void applyTransaction(Transaction t, String displayName) {
+        writeLock.lock();
+        try {
+            Integer accountId = displayNameToAccountId.get(displayName);
+            if (accountId == null || accountId == -1 || provisionalFlips.unresolved.containsKey(displayName)) {
+                if (!provisionalFlips.addUnresolved(displayName, t)) {
+                    return;
+                }
+                resolvePendingTransactions_();
+            } else {
+                if (!provisionalFlips.addPending(accountId, displayName, t)) {
+                    return;
+                }
+                if (mergedDuringBuild == null) {
+                    applyProvisional(accountId, t);
+                }
+            }
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
         }
-        flips.forEach(this::mergeFlip_);
         flipsChangedCallback.run();
     }
 
-    public synchronized Stats getIntervalStats() {
-        return intervalStats.copy();
+    /**
+     * Applies the transactions left in the accounts' logs of unacknowledged transactions as provisional flip changes,
+     * e.g. those of an earlier run the server never acknowledged. The transactions taken in or acknowledged since the
+     * last reset are skipped.
+     */
+    void loadPendingTransactions(int seq) {
+        Set<String> displayNames = new HashSet<>();
+        readLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return;
+            }
+            displayNames.addAll(displayNameToAccountId.keySet());
+            if (intervalDisplayName != null) {
+                displayNames.add(intervalDisplayName);
+            }
+        } finally {
+            readLock.unlock();
+        }
+        Map<String, List<Transaction>> logged = new HashMap<>();
+        for (String displayName : displayNames) {
+            List<Transaction> pending = UnAckedTransactionLog.readPending(Persistance.unAckedTransactionsFile(displayName),
+                    Persistance.legacyUnAckedTransactionsFile(displayName), Persistance.gson);
+            if (!pending.isEmpty()) {
+                logged.put(displayName, pending);
+            }
+        }
+        if (logged.isEmpty()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return;
+            }
+            // a batch acknowledged since its log was read is known as such, so it isn't applied again
+            logged.forEach((displayName, pending) -> pending.forEach(t -> provisionalFlips.addUnresolved(displayName, t)));
+            resolvePendingTransactions_();
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+        flipsChangedCallback.run();
     }
 
-    public synchronized Stats calculateStats(int startTime, String displayName) {
-        if(displayName == null) {
-            return calculateStatsAllAccounts(startTime);
-        } else {
-            return calculateStatsForAccount(startTime, displayNameToAccountId.getOrDefault(displayName, -1));
+    public void mergeFlips(List<FlipV2> flips, String displayName) {
+        mergeAckedFlips(flips, displayName, Collections.emptyList());
+    }
+
+    /**
+     * Merges the server's flips returned for the acknowledged transactions. The provisional flip changes of all
+     * pending transactions are undone first and the transactions still pending are re-applied on top afterwards.
+     */
+    public void mergeAckedFlips(List<FlipV2> flips, String displayName, Collection<Transaction> acked) {
+        writeLock.lock();
+        try {
+            if(!flips.isEmpty() && displayName != null) {
+                displayNameToAccountId.put(displayName, flips.get(0).getAccountId());
+            }
+            revertProvisionalFlips();
+            try {
+                if (isBulkMerge(flips.size())) {
+                    FlipBucketsBuilder builder = new FlipBucketsBuilder();
+                    flips.forEach(builder::add);
+                    addExistingFlips(builder);
+                    installBuckets(builder.build(timeZone));
+                } else {
+                    flips.forEach(this::mergeFlip_);
+                }
+                // a merge that fails is retried, so until it succeeds the transactions stay pending
+                provisionalFlips.acknowledge(acked);
+                provisionalFlips.resolve(displayNameToAccountId::get);
+            } finally {
+                replayProvisionalFlips();
+                publishStatsSnapshot();
+            }
+            spillColdWeeks(weeks, spillStore, timeZone);
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
         }
+        flipsChangedCallback.run();
     }
 
-    public synchronized void setIntervalDisplayName(String displayName) {
-        if (Objects.equals(displayName, intervalDisplayName)) {
-            return;
+    public Stats getIntervalStats() {
+        readLock.lock();
+        try {
+            return intervalStats.copy();
+        } finally {
+            readLock.unlock();
         }
-        if (displayName != null && !displayNameToAccountId.containsKey(displayName)) {
-            displayNameToAccountId.put(displayName, -1);
+    }
+
+    public Stats calculateStats(int startTime, String displayName) {
+        readLock.lock();
+        try {
+            Integer accountId = displayName == null ? null : displayNameToAccountId.getOrDefault(displayName, -1);
+            return calculateRangeStats(startTime, Integer.MAX_VALUE, accountId);
+        } finally {
+            readLock.unlock();
         }
-        intervalDisplayName = displayName;
-        recalculateIntervalStats();
     }
 
-    public synchronized void setIntervalStartTime(int startTime) {
-        log.debug("time interval start set to: {}", Instant.ofEpochSecond(startTime));
-        if (startTime == intervalStartTime) {
-            return;
+    /**
+     * Calculates the stats of the flips closed in the time range [start, end) for the account, or all accounts if
+     * the accountId is null.
+     */
+    public Stats calculateStats(int start, int end, Integer accountId) {
+        readLock.lock();
+        try {
+            return calculateRangeStats(start, end, accountId);
+        } finally {
+            readLock.unlock();
         }
-        intervalStartTime = startTime;
-        recalculateIntervalStats();
     }
 
-    private void recalculateIntervalStats() {
-        if(intervalDisplayName == null) {
-            intervalStats = calculateStatsAllAccounts(intervalStartTime);
-        } else {
-            intervalStats = calculateStatsForAccount(intervalStartTime, displayNameToAccountId.getOrDefault(intervalDisplayName, -1));
+    public void setIntervalDisplayName(String displayName) {
+        writeLock.lock();
+        try {
+            if (Objects.equals(displayName, intervalDisplayName)) {
+                return;
+            }
+            if (displayName != null && !displayNameToAccountId.containsKey(displayName)) {
+                displayNameToAccountId.put(displayName, -1);
+            }
+            intervalDisplayName = displayName;
+            recalculateIntervalStats();
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
         }
-        log.debug("interval flips updated to {}, interval profit updated to {}", intervalStats.flipsMade, intervalStats.profit);
         flipsChangedCallback.run();
     }
 
-    private Stats calculateStatsAllAccounts(int startTime) {
-        Stats stats = new Stats();
-        WeekAggregate w = getOrInitWeek(startTime);
-        for (FlipV2 f : w.flipsAfter(startTime, false)) {
-            stats.addFlip(f);
+    public ZoneId getTimeZone() {
+        readLock.lock();
+        try {
+            return timeZone;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public void setTimeZone(ZoneId zone) {
+        writeLock.lock();
+        try {
+            if (timeZone.equals(zone)) {
+                return;
+            }
+            log.debug("flip buckets time zone set to: {}", zone);
+            timeZone = zone;
+            rebucket();
+        } finally {
+            writeLock.unlock();
         }
-        for(int i=w.pos+1; i < weeks.size(); i++) {
-            stats.add(weeks.get(i).allStats);
+    }
+
+    // re-buckets all the flips after the day/week boundaries have moved
+    private void rebucket() {
+        List<FlipV2> flips = new ArrayList<>(existingCloseTimes.size());
+        addAllFlips(flips);
+        weeks.forEach(WeekAggregate::releaseSpill);
+        weeks.clear();
+        accountIdToWeekTree.clear();
+        allAccountsWeekTree = new StatsFenwickTree(INITIAL_TREE_WEEKS);
+        flips.forEach(this::addToBuckets);
+        spillColdWeeks(weeks, spillStore, timeZone);
+    }
+
+    public void setIntervalStartTime(int startTime) {
+        log.debug("time interval start set to: {}", Instant.ofEpochSecond(startTime));
+        writeLock.lock();
+        try {
+            if (startTime == intervalStartTime) {
+                return;
+            }
+            intervalStartTime = startTime;
+            recalculateIntervalStats();
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+        flipsChangedCallback.run();
+    }
+
+    /**
+     * Returns the k items ranked best by the sort key over the flips closed at or after the start time, for the
+     * account or all accounts if the accountId is null.
+     */
+    public List<ItemStats> topItems(int start, Integer accountId, int k, ItemSortKey sortKey) {
+        readLock.lock();
+        try {
+            if (k <= 0) {
+                return new ArrayList<>();
+            }
+            ItemStatsMap totals = new ItemStatsMap(itemNames.size());
+            for (int i = weeks.size() - 1; i >= 0; i--) {
+                WeekAggregate w = weeks.get(i);
+                if (w.weekEnd <= start) {
+                    break;
+                }
+                w.addItemStats(start, accountId, totals);
+            }
+
+            // bounded heap holding the best k seen so far with the worst of them at the head
+            Comparator<ItemStats> order = Comparator.comparing(ItemStats::getStats, sortKey.getComparator())
+                    .thenComparingInt(ItemStats::getItemId);
+            PriorityQueue<ItemStats> heap = new PriorityQueue<>(k + 1, order.reversed());
+            for (int slot = 0; slot < totals.capacity(); slot++) {
+                if (totals.flipsMade(slot) <= 0) {
+                    continue;
+                }
+                Stats s = new Stats();
+                totals.addTo(slot, s);
+                ItemStats candidate = new ItemStats(totals.itemId(slot), null, s);
+                if (heap.size() < k) {
+                    heap.add(candidate);
+                } else if (order.compare(candidate, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(candidate);
+                }
+            }
+            List<ItemStats> top = new ArrayList<>(heap);
+            top.sort(order);
+            top.forEach(is -> is.setItemName(itemNames.get(is.getItemId())));
+            return top;
+        } finally {
+            readLock.unlock();
         }
-        return stats;
     }
 
-    private Stats calculateStatsForAccount(int startTime, int accountId) {
+    public List<ItemStats> getIntervalTopItems(int k, ItemSortKey sortKey) {
+        readLock.lock();
+        try {
+            Integer accountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
+            return topItems(intervalStartTime, accountId, k, sortKey);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the latest published stats snapshot, without locking. Use it for frequent UI reads where seeing the
+     * state as of the last completed change is fine.
+     */
+    public FlipStatsSnapshot getStatsSnapshot() {
+        return statsSnapshot;
+    }
+
+    // called with the write lock held at the end of every change to what the snapshot covers
+    private void publishStatsSnapshot() {
+        List<String> displayNames = displayNameToAccountId.keySet().stream().sorted().collect(Collectors.toList());
+        statsSnapshot = new FlipStatsSnapshot(statsSnapshot.getVersion() + 1, intervalDisplayName, intervalStartTime,
+                intervalStats.copy(), Collections.unmodifiableList(displayNames));
+    }
+
+    private void recalculateIntervalStats() {
+        Integer accountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
+        intervalStats = calculateRangeStats(intervalStartTime, Integer.MAX_VALUE, accountId);
+        log.debug("interval flips updated to {}, interval profit updated to {}", intervalStats.flipsMade, intervalStats.profit);
+    }
+
+    private Stats calculateRangeStats(int start, int end, Integer accountId) {
         Stats stats = new Stats();
-        WeekAggregate w = getOrInitWeek(startTime);
-        for (FlipV2 f : w.flipsAfterForAccount(startTime, accountId)) {
-            stats.addFlip(f);
+        if (end <= start) {
+            return stats;
+        }
+        StatsFenwickTree tree = accountId == null ? allAccountsWeekTree : accountIdToWeekTree.get(accountId);
+        if (tree == null) {
+            return stats;
         }
-        for(int i=w.pos+1; i < weeks.size(); i++) {
-            stats.add(weeks.get(i).accountIdToStats.get(accountId));
+        int startWeek = weekIndex(start);
+        int endWeek = weekIndex(end - 1);
+        addPartialWeekStats(startWeek, start, end, accountId, stats);
+        if (endWeek > startWeek) {
+            tree.addRange(startWeek + 1, endWeek, stats);
+            addPartialWeekStats(endWeek, start, end, accountId, stats);
         }
         return stats;
     }
 
-    public synchronized List<FlipV2> getPageFlips(int page, int pageSize) {
-        Integer accountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
-        if (Objects.equals(accountId,-1)) {
-            return new ArrayList<>();
+    private void addPartialWeekStats(int weekIndex, int start, int end, Integer accountId, Stats stats) {
+        WeekAggregate w = findWeek(weekIndex);
+        if (w != null) {
+            w.addRangeStats(start, end, accountId, stats);
         }
+    }
 
-        int toSkip = (page -1) * pageSize;
-        WeekAggregate intervalWeek = getOrInitWeek(intervalStartTime);
-        List<FlipV2> resultFlips = new ArrayList<>(pageSize);
-        for(int i=weeks.size()-1; i >= intervalWeek.pos; i--) {
-            if (weeks.get(i).weekEnd <= intervalStartTime || resultFlips.size() == pageSize) {
-                break;
+    public List<FlipV2> getPageFlips(int page, int pageSize) {
+        readLock.lock();
+        try {
+            Integer accountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
+            if (Objects.equals(accountId,-1)) {
+                return new ArrayList<>();
             }
-            WeekAggregate w = weeks.get(i);
-            List<FlipV2> weekFlips = accountId == null ? w.flipsAfter(intervalStartTime, true) : w.flipsAfterForAccount(intervalStartTime, accountId);
-            int n = weekFlips.size();
-            if (n > toSkip) {
-                // note: weekFlips are ascending order but we return pages of descending order
-                int end = n - toSkip;
-                int start = Math.max(0, end - (pageSize - resultFlips.size()));
-                for(int ii=end-1; ii >= start; ii--) {
-                    resultFlips.add(weekFlips.get(ii));
+
+            int toSkip = (page -1) * pageSize;
+            List<FlipV2> resultFlips = new ArrayList<>(pageSize);
+            for(int i=weeks.size()-1; i >= 0; i--) {
+                if (weeks.get(i).weekEnd <= intervalStartTime || resultFlips.size() == pageSize) {
+                    break;
+                }
+                WeekAggregate w = weeks.get(i);
+                // weeks skipped over are counted from their stats so cold weeks aren't read back
+                int n = w.countFrom(intervalStartTime, accountId);
+                if (n <= toSkip) {
+                    toSkip -= n;
+                    continue;
+                }
+                if (accountId == null) {
+                    // note: the merge steps back from the newest row as we return pages of descending order
+                    FlipRowMerge merge = w.mergeFrom(intervalStartTime, null);
+                    for (; toSkip > 0; toSkip--) {
+                        merge.previous();
+                    }
+                    while (resultFlips.size() < pageSize && merge.previous()) {
+                        resultFlips.add(merge.column().get(merge.row(), itemNames::get));
+                    }
+                } else {
+                    FlipColumns c = w.flips().get(accountId);
+                    // note: rows are ascending order but we return pages of descending order
+                    int first = w.firstRowFrom(c, intervalStartTime);
+                    int end = c.size() - toSkip;
+                    int start = Math.max(first, end - (pageSize - resultFlips.size()));
+                    for(int ii=end-1; ii >= start; ii--) {
+                        resultFlips.add(c.get(ii, itemNames::get));
+                    }
+                    toSkip = 0;
                 }
-                toSkip = 0;
-            } else {
-                toSkip -= n;
             }
+            return resultFlips;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to pageSize flips of the interval listed after the cursor, newest first, or starting from the newest
+     * flip if the cursor is null. Each week is entered with a binary search so the cost is the same however deep into
+     * the history the cursor is.
+     */
+    public List<FlipV2> getPageFlips(FlipCursor after, int pageSize) {
+        readLock.lock();
+        try {
+            Integer accountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
+            List<FlipV2> resultFlips = new ArrayList<>(pageSize);
+            if (Objects.equals(accountId, -1)) {
+                return resultFlips;
+            }
+            int i = weeks.size() - 1;
+            if (after != null) {
+                // the newest week starting at or before the cursor
+                int cursorTime = after.getClosedTime();
+                i = bisect(weeks.size(), (a) -> weeks.get(a).weekStart <= cursorTime ? -1 : 1);
+                i = -i - 2;
+            }
+            for (; i >= 0 && resultFlips.size() < pageSize; i--) {
+                WeekAggregate w = weeks.get(i);
+                if (w.weekEnd <= intervalStartTime) {
+                    break;
+                }
+                w.addFlipsAfter(after, intervalStartTime, accountId, pageSize - resultFlips.size(), resultFlips, itemNames::get);
+            }
+            return resultFlips;
+        } finally {
+            readLock.unlock();
         }
-        return resultFlips;
     }
 
     public void loadFlipsAsync() {
@@ -184,141 +553,955 @@ public class FlipManager {
         // refactor the API call to be async style but until then just run in okHttpClient's executor
         okHttpClient.dispatcher().executorService().submit(() -> {
             try {
-                long s = System.nanoTime();
-                Map<String, Integer> names = api.loadUserDisplayNames();
-                synchronized (this) {
-                    if (seq != resetSeq) {
-                        return;
-                    }
-                    displayNameToAccountId.putAll(names);
-                }
-                log.debug("loading account names took {}ms", (System.nanoTime() - s) / 1000_000);
-                s = System.nanoTime();
-                List<FlipV2> flips = api.LoadFlips();
-                log.debug("loading {} flips took {}ms", flips.size(), (System.nanoTime() - s) / 1000_000);
-                s = System.nanoTime();
-                synchronized (this) {
-                    if (seq != resetSeq) {
-                        return;
-                    }
-                    mergeFlips(flips, null);
-                    log.debug("merging flips to took {}ms", (System.nanoTime() - s) / 1000_000);
-                    flipsLoaded = true;
-                }
-                flipsChangedCallback.run();
-            } catch (Exception e) {
+                syncFlips(seq);
+            } catch (HttpResponseException | UncheckedIOException e) {
                 if (this.resetSeq == seq) {
                     log.warn("failed to load historical flips from server {} try again in 10s", e.getMessage(), e);
+                    loadLocalFlips(seq);
                     executorService.schedule(() -> this.loadFlips(seq), 10, TimeUnit.SECONDS);
                 }
+            } catch (RuntimeException e) {
+                // a bug rather than the server or disk failing, retrying would fail the same way
+                log.error("error loading historical flips", e);
+                loadLocalFlips(seq);
             }
         });
     }
 
+    /**
+     * Loads the user's locally persisted flip snapshot, then fetches only the flips created or updated since the
+     * snapshot's cursor and persists the merged flips with a new cursor. Without a snapshot, or once its last full
+     * download is {@link #FULL_SYNC_INTERVAL_SECS} old, the full flip history is downloaded.
+     */
+    void syncFlips(int seq) throws HttpResponseException {
+        long s = System.nanoTime();
+        Map<String, Integer> names = api.loadUserDisplayNames();
+        writeLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return;
+            }
+            displayNameToAccountId.putAll(names);
+            resolvePendingTransactions_();
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+        log.debug("loading account names took {}ms", (System.nanoTime() - s) / 1000_000);
+
+        LoginResponse loginResponse = loginResponseManager.getLoginResponse();
+        Integer userId = loginResponse == null ? null : loginResponse.userId;
+        if (userId != null && !openSpillStore(userId, seq)) {
+            return;
+        }
+        try {
+            syncFlipHistory(userId, seq);
+            loadPendingTransactions(seq);
+        } catch (UncheckedIOException e) {
+            // the rows of a cold week were lost with the spill file, the retry rebuilds them from the snapshot and
+            // the server as the snapshot wasn't replaced
+            discardFlips(seq);
+            throw e;
+        }
+    }
+
+    private void syncFlipHistory(Integer userId, int seq) throws HttpResponseException {
+        int requestTime = (int) Instant.now().getEpochSecond();
+        long s = System.nanoTime();
+        FlipSnapshot snapshot = userId == null ? null : Persistance.loadFlipSnapshot(userId);
+        if (snapshot != null && requestTime - snapshot.getFullSyncTime() >= FULL_SYNC_INTERVAL_SECS) {
+            // flips deleted on the server since are only dropped by downloading the full history again
+            log.debug("flip snapshot last fully synced at {}, downloading the full flip history", snapshot.getFullSyncTime());
+            snapshot = null;
+        }
+        if (snapshot != null) {
+            dropOfflineFlips(seq);
+            FlipBucketsBuilder builder = new FlipBucketsBuilder();
+            builder.itemNames.putAll(snapshot.itemNames);
+            snapshot.accounts.forEach(builder::add);
+            if (!mergeLoadedFlips(builder, seq)) {
+                return;
+            }
+            log.debug("loading {} flips from the local snapshot took {}ms", snapshot.size(), (System.nanoTime() - s) / 1000_000);
+            flipsChangedCallback.run();
+        }
+
+        // the flips are decoded straight off the response stream into the builder's columns
+        s = System.nanoTime();
+        FlipBucketsBuilder builder = new FlipBucketsBuilder();
+        int n = api.streamFlipsSince(snapshot == null ? 0 : snapshot.getCursor(), builder::add, flipsLoadingCallback);
+        log.debug("loading {} flips took {}ms", n, (System.nanoTime() - s) / 1000_000);
+        s = System.nanoTime();
+        dropOfflineFlips(seq);
+        if (!mergeLoadedFlips(builder, seq)) {
+            return;
+        }
+        log.debug("merging flips to took {}ms", (System.nanoTime() - s) / 1000_000);
+        flipsLoadingCallback.accept(-1);
+        flipsChangedCallback.run();
+
+        if (userId != null) {
+            FlipSnapshot updated;
+            writeLock.lock();
+            try {
+                if (seq != resetSeq) {
+                    return;
+                }
+                // only the server's flips are persisted, the pending transactions are applied again from the logs of
+                // unacknowledged transactions once the flips are next loaded
+                revertProvisionalFlips();
+                try {
+                    updated = newSnapshot(requestTime - SYNC_CURSOR_OVERLAP_SECS,
+                            snapshot == null ? requestTime : snapshot.getFullSyncTime());
+                } finally {
+                    replayProvisionalFlips();
+                    publishStatsSnapshot();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            Persistance.storeFlipSnapshot(userId, updated);
+        }
+    }
+
+    /**
+     * Shows flips while the server can't be reached, unless some are loaded already: the flips of the local snapshot,
+     * or without one the flips of the account the stats are shown for rebuilt from its transaction log. An account
+     * the server hasn't told the id of yet gets {@link #OFFLINE_ACCOUNT_ID}. Either are dropped before the server's
+     * flips are merged, as the snapshot may be due a full download.
+     */
+    void loadLocalFlips(int seq) {
+        String displayName;
+        int accountId;
+        writeLock.lock();
+        try {
+            if (seq != resetSeq || flipsLoaded || intervalDisplayName == null) {
+                return;
+            }
+            displayName = intervalDisplayName;
+            accountId = displayNameToAccountId.getOrDefault(displayName, -1);
+            if (accountId == -1) {
+                accountId = OFFLINE_ACCOUNT_ID;
+                displayNameToAccountId.put(displayName, accountId);
+                resolvePendingTransactions_();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        // before the flips, so those rebuilt from the transaction log skip the transactions still unacknowledged
+        loadPendingTransactions(seq);
+        LoginResponse loginResponse = loginResponseManager.getLoginResponse();
+        FlipSnapshot snapshot = loginResponse == null ? null : Persistance.loadFlipSnapshot(loginResponse.userId);
+        boolean merged;
+        if (snapshot != null) {
+            FlipBucketsBuilder builder = new FlipBucketsBuilder();
+            builder.itemNames.putAll(snapshot.itemNames);
+            snapshot.accounts.forEach(builder::add);
+            merged = mergeLoadedFlips(builder, seq);
+            if (merged) {
+                writeLock.lock();
+                try {
+                    offlineFlips = seq == resetSeq;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } else {
+            merged = loadOfflineFlips(displayName, accountId, seq);
+        }
+        if (merged) {
+            flipsChangedCallback.run();
+        }
+    }
 
-    public synchronized void reset() {
-        intervalDisplayName = null;
-        intervalStartTime = 0;
+    /**
+     * Rebuilds the account's flips from its local log of all transactions instead of downloading them, so the stats
+     * work without the server. The log is streamed through a {@link TransactionLogReplay} straight into the builder's
+     * columns, skipping the transactions still unacknowledged as those are applied on top as provisional flip changes. The
+     * flips are dropped before the server's flips are merged. Returns false if the manager was reset in the meantime.
+     */
+    boolean loadOfflineFlips(String displayName, int accountId, int seq) {
+        long s = System.nanoTime();
+        Set<UUID> pending;
+        readLock.lock();
+        try {
+            pending = provisionalFlips.unacknowledgedIds();
+        } finally {
+            readLock.unlock();
+        }
+        FlipBucketsBuilder builder = new FlipBucketsBuilder();
+        TransactionLogReplay replay = new TransactionLogReplay(accountId, builder::add);
+        Persistance.readAllTransactions(displayName, t -> {
+            if (!pending.contains(t.getId())) {
+                replay.accept(t);
+            }
+        });
+        replay.finish();
+        log.debug("replaying {} logged transactions into {} flips took {}ms ({} unmatched sells)", replay.getTransactions(),
+                replay.getFlips(), (System.nanoTime() - s) / 1000_000, replay.getUnmatchedSells());
+        if (!mergeLoadedFlips(builder, seq)) {
+            return false;
+        }
+        writeLock.lock();
+        try {
+            offlineFlips = seq == resetSeq;
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    // the server has its own ids for the flips rebuilt offline and may have deleted some of the snapshot's, so the
+    // flips loaded offline are dropped before its flips are merged
+    private void dropOfflineFlips(int seq) {
+        writeLock.lock();
+        try {
+            if (seq != resetSeq || !offlineFlips) {
+                return;
+            }
+            clearFlips_();
+            provisionalFlips.changes.clear();
+            // an account the server doesn't know yet has no flips on it, its transactions wait for its id
+            provisionalFlips.unresolve(OFFLINE_ACCOUNT_ID);
+            displayNameToAccountId.values().removeIf(id -> id == OFFLINE_ACCOUNT_ID);
+            // the flips were cleared, the next merge replays the pending transactions on top of the server's
+            provisionalFlips.resolve(displayNameToAccountId::get);
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean mergeLoadedFlips(List<FlipV2> flips, int seq) {
+        FlipBucketsBuilder builder = new FlipBucketsBuilder();
+        flips.forEach(builder::add);
+        return mergeLoadedFlips(builder, seq);
+    }
+
+    /**
+     * Merges the downloaded flip history staged in the builder. When the bulk path applies the buckets are built
+     * without holding the lock, only staging the existing flips and the final swap take the write lock. Returns false if
+     * the manager was reset in the meantime.
+     */
+    boolean mergeLoadedFlips(FlipBucketsBuilder builder, int seq) {
+        ZoneId zone;
+        WeekSpillStore store;
+        writeLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return false;
+            }
+            revertProvisionalFlips();
+            if (!isBulkMerge(builder.newFlipCount())) {
+                builder.newFlips().forEach(this::mergeFlip_);
+                replayProvisionalFlips();
+                spillColdWeeks(weeks, spillStore, timeZone);
+                publishStatsSnapshot();
+                flipsLoaded = true;
+                return true;
+            }
+            addExistingFlips(builder);
+            zone = timeZone;
+            store = spillStore;
+            mergedDuringBuild = new ArrayList<>();
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            builder.build(zone);
+            // the new weeks aren't visible to readers yet, so the cold ones are spilled before taking the lock
+            spillColdWeeks(builder.weeks, store, zone);
+        } catch (RuntimeException e) {
+            writeLock.lock();
+            try {
+                // the flips merged meanwhile are already in the buckets, just stop recording them
+                if (seq == resetSeq) {
+                    mergedDuringBuild = null;
+                    replayProvisionalFlips();
+                    publishStatsSnapshot();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            throw e;
+        }
+        writeLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return false;
+            }
+            installBuckets(builder);
+            replayProvisionalFlips();
+            publishStatsSnapshot();
+            flipsLoaded = true;
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    public void reset() {
+        writeLock.lock();
+        try {
+            intervalDisplayName = null;
+            intervalStartTime = 0;
+            displayNameToAccountId.clear();
+            provisionalFlips.clear();
+            itemNames.clear();
+            clearFlips_();
+            closeSpillStore_();
+            mergedDuringBuild = null;
+            resetSeq += 1;
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // drops the loaded flips so the next sync loads them all again, the pending transactions stay to be replayed
+    private void discardFlips(int seq) {
+        writeLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return;
+            }
+            provisionalFlips.changes.clear();
+            clearFlips_();
+            closeSpillStore_();
+            publishStatsSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+        flipsChangedCallback.run();
+    }
+
+    private void clearFlips_() {
         intervalStats = new Stats();
-        displayNameToAccountId.clear();
         lastOpenFLipByItemId.clear();
         existingCloseTimes.clear();
+        weeks.forEach(WeekAggregate::releaseSpill);
         weeks.clear();
+        accountIdToWeekTree.clear();
+        allAccountsWeekTree = new StatsFenwickTree(INITIAL_TREE_WEEKS);
         flipsLoaded = false;
-        resetSeq += 1;
+        offlineFlips = false;
+    }
+
+    private void closeSpillStore_() {
+        if (spillStore != null) {
+            spillStore.close();
+            spillStore = null;
+        }
+    }
+
+    private boolean isBulkMerge(int newFlips) {
+        // while a history load is building outside the lock, merges must go through mergeFlip_ so they are recorded
+        return mergedDuringBuild == null && newFlips >= BULK_MERGE_MIN_FLIPS && existingCloseTimes.size() <= newFlips * 4;
+    }
+
+    /**
+     * Sets how many recent weeks keep their flips in memory, older weeks only keep their stats resident and have
+     * their flips read back from the spill file when displayed. 0 keeps all the flips in memory.
+     */
+    public void setRetentionWeeks(int weeks) {
+        writeLock.lock();
+        try {
+            retentionWeeks = Math.max(weeks, 0);
+            spillColdWeeks(this.weeks, spillStore, timeZone);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Opens the file cold weeks are spilled to, replacing any previous one. Returns false if the manager was reset in
+     * the meantime. Flips stay resident if the file can't be opened.
+     */
+    boolean openSpillStore(Path file, int seq) {
+        writeLock.lock();
+        try {
+            if (seq != resetSeq) {
+                return false;
+            }
+            if (spillStore != null && spillStore.getFile().equals(file)) {
+                return true;
+            }
+            for (WeekAggregate w : weeks) {
+                if (!w.isResident()) {
+                    // the rows of cold weeks must be brought back before the file they are in is closed
+                    w.thaw();
+                }
+            }
+            if (spillStore != null) {
+                spillStore.close();
+            }
+            try {
+                spillStore = new WeekSpillStore(file);
+            } catch (IOException e) {
+                log.warn("error opening week spill file {}, all flips will be kept in memory", file, e);
+                spillStore = null;
+            }
+            spillColdWeeks(weeks, spillStore, timeZone);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // the file is created by the first sync, later ones keep it as the manager is reset whenever the user changes
+    private boolean openSpillStore(int userId, int seq) {
+        readLock.lock();
+        try {
+            if (spillStore != null) {
+                return seq == resetSeq;
+            }
+        } finally {
+            readLock.unlock();
+        }
+        File file;
+        try {
+            file = Persistance.createFlipSpillFile(userId);
+        } catch (IOException e) {
+            log.warn("error creating week spill file, all flips will be kept in memory", e);
+            return seq == resetSeq;
+        }
+        if (!openSpillStore(file.toPath(), seq)) {
+            if (!file.delete()) {
+                log.warn("unable to delete unused week spill file {}", file);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // spills the rows of the weeks older than the retention horizon, the weeks are either not installed yet or the
+    // write lock is held
+    private void spillColdWeeks(List<WeekAggregate> ws, WeekSpillStore store, ZoneId zone) {
+        int retention = retentionWeeks;
+        if (store == null || retention <= 0) {
+            return;
+        }
+        int horizon = weekIndex((int) Instant.now().getEpochSecond(), zone) - retention;
+        int spilled = 0;
+        for (WeekAggregate w : ws) {
+            if (w.index >= horizon) {
+                break;
+            }
+            if (w.isResident()) {
+                if (!w.spill(store)) {
+                    break;
+                }
+                spilled++;
+            }
+        }
+        if (spilled > 0) {
+            log.debug("spilled the flips of {} weeks older than {} weeks", spilled, retention);
+            try {
+                store.compactIfWasteful();
+            } catch (IOException e) {
+                log.warn("error compacting week spill file", e);
+            }
+        }
+    }
+
+    /**
+     * Stages the existing rows into a builder that rebuilds all the buckets with its new flips. The result is the
+     * same as merging the new flips one by one, but the flips are sorted once and the weeks are built in parallel
+     * rather than doing O(n^2) row shifting of sorted inserts into busy weeks.
+     */
+    private void addExistingFlips(FlipBucketsBuilder builder) {
+        for (WeekAggregate w : weeks) {
+            w.flips().values().forEach(builder::addExisting);
+        }
+    }
+
+    private void installBuckets(FlipBucketsBuilder b) {
+        weeks.forEach(WeekAggregate::releaseSpill);
+        weeks.clear();
+        weeks.addAll(b.weeks);
+        existingCloseTimes = b.closeTimes;
+        allAccountsWeekTree = b.allAccountsWeekTree;
+        accountIdToWeekTree.clear();
+        accountIdToWeekTree.putAll(b.accountIdToWeekTree);
+        b.lastOpenFlipChanges.values().forEach(byItem -> byItem.values().forEach(lastOpenFLipByItemId::update));
+        b.itemNames.forEach(itemNames::putIfAbsent);
+        // flips merged while the builder was running are newer than the ones it was given
+        List<FlipV2> mergedMeanwhile = mergedDuringBuild;
+        mergedDuringBuild = null;
+        if (mergedMeanwhile != null) {
+            mergedMeanwhile.forEach(this::mergeFlip_);
+        }
+        if (!b.timeZone.equals(timeZone)) {
+            rebucket();
+        }
+        Integer accountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
+        intervalStats = calculateRangeStats(intervalStartTime, Integer.MAX_VALUE, accountId);
+        log.debug("bulk merged {} flips into {} weeks", b.flipCount, b.weeks.size());
+    }
+
+    // copies the rows of each account, in week order, so the snapshot can be written without holding the lock
+    private FlipSnapshot newSnapshot(int cursor, int fullSyncTime) {
+        Map<Integer, Integer> accountIdToCount = new HashMap<>();
+        for (WeekAggregate w : weeks) {
+            w.accountIdToStats.forEach((accountId, stats) -> accountIdToCount.merge(accountId, stats.flipsMade, Integer::sum));
+        }
+        Map<Integer, FlipColumns> accountIdToFlips = new HashMap<>();
+        for (WeekAggregate w : weeks) {
+            for (FlipColumns c : w.flips().values()) {
+                FlipColumns all = accountIdToFlips.computeIfAbsent(c.accountId, (k) -> new FlipColumns(k, accountIdToCount.get(k)));
+                for (int i = 0; i < c.size(); i++) {
+                    all.appendRow(c, i);
+                }
+            }
+        }
+        return new FlipSnapshot(cursor, fullSyncTime, new ArrayList<>(accountIdToFlips.values()), new HashMap<>(itemNames));
+    }
+
+    private void addAllFlips(List<FlipV2> into) {
+        for (WeekAggregate w : weeks) {
+            for (FlipColumns c : w.flips().values()) {
+                for (int i = 0; i < c.size(); i++) {
+                    into.add(c.get(i, itemNames::get));
+                }
+            }
+        }
+    }
+
+    // applies the transactions of the accounts whose ids became known, in the order the transactions happened
+    private void resolvePendingTransactions_() {
+        // only the recorded changes are reverted, so the pending transactions can be resolved first
+        if (!provisionalFlips.resolve(displayNameToAccountId::get)) {
+            return;
+        }
+        revertProvisionalFlips();
+        replayProvisionalFlips();
+    }
+
+    private void applyProvisional(int accountId, Transaction t) {
+        FlipV2 open = lastOpenFLipByItemId.get(accountId, t.getItemId());
+        FlipV2 updated = ProvisionalFlips.apply(open, accountId, t, itemNames.get(t.getItemId()));
+        if (updated != null) {
+            provisionalFlips.record(open, updated);
+            mergeFlip_(updated);
+        }
+    }
+
+    // puts the server's version back for every flip changed by a pending transaction, flips opened locally are removed
+    private void revertProvisionalFlips() {
+        List<ProvisionalFlips.Change> changes = new ArrayList<>(provisionalFlips.changes.values());
+        provisionalFlips.changes.clear();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            ProvisionalFlips.Change c = changes.get(i);
+            if (c.baseline != null) {
+                mergeFlip_(c.baseline);
+            } else {
+                removeFlip_(c.provisional);
+            }
+        }
+    }
+
+    // while a history load is building the transactions just stay pending, they are replayed once it's installed
+    private void replayProvisionalFlips() {
+        if (mergedDuringBuild != null) {
+            return;
+        }
+        for (ProvisionalFlips.Pending p : provisionalFlips.pending) {
+            applyProvisional(p.accountId, p.transaction);
+        }
+    }
+
+    private void removeFlip_(FlipV2 flip) {
+        int existingCloseTime = existingCloseTimes.get(flip.getId());
+        if (existingCloseTime == LongPairIntMap.MISSING) {
+            return;
+        }
+        Integer intervalAccountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
+        Stats removed = removeFromBuckets(flip.getId(), existingCloseTime, flip.getAccountId());
+        if(existingCloseTime >= intervalStartTime && (intervalAccountId == null || flip.getAccountId() == intervalAccountId)) {
+            intervalStats.subtract(removed);
+        }
+        existingCloseTimes.remove(flip.getId().getMostSignificantBits(), flip.getId().getLeastSignificantBits());
+        lastOpenFLipByItemId.remove(flip);
     }
 
     private void mergeFlip_(FlipV2 flip) {
-        Integer existingCloseTime = existingCloseTimes.get(flip.getId());
+        int existingCloseTime = existingCloseTimes.get(flip.getId());
         Integer intervalAccountId = intervalDisplayName == null ? null : displayNameToAccountId.getOrDefault(intervalDisplayName, -1);
 
-        if(existingCloseTime != null) {
-            WeekAggregate wa = getOrInitWeek(existingCloseTime);
-            FlipV2 removed = wa.removeFlip(flip.getId(), existingCloseTime, flip.getAccountId());
-            if(removed.getClosedTime() >= intervalStartTime && (intervalAccountId == null || removed.getAccountId() == intervalAccountId)) {
-                intervalStats.subtractFlip(removed);
+        if(existingCloseTime != LongPairIntMap.MISSING) {
+            Stats removed = removeFromBuckets(flip.getId(), existingCloseTime, flip.getAccountId());
+            if(existingCloseTime >= intervalStartTime && (intervalAccountId == null || flip.getAccountId() == intervalAccountId)) {
+                intervalStats.subtract(removed);
             }
         }
-        WeekAggregate wa = getOrInitWeek(flip.getClosedTime());
-        wa.addFlip(flip);
+        if (flip.getItemName() != null) {
+            itemNames.putIfAbsent(flip.getItemId(), flip.getItemName());
+        }
+        addToBuckets(flip);
         if(flip.getClosedTime() >= intervalStartTime && (intervalAccountId == null || flip.getAccountId() == intervalAccountId)) {
             intervalStats.addFlip(flip);
         }
-        if(flip.getClosedQuantity() < flip.getOpenedQuantity()) {
-            lastOpenFLipByItemId.computeIfAbsent(flip.getAccountId(), (k) -> new HashMap<>()).put(flip.getItemId(), flip);
-        } else if (flip.isClosed()) {
-            lastOpenFLipByItemId.computeIfAbsent(flip.getAccountId(), (k) -> new HashMap<>()).remove(flip.getItemId());
-        }
+        lastOpenFLipByItemId.update(flip);
         existingCloseTimes.put(flip.getId(), flip.getClosedTime());
+        if (mergedDuringBuild != null) {
+            mergedDuringBuild.add(flip);
+        }
+    }
+
+    private void addToBuckets(FlipV2 flip) {
+        WeekAggregate wa = getOrInitWeek(flip.getClosedTime());
+        Stats added = new Stats();
+        added.addFlip(flip);
+        wa.addFlip(flip, added);
+        allAccountsWeekTree.add(wa.index, added);
+        weekTree(flip.getAccountId()).add(wa.index, added);
+    }
+
+    private Stats removeFromBuckets(UUID id, int closeTime, int accountId) {
+        WeekAggregate wa = getOrInitWeek(closeTime);
+        Stats removed = wa.removeFlip(id, closeTime, accountId);
+        allAccountsWeekTree.subtract(wa.index, removed);
+        weekTree(accountId).subtract(wa.index, removed);
+        return removed;
+    }
+
+    private StatsFenwickTree weekTree(int accountId) {
+        return accountIdToWeekTree.computeIfAbsent(accountId, (k) -> new StatsFenwickTree(INITIAL_TREE_WEEKS));
+    }
+
+    // weeks are numbered from the Monday before the epoch in the configured time zone
+    private int weekIndex(int time) {
+        return weekIndex(time, timeZone);
+    }
+
+    static int weekIndex(int time, ZoneId timeZone) {
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochSecond(time), timeZone);
+        return (int) Math.floorDiv(date.toEpochDay() + 3, 7);
+    }
+
+    private WeekAggregate findWeek(int weekIndex) {
+        int i = bisect(weeks.size(), (a) ->  Integer.compare(weeks.get(a).index, weekIndex));
+        return i >= 0 ? weeks.get(i) : null;
     }
 
     private WeekAggregate getOrInitWeek(int closeTime) {
-        int ws = closeTime - (closeTime % WEEK_SECS);
-        int i = bisect(weeks.size(), (a) ->  Integer.compare(weeks.get(a).weekStart, ws));
+        // most flips land in an existing week, so find it by its time bounds before doing any time zone maths
+        int i = bisect(weeks.size(), (a) ->  weeks.get(a).weekEnd <= closeTime ? -1 : weeks.get(a).weekStart > closeTime ? 1 : 0);
         if (i >= 0){
-            WeekAggregate w = weeks.get(i);
-            w.pos = i;
-            return w;
-        }
-        WeekAggregate wf = new WeekAggregate();
-        wf.weekStart = ws;
-        wf.weekEnd = ws + WEEK_SECS;
-        wf.pos = -i-1;
-        weeks.add(wf.pos, wf);
+            return weeks.get(i);
+        }
+        WeekAggregate wf = new WeekAggregate(weekIndex(closeTime), timeZone);
+        weeks.add(-i-1, wf);
         return wf;
     }
 
-    class WeekAggregate {
+    static class WeekAggregate {
 
-        int pos; // note: only correct when returned by getOrInitWeek
-        int weekStart;
-        int weekEnd;
+        final int index;
+        final int weekStart;
+        final int weekEnd;
+        // start of each local day in the week, the last entry is the week end
+        final int[] dayStarts = new int[DayHourStats.DAYS + 1];
 
         Stats allStats = new Stats();
         Map<Integer, Stats> accountIdToStats = new HashMap<>(20);
-        Map<Integer, List<FlipV2>> accountIdToFlips = new HashMap<>(20);
-
-        void addFlip(FlipV2 flip) {
-            int accountId = flip.getAccountId();
-            allStats.addFlip(flip);
-            accountIdToStats.computeIfAbsent(accountId, (k) -> new Stats()).addFlip(flip);
-            List<FlipV2> flips = accountIdToFlips.computeIfAbsent(accountId, (k) -> new ArrayList<>());
-            int i = bisect(flips.size(), closedTimeCmp(flips, flip.getId(), flip.getClosedTime()));
-            flips.add(-i -1, flip);
-        }
-
-        FlipV2 removeFlip(UUID id, int closeTime, int accountId) {
-            List<FlipV2> flips = accountIdToFlips.computeIfAbsent(accountId, (k) -> new ArrayList<>());
-            int i = bisect(flips.size(), closedTimeCmp(flips, id, closeTime));
-            FlipV2 flip = flips.get(i);
-            allStats.subtractFlip(flip);
+        // null while the rows are spilled, read them through flips()
+        Map<Integer, FlipColumns> accountIdToFlips = new HashMap<>(20);
+        private WeekSpillStore spillStore;
+        private WeekSpillStore.Segment spilled;
+        DayHourStats allDayHourStats = new DayHourStats();
+        Map<Integer, DayHourStats> accountIdToDayHourStats = new HashMap<>(20);
+        Map<Integer, ItemStatsMap> accountIdToItemStats = new HashMap<>(20);
+
+        WeekAggregate(int index, ZoneId timeZone) {
+            this.index = index;
+            LocalDate monday = LocalDate.ofEpochDay(index * 7L - 3);
+            for (int d = 0; d <= DayHourStats.DAYS; d++) {
+                dayStarts[d] = (int) monday.plusDays(d).atStartOfDay(timeZone).toEpochSecond();
+            }
+            weekStart = dayStarts[0];
+            weekEnd = dayStarts[DayHourStats.DAYS];
+        }
+
+        void addFlip(FlipV2 flip, Stats flipStats) {
+            addFlipStats(flip.getAccountId(), flip.getClosedTime(), flip.getItemId(), flipStats);
+            residentFlips().computeIfAbsent(flip.getAccountId(), FlipColumns::new).insert(flip);
+        }
+
+        // used by the bulk merge which adds the week's rows already sorted, scratch receives the row's stats
+        void appendRow(FlipColumns src, int i, Stats scratch) {
+            scratch.profit = 0;
+            scratch.gross = 0;
+            scratch.taxPaid = 0;
+            scratch.flipsMade = 0;
+            src.addTo(i, scratch);
+            addFlipStats(src.accountId, src.closedTime(i), src.itemId(i), scratch);
+            residentFlips().computeIfAbsent(src.accountId, FlipColumns::new).appendRow(src, i);
+        }
+
+        private void addFlipStats(int accountId, int closedTime, int itemId, Stats flipStats) {
+            int day = dayOf(closedTime);
+            int hour = hourOf(day, closedTime);
+            allStats.add(flipStats);
+            accountIdToStats.computeIfAbsent(accountId, (k) -> new Stats()).add(flipStats);
+            allDayHourStats.add(day, hour, flipStats, 1);
+            accountIdToDayHourStats.computeIfAbsent(accountId, (k) -> new DayHourStats()).add(day, hour, flipStats, 1);
+            accountIdToItemStats.computeIfAbsent(accountId, (k) -> new ItemStatsMap()).add(itemId, flipStats, 1);
+        }
+
+        Stats removeFlip(UUID id, int closeTime, int accountId) {
+            FlipColumns flips = residentFlips().computeIfAbsent(accountId, FlipColumns::new);
+            int i = flips.search(closeTime, id.getMostSignificantBits(), id.getLeastSignificantBits());
+            int day = dayOf(closeTime);
+            int hour = hourOf(day, closeTime);
+            Stats removed = new Stats();
+            flips.addTo(i, removed);
+            allStats.subtract(removed);
+            accountIdToStats.get(accountId).subtract(removed);
+            allDayHourStats.add(day, hour, removed, -1);
+            accountIdToDayHourStats.get(accountId).add(day, hour, removed, -1);
+            accountIdToItemStats.get(accountId).add(flips.itemId(i), removed, -1);
             flips.remove(i);
-            accountIdToStats.get(accountId).subtractFlip(flip);
-            return flip;
+            return removed;
+        }
+
+        /**
+         * Returns the week's rows, read back from the spill file if the week is cold. The rows must not be modified.
+         * Throws an UncheckedIOException if they can't be read back.
+         */
+        Map<Integer, FlipColumns> flips() {
+            Map<Integer, FlipColumns> flips = accountIdToFlips;
+            if (flips != null) {
+                return flips;
+            }
+            try {
+                return spillStore.load(spilled);
+            } catch (IOException e) {
+                // an empty week would pass for one without flips, and be persisted as such by the next snapshot
+                throw new UncheckedIOException("error loading the spilled flips of " + this, e);
+            }
+        }
+
+        boolean isResident() {
+            return accountIdToFlips != null;
+        }
+
+        /**
+         * Moves the rows to the spill store, keeping only the stats on the heap. Returns false if writing failed, the
+         * week then stays resident.
+         */
+        boolean spill(WeekSpillStore store) {
+            try {
+                spilled = store.write(accountIdToFlips);
+            } catch (IOException e) {
+                log.warn("error spilling the flips of {}", this, e);
+                return false;
+            }
+            spillStore = store;
+            accountIdToFlips = null;
+            return true;
+        }
+
+        // called when the week is discarded so its segment can be reclaimed
+        void releaseSpill() {
+            if (spilled != null) {
+                spillStore.release(spilled);
+            }
+        }
+
+        void thaw() {
+            residentFlips();
+        }
+
+        // a cold week is made resident again before its rows are modified
+        private Map<Integer, FlipColumns> residentFlips() {
+            if (accountIdToFlips == null) {
+                try {
+                    accountIdToFlips = spillStore.take(spilled);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("error loading the spilled flips of " + this, e);
+                }
+                spillStore = null;
+                spilled = null;
+            }
+            return accountIdToFlips;
+        }
+
+        /**
+         * Returns the number of flips closed at or after the start time within this week, for the account or all
+         * accounts if null. The rows are only read when the start time falls inside the week.
+         */
+        int countFrom(int start, Integer accountId) {
+            if (start <= weekStart) {
+                Stats s = accountId == null ? allStats : accountIdToStats.get(accountId);
+                return s == null ? 0 : s.flipsMade;
+            }
+            int n = 0;
+            for (FlipColumns c : flips().values()) {
+                if (accountId == null || c.accountId == accountId) {
+                    n += c.size() - firstRowFrom(c, start);
+                }
+            }
+            return n;
+        }
+
+        int dayOf(int time) {
+            int d = DayHourStats.DAYS - 1;
+            while (d > 0 && dayStarts[d] > time) {
+                d--;
+            }
+            return d;
+        }
+
+        int hourOf(int day, int time) {
+            return Math.min((time - dayStarts[day]) / HOUR_SECS, DayHourStats.HOURS - 1);
         }
 
-        public List<FlipV2> flipsAfterForAccount(int time, int accountId) {
+        private int hourStart(int day, int hour) {
+            return Math.min(dayStarts[day] + hour * HOUR_SECS, dayStarts[day + 1]);
+        }
+
+        private int hoursIn(int day) {
+            return Math.min((dayStarts[day + 1] - dayStarts[day] + HOUR_SECS - 1) / HOUR_SECS, DayHourStats.HOURS);
+        }
+
+        /**
+         * Adds the stats of the flips closed in [start, end) within this week for the account (or all accounts if
+         * null). Whole days and hours come from the day/hour buckets, only the flips of the hours containing the
+         * range boundaries are scanned.
+         */
+        void addRangeStats(int start, int end, Integer accountId, Stats stats) {
+            start = Math.max(start, weekStart);
+            end = Math.min(end, weekEnd);
+            if (end <= start) {
+                return;
+            }
+            if (start == weekStart && end == weekEnd) {
+                stats.add(accountId == null ? allStats : accountIdToStats.get(accountId));
+                return;
+            }
+            DayHourStats dh = accountId == null ? allDayHourStats : accountIdToDayHourStats.get(accountId);
+            if (dh == null) {
+                return;
+            }
+            int startDay = dayOf(start);
+            int startHour = hourOf(startDay, start);
+            int endDay = end == weekEnd ? DayHourStats.DAYS : dayOf(end);
+            int endHour = end == weekEnd ? 0 : hourOf(endDay, end);
+            if (startDay == endDay && startHour == endHour) {
+                addRowStats(start, end, accountId, stats);
+                return;
+            }
+            addRowStats(start, hourStart(startDay, startHour + 1), accountId, stats);
+            if (startDay == endDay) {
+                for (int h = startHour + 1; h < endHour; h++) {
+                    dh.addHourTo(startDay, h, stats);
+                }
+            } else {
+                for (int h = startHour + 1; h < hoursIn(startDay); h++) {
+                    dh.addHourTo(startDay, h, stats);
+                }
+                for (int d = startDay + 1; d < endDay; d++) {
+                    dh.addDayTo(d, stats);
+                }
+                for (int h = 0; h < endHour && endDay < DayHourStats.DAYS; h++) {
+                    dh.addHourTo(endDay, h, stats);
+                }
+            }
+            if (endDay < DayHourStats.DAYS) {
+                addRowStats(hourStart(endDay, endHour), end, accountId, stats);
+            }
+        }
+
+        /**
+         * Adds the per-item stats of the flips closed at or after the start time within this week.
+         */
+        void addItemStats(int start, Integer accountId, ItemStatsMap into) {
+            if (start <= weekStart) {
+                accountIdToItemStats.forEach((id, items) -> {
+                    if (accountId == null || accountId.equals(id)) {
+                        into.addAll(items);
+                    }
+                });
+                return;
+            }
+            for (FlipColumns c : flips().values()) {
+                if (accountId == null || c.accountId == accountId) {
+                    for (int ii = firstRowFrom(c, start); ii < c.size(); ii++) {
+                        c.addTo(ii, into);
+                    }
+                }
+            }
+        }
+
+        private void addRowStats(int start, int end, Integer accountId, Stats stats) {
+            for (FlipColumns c : flips().values()) {
+                if (accountId == null || c.accountId == accountId) {
+                    int to = firstRowFrom(c, end);
+                    for (int ii = firstRowFrom(c, start); ii < to; ii++) {
+                        c.addTo(ii, stats);
+                    }
+                }
+            }
+        }
+
+        // index of the first row closed at or after the time
+        int firstRowFrom(FlipColumns flips, int time) {
             if (weekEnd <= time) {
-                return Collections.emptyList();
+                return flips.size();
             }
-            List<FlipV2> flips = accountIdToFlips.computeIfAbsent(accountId, (k) -> new ArrayList<>());
             if (time <= weekStart) {
-                return flips;
+                return 0;
             }
-            int cut = -bisect(flips.size(), closedTimeCmp(flips, FlipV2.MAX_UUID, time)) - 1;
-            return flips.subList(cut, flips.size());
+            return flips.lowerBound(time);
         }
 
-        public List<FlipV2> flipsAfter(int time, boolean requireSorted) {
-            if (weekEnd <= time) {
-                return Collections.emptyList();
+        /**
+         * Adds up to n flips listed after the cursor (newest first) that were closed at or after the start time, for
+         * the account or all accounts if null.
+         */
+        void addFlipsAfter(FlipCursor cursor, int start, Integer accountId, int n, List<FlipV2> into, IntFunction<String> itemNames) {
+            FlipRowMerge merge = mergeFrom(start, accountId);
+            for (int a = 0; a < merge.accounts(); a++) {
+                merge.seek(a, endRow(merge.columns(a), cursor));
             }
-            List<FlipV2> combinedFlips = new ArrayList<>(allStats.flipsMade);
-            accountIdToFlips.keySet().forEach(i -> combinedFlips.addAll(flipsAfterForAccount(time, i)));
-            if (requireSorted) {
-                combinedFlips.sort(Comparator.comparing(FlipV2::getClosedTime).thenComparing(FlipV2::getId));
+            for (; n > 0 && merge.previous(); n--) {
+                into.add(merge.column().get(merge.row(), itemNames));
             }
-            return combinedFlips;
+        }
+
+        /**
+         * Returns a merge of the rows closed at or after the start time, of the account or all accounts if null,
+         * positioned after the newest row.
+         */
+        FlipRowMerge mergeFrom(int start, Integer accountId) {
+            FlipColumns[] columns;
+            Map<Integer, FlipColumns> flips = flips();
+            if (accountId == null) {
+                columns = flips.values().toArray(new FlipColumns[0]);
+            } else {
+                FlipColumns c = flips.get(accountId);
+                columns = c == null ? new FlipColumns[0] : new FlipColumns[]{c};
+            }
+            int[] from = new int[columns.length];
+            int[] to = new int[columns.length];
+            for (int a = 0; a < columns.length; a++) {
+                from[a] = firstRowFrom(columns[a], start);
+                to[a] = columns[a].size();
+            }
+            return new FlipRowMerge(columns, from, to);
+        }
+
+        // index of the first row listed at or before the cursor, i.e. rows before it are listed after the cursor
+        private int endRow(FlipColumns flips, FlipCursor cursor) {
+            if (cursor == null) {
+                return flips.size();
+            }
+            if (cursor.getId() == null) {
+                return firstRowFrom(flips, cursor.getClosedTime());
+            }
+            int i = flips.search(cursor.getClosedTime(), cursor.getId().getMostSignificantBits(), cursor.getId().getLeastSignificantBits());
+            return i >= 0 ? i : -i - 1;
         }
 
         @Override
@@ -327,14 +1510,6 @@ public class FlipManager {
         }
     }
 
-    private Function<Integer, Integer> closedTimeCmp(List<FlipV2> flips, UUID id, int time) {
-        return (a) -> {
-            // sorts time ascending with id as tie-breaker
-            int c = Integer.compare(flips.get(a).getClosedTime(), time);
-            return c != 0 ? c : id.compareTo(flips.get(a).getId());
-        };
-    }
-
     private int bisect(int size, Function<Integer, Integer> cmpFunc) {
         int high = size -1;
         int low = 0;
@@ -0,0 +1,97 @@
+package com.flippingcopilot.model;
+
+/**
+ * Lazy k-way merge over row ranges of several accounts' {@link FlipColumns} within a week. Every account's rows are
+ * already sorted, so the merged order is produced by stepping per account positions rather than copying and sorting
+ * the week. Like a {@link java.util.ListIterator} the merge sits between two rows: {@link #next} steps forward in row
+ * order (oldest first) and {@link #previous} steps back, which is the newest first order of the flip log. Stepping
+ * allocates nothing, the row stepped over is exposed through {@link #column} and {@link #row}. There are only a
+ * handful of accounts so the next row is picked by a scan over the account heads instead of a heap.
+ */
+final class FlipRowMerge {
+
+    private final FlipColumns[] columns;
+    private final int[] from;
+    private final int[] to;
+    // rows [from, pos) of each account are before the merge position, rows [pos, to) after it
+    private final int[] pos;
+    private int column = -1;
+    private int row = -1;
+
+    /**
+     * Creates a merge over rows [from[a], to[a]) of each account's columns, positioned after the last row.
+     */
+    FlipRowMerge(FlipColumns[] columns, int[] from, int[] to) {
+        this.columns = columns;
+        this.from = from;
+        this.to = to;
+        this.pos = to.clone();
+    }
+
+    int accounts() {
+        return columns.length;
+    }
+
+    FlipColumns columns(int a) {
+        return columns[a];
+    }
+
+    int remainingBefore() {
+        int n = 0;
+        for (int a = 0; a < columns.length; a++) {
+            n += pos[a] - from[a];
+        }
+        return n;
+    }
+
+    /**
+     * Moves the position of an account, which must be within its range. Used to enter a week at a cursor.
+     */
+    void seek(int a, int position) {
+        pos[a] = Math.max(from[a], Math.min(position, to[a]));
+    }
+
+    boolean next() {
+        int next = -1;
+        for (int a = 0; a < columns.length; a++) {
+            if (pos[a] < to[a] && (next < 0 || columns[a].compareRows(pos[a], columns[next], pos[next]) < 0)) {
+                next = a;
+            }
+        }
+        if (next < 0) {
+            return false;
+        }
+        column = next;
+        row = pos[next]++;
+        return true;
+    }
+
+    boolean previous() {
+        int previous = -1;
+        for (int a = 0; a < columns.length; a++) {
+            if (pos[a] > from[a] && (previous < 0 || columns[a].compareRows(pos[a] - 1, columns[previous], pos[previous] - 1) > 0)) {
+                previous = a;
+            }
+        }
+        if (previous < 0) {
+            return false;
+        }
+        column = previous;
+        row = --pos[previous];
+        return true;
+    }
+
+    /**
+     * The columns of the row last stepped over.
+     */
+    FlipColumns column() {
+        return columns[column];
+    }
+
+    /**
+     * The index of the row last stepped over within {@link #column}.
+     */
+    int row() {
+        return row;
+    }
+}
@@ -0,0 +1,152 @@
+package com.flippingcopilot.model;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The flips of a copilot user persisted locally, along with the sync cursor: the time (epoch seconds) from which
+ * the server has to be asked for created or updated flips to bring the snapshot up to date. The time of the last full
+ * download is kept too, as a delta sync doesn't tell about flips deleted on the server.
+ * <p>
+ * The binary format is little endian:
+ * <pre>
+ * header:   magic int, version int, cursor int, full sync time int, account count int
+ * accounts: account id int, row count int, then the {@link FlipColumns} columns of the rows sorted by closed time
+ * names:    count int, then item id int, utf-8 byte length int, utf-8 bytes
+ * trailer:  CRC32 of everything before it as a long
+ * </pre>
+ * Each column is a block of fixed width values so the file is decoded with bulk copies rather than per flip
+ * parsing. A snapshot of another version or failing the checksum is rejected as a whole, the caller then falls back
+ * to a full download from the server.
+ */
+public class FlipSnapshot {
+
+    static final int MAGIC = 0x46435053;
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 5 * 4;
+    private static final int TRAILER_BYTES = 8;
+
+    @Getter
+    private final int cursor;
+    @Getter
+    private final int fullSyncTime;
+    final List<FlipColumns> accounts;
+    final Map<Integer, String> itemNames;
+
+    FlipSnapshot(int cursor, int fullSyncTime, List<FlipColumns> accounts, Map<Integer, String> itemNames) {
+        this.cursor = cursor;
+        this.fullSyncTime = fullSyncTime;
+        this.accounts = accounts;
+        this.itemNames = itemNames;
+    }
+
+    public int size() {
+        return accounts.stream().mapToInt(FlipColumns::size).sum();
+    }
+
+    /**
+     * Decodes a snapshot from the buffer. Throws IllegalArgumentException if the buffer is not a valid snapshot of the
+     * current version.
+     */
+    public static FlipSnapshot decode(ByteBuffer buf) {
+        buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int length = buf.remaining();
+        if (length < HEADER_BYTES + TRAILER_BYTES) {
+            throw new IllegalArgumentException("flip snapshot truncated");
+        }
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("not a version " + VERSION + " flip snapshot");
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buf.duplicate();
+        body.limit(length - TRAILER_BYTES);
+        crc.update(body);
+        if (crc.getValue() != buf.getLong(length - TRAILER_BYTES)) {
+            throw new IllegalArgumentException("flip snapshot checksum mismatch");
+        }
+
+        // counts are checked against the bytes left before allocating, a bad one could otherwise exhaust the heap
+        buf.limit(length - TRAILER_BYTES).position(8);
+        int cursor = buf.getInt();
+        int fullSyncTime = buf.getInt();
+        int accountCount = checkCount(buf.getInt(), 8, buf, "account");
+        List<FlipColumns> accounts = new ArrayList<>(accountCount);
+        for (int a = 0; a < accountCount; a++) {
+            int accountId = buf.getInt();
+            int n = checkCount(buf.getInt(), FlipColumns.ROW_BYTES, buf, "row");
+            accounts.add(FlipColumns.readColumns(accountId, n, buf));
+        }
+        int nameCount = checkCount(buf.getInt(), 8, buf, "item name");
+        Map<Integer, String> itemNames = new HashMap<>(nameCount * 4 / 3 + 1);
+        for (int i = 0; i < nameCount; i++) {
+            int itemId = buf.getInt();
+            byte[] name = new byte[checkCount(buf.getInt(), 1, buf, "name byte")];
+            buf.get(name);
+            itemNames.put(itemId, new String(name, StandardCharsets.UTF_8));
+        }
+        return new FlipSnapshot(cursor, fullSyncTime, accounts, itemNames);
+    }
+
+    public void encode(WritableByteChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = newBuffer(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(cursor).putInt(fullSyncTime).putInt(accounts.size());
+        write(channel, header, crc);
+        for (FlipColumns c : accounts) {
+            ByteBuffer rows = newBuffer(8 + c.size() * FlipColumns.ROW_BYTES);
+            rows.putInt(c.accountId).putInt(c.size());
+            c.writeColumns(rows);
+            write(channel, rows, crc);
+        }
+        List<Map.Entry<Integer, byte[]>> names = new ArrayList<>(itemNames.size());
+        int namesBytes = 4;
+        for (Map.Entry<Integer, String> e : itemNames.entrySet()) {
+            byte[] b = e.getValue().getBytes(StandardCharsets.UTF_8);
+            names.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), b));
+            namesBytes += 8 + b.length;
+        }
+        ByteBuffer namesBuf = newBuffer(namesBytes);
+        namesBuf.putInt(names.size());
+        for (Map.Entry<Integer, byte[]> e : names) {
+            namesBuf.putInt(e.getKey()).putInt(e.getValue().length).put(e.getValue());
+        }
+        write(channel, namesBuf, crc);
+        ByteBuffer trailer = newBuffer(TRAILER_BYTES);
+        trailer.putLong(crc.getValue());
+        trailer.flip();
+        while (trailer.hasRemaining()) {
+            channel.write(trailer);
+        }
+    }
+
+    private static int checkCount(int count, int bytesEach, ByteBuffer buf, String what) {
+        if (count < 0 || (long) count * bytesEach > buf.remaining()) {
+            throw new IllegalArgumentException("flip snapshot " + what + " count " + count + " exceeds the "
+                    + buf.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buf, CRC32 crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
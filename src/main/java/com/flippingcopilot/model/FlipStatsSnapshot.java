@@ -0,0 +1,22 @@
+package com.flippingcopilot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Immutable view of what the stats panel displays, published by {@link FlipManager} after every change so the UI
+ * can read it without taking the manager's lock. The version increases with every publish, a reader that saw the
+ * same version before can skip re-rendering. The stats must not be modified.
+ */
+@Getter
+@AllArgsConstructor
+public final class FlipStatsSnapshot {
+
+    private final long version;
+    private final String intervalDisplayName;
+    private final int intervalStartTime;
+    private final Stats intervalStats;
+    private final List<String> displayNameOptions;
+}
@@ -0,0 +1,24 @@
+package com.flippingcopilot.model;
+
+import lombok.Getter;
+
+import java.util.Comparator;
+
+/**
+ * Orderings for the item leaderboard, each comparator sorts the best ranked item first.
+ */
+@Getter
+public enum ItemSortKey {
+
+    PROFIT(Comparator.comparingLong((Stats s) -> s.profit).reversed()),
+    LOSS(Comparator.comparingLong((Stats s) -> s.profit)),
+    FLIPS(Comparator.comparingInt((Stats s) -> s.flipsMade).reversed()),
+    GROSS(Comparator.comparingLong((Stats s) -> s.gross).reversed()),
+    ROI(Comparator.comparingDouble(Stats::calculateRoi).reversed());
+
+    private final Comparator<Stats> comparator;
+
+    ItemSortKey(Comparator<Stats> comparator) {
+        this.comparator = comparator;
+    }
+}
@@ -0,0 +1,13 @@
+package com.flippingcopilot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class ItemStats {
+
+    private int itemId;
+    private String itemName;
+    private Stats stats;
+}
@@ -0,0 +1,122 @@
+package com.flippingcopilot.model;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map of item id to the stats of that item's flips. Keys and stats live in parallel primitive arrays
+ * so a week bucket with a few thousand distinct items costs a handful of arrays rather than a boxed map entry and
+ * {@link Stats} object per item, and two maps can be merged without allocating.
+ */
+final class ItemStatsMap {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int size;
+    private int[] itemIds;
+    private long[] profit;
+    private long[] gross;
+    private long[] taxPaid;
+    private int[] flipsMade;
+
+    ItemStatsMap() {
+        this(16);
+    }
+
+    ItemStatsMap(int expectedItems) {
+        allocate(Integer.highestOneBit(Math.max(expectedItems, 4) * 2 - 1) << 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Number of slots to iterate with {@link #itemId(int)} and friends, slots without an item have the id
+     * {@link Integer#MIN_VALUE}.
+     */
+    int capacity() {
+        return itemIds.length;
+    }
+
+    int itemId(int slot) {
+        return itemIds[slot];
+    }
+
+    int flipsMade(int slot) {
+        return flipsMade[slot];
+    }
+
+    void addTo(int slot, Stats into) {
+        into.profit += profit[slot];
+        into.gross += gross[slot];
+        into.taxPaid += taxPaid[slot];
+        into.flipsMade += flipsMade[slot];
+    }
+
+    void add(int itemId, Stats s, int sign) {
+        add(itemId, sign * s.profit, sign * s.gross, sign * s.taxPaid, sign * s.flipsMade);
+    }
+
+    void add(int itemId, long p, long g, long t, int f) {
+        int slot = slot(itemId);
+        profit[slot] += p;
+        gross[slot] += g;
+        taxPaid[slot] += t;
+        flipsMade[slot] += f;
+    }
+
+    void addAll(ItemStatsMap other) {
+        for (int i = 0; i < other.itemIds.length; i++) {
+            if (other.itemIds[i] != EMPTY) {
+                add(other.itemIds[i], other.profit[i], other.gross[i], other.taxPaid[i], other.flipsMade[i]);
+            }
+        }
+    }
+
+    private int slot(int itemId) {
+        int mask = itemIds.length - 1;
+        int i = mix(itemId) & mask;
+        while (itemIds[i] != itemId) {
+            if (itemIds[i] == EMPTY) {
+                if ((size + 1) * 2 > itemIds.length) {
+                    rehash(itemIds.length * 2);
+                    return slot(itemId);
+                }
+                itemIds[i] = itemId;
+                size++;
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldIds = itemIds;
+        long[] oldProfit = profit;
+        long[] oldGross = gross;
+        long[] oldTax = taxPaid;
+        int[] oldFlips = flipsMade;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != EMPTY) {
+                add(oldIds[i], oldProfit[i], oldGross[i], oldTax[i], oldFlips[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        itemIds = new int[capacity];
+        Arrays.fill(itemIds, EMPTY);
+        profit = new long[capacity];
+        gross = new long[capacity];
+        taxPaid = new long[capacity];
+        flipsMade = new int[capacity];
+    }
+}
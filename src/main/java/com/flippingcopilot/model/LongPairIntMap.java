@@ -0,0 +1,241 @@
+package com.flippingcopilot.model;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Open addressing hash map from a pair of longs, e.g. the two halves of a flip's UUID, to an int. Keys and values live
+ * in parallel primitive arrays probed linearly, so an entry costs ~20 bytes per slot instead of the UUID, boxed
+ * Integer and node objects (80+ bytes) of a {@code HashMap<UUID, Integer>}. Removal shifts the following entries of
+ * the probe run back rather than leaving tombstones. The all zero key can't mark an empty slot so it is held apart.
+ */
+final class LongPairIntMap {
+
+    static final int MISSING = Integer.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys1;
+    private long[] keys2;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+    private boolean hasZeroKey;
+    private int zeroKeyValue;
+
+    LongPairIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a map that holds the expected number of entries without resizing.
+     */
+    LongPairIntMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(UUID key) {
+        return get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+    }
+
+    /**
+     * Returns the value of the key or {@link #MISSING}.
+     */
+    int get(long k1, long k2) {
+        if (k1 == 0 && k2 == 0) {
+            return hasZeroKey ? zeroKeyValue : MISSING;
+        }
+        for (int slot = slot(k1, k2); ; slot = (slot + 1) & mask) {
+            if (keys1[slot] == k1 && keys2[slot] == k2) {
+                return values[slot];
+            }
+            if (keys1[slot] == 0 && keys2[slot] == 0) {
+                return MISSING;
+            }
+        }
+    }
+
+    int put(UUID key, int value) {
+        return put(key.getMostSignificantBits(), key.getLeastSignificantBits(), value);
+    }
+
+    /**
+     * Associates the value with the key, returning the previous value or {@link #MISSING}.
+     */
+    int put(long k1, long k2, int value) {
+        if (k1 == 0 && k2 == 0) {
+            int previous = hasZeroKey ? zeroKeyValue : MISSING;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroKeyValue = value;
+            return previous;
+        }
+        for (int slot = slot(k1, k2); ; slot = (slot + 1) & mask) {
+            if (keys1[slot] == k1 && keys2[slot] == k2) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            if (keys1[slot] == 0 && keys2[slot] == 0) {
+                keys1[slot] = k1;
+                keys2[slot] = k2;
+                values[slot] = value;
+                if (++size > resizeAt) {
+                    rehash(keys1.length * 2);
+                }
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * Removes the key, returning its value or {@link #MISSING}.
+     */
+    int remove(long k1, long k2) {
+        if (k1 == 0 && k2 == 0) {
+            if (!hasZeroKey) {
+                return MISSING;
+            }
+            hasZeroKey = false;
+            size--;
+            return zeroKeyValue;
+        }
+        for (int slot = slot(k1, k2); ; slot = (slot + 1) & mask) {
+            if (keys1[slot] == k1 && keys2[slot] == k2) {
+                int previous = values[slot];
+                shiftBack(slot);
+                size--;
+                return previous;
+            }
+            if (keys1[slot] == 0 && keys2[slot] == 0) {
+                return MISSING;
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys1, 0);
+        Arrays.fill(keys2, 0);
+        size = 0;
+        hasZeroKey = false;
+    }
+
+    void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, 0, zeroKeyValue);
+        }
+        for (int slot = 0; slot < keys1.length; slot++) {
+            if (keys1[slot] != 0 || keys2[slot] != 0) {
+                consumer.accept(keys1[slot], keys2[slot], values[slot]);
+            }
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(long k1, long k2, int value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LongPairIntMap) || ((LongPairIntMap) o).size != size) {
+            return false;
+        }
+        LongPairIntMap other = (LongPairIntMap) o;
+        boolean[] equal = {true};
+        forEach((k1, k2, value) -> equal[0] &= other.get(k1, k2) == value && (value != MISSING || other.containsKey(k1, k2)));
+        return equal[0];
+    }
+
+    @Override
+    public int hashCode() {
+        int[] h = {0};
+        forEach((k1, k2, value) -> h[0] += mix(k1, k2) ^ value);
+        return h[0];
+    }
+
+    private boolean containsKey(long k1, long k2) {
+        if (k1 == 0 && k2 == 0) {
+            return hasZeroKey;
+        }
+        for (int slot = slot(k1, k2); ; slot = (slot + 1) & mask) {
+            if (keys1[slot] == k1 && keys2[slot] == k2) {
+                return true;
+            }
+            if (keys1[slot] == 0 && keys2[slot] == 0) {
+                return false;
+            }
+        }
+    }
+
+    // moves later entries of the probe run into the freed slot so lookups never stop short of them
+    private void shiftBack(int free) {
+        for (int slot = (free + 1) & mask; keys1[slot] != 0 || keys2[slot] != 0; slot = (slot + 1) & mask) {
+            int home = slot(keys1[slot], keys2[slot]);
+            // the entry may move if its home slot is not cyclically within (free, slot]
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                keys1[free] = keys1[slot];
+                keys2[free] = keys2[slot];
+                values[free] = values[slot];
+                free = slot;
+            }
+        }
+        keys1[free] = 0;
+        keys2[free] = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys1 = keys1;
+        long[] oldKeys2 = keys2;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys1.length; i++) {
+            long k1 = oldKeys1[i];
+            long k2 = oldKeys2[i];
+            if (k1 != 0 || k2 != 0) {
+                int slot = slot(k1, k2);
+                while (keys1[slot] != 0 || keys2[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys1[slot] = k1;
+                keys2[slot] = k2;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys1 = new long[capacity];
+        keys2 = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 4 * 3;
+    }
+
+    private int slot(long k1, long k2) {
+        return mix(k1, k2) & mask;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long needed = Math.max(MIN_CAPACITY, (long) expectedSize * 4 / 3 + 1);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    // small keys such as account and item ids need mixing as much as the random bits of a UUID don't
+    private static int mix(long k1, long k2) {
+        long h = k1 * 0x9E3779B97F4A7C15L + k2;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,50 @@
+package com.flippingcopilot.model;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplicating pool of the item names and rs account display names carried by flips. Every flip decoded from the
+ * server brings its own copy of these strings, interning swaps them for one canonical instance per item id and
+ * account id so the copies can be collected straight away. A name that changed replaces the canonical one.
+ */
+@Singleton
+public class NameInterner {
+
+    private final Map<Integer, String> itemNames = new ConcurrentHashMap<>();
+    private final Map<Integer, String> displayNames = new ConcurrentHashMap<>();
+
+    public String itemName(int itemId, String name) {
+        return intern(itemNames, itemId, name);
+    }
+
+    public String displayName(int accountId, String name) {
+        return intern(displayNames, accountId, name);
+    }
+
+    /**
+     * Replaces the flip's names with their canonical instances.
+     */
+    public void intern(FlipV2 flip) {
+        flip.setItemName(itemName(flip.getItemId(), flip.getItemName()));
+        flip.setAccountDisplayName(displayName(flip.getAccountId(), flip.getAccountDisplayName()));
+    }
+
+    public void clear() {
+        itemNames.clear();
+        displayNames.clear();
+    }
+
+    private static String intern(Map<Integer, String> pool, int id, String name) {
+        if (name == null) {
+            return null;
+        }
+        String canonical = pool.get(id);
+        if (name.equals(canonical)) {
+            return canonical;
+        }
+        pool.put(id, name);
+        return name;
+    }
+}
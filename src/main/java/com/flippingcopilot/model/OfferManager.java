@@ -2,8 +2,6 @@ package com.flippingcopilot.model;
 
 import com.flippingcopilot.controller.Persistance;
 import com.google.gson.Gson;
-import com.google.gson.JsonIOException;
-import com.google.gson.JsonSyntaxException;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -12,11 +10,11 @@ import net.runelite.api.Client;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.io.*;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.ScheduledExecutorService;
 
 
 @Slf4j
@@ -24,11 +22,14 @@ import java.util.concurrent.ScheduledExecutorService;
 @RequiredArgsConstructor(onConstructor_ = @Inject)
 public class OfferManager {
 
-    private static final String OFFER_FILE_TEMPLATE = "acc_%d_%d.json";
+    private static final String OFFER_KEY_TEMPLATE = "offer/%d/%d";
+    // the files of earlier versions, moved into the state store when first loaded
+    private static final String OFFER_FILE_TEMPLATE = "acc_%d_%d.bin";
+    private static final String LEGACY_OFFER_FILE_TEMPLATE = "acc_%d_%d.json";
 
     // dependencies
     private final Gson gson;
-    private final ScheduledExecutorService executorService;
+    private final StateSaveScheduler stateSaveScheduler;
     private final Client client;
 
     // state
@@ -52,65 +53,55 @@ public class OfferManager {
     boolean offerJustPlaced = false;
 
     private final Map<Long, Map<Integer, SavedOffer>> cachedOffers = new HashMap<>();
-    private final Map<Long, Map<Integer, File>> files = new HashMap<>();
-    private final Map<Long, Map<Integer, SavedOffer>> lastSaved = new HashMap<>();
 
     public synchronized SavedOffer loadOffer(Long accountHash, Integer slot) {
         Map<Integer, SavedOffer> slotToOffer = cachedOffers.computeIfAbsent(accountHash, (k) -> new HashMap<>());
         return slotToOffer.computeIfAbsent(slot, (k) -> {
-            File file = getFile(accountHash, k);
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                return gson.fromJson(reader, SavedOffer.class);
-            } catch (FileNotFoundException ignored) {
+            String key = key(accountHash, k);
+            StateStore store = Persistance.stateStore();
+            byte[] value = store.get(key);
+            if (value == null) {
+                value = store.migrate(key, getLegacyFile(OFFER_FILE_TEMPLATE, accountHash, k), bytes -> bytes);
+            }
+            if (value == null) {
+                value = store.migrate(key, getLegacyFile(LEGACY_OFFER_FILE_TEMPLATE, accountHash, k), this::convertLegacyOffer);
+            }
+            if (value == null) {
                 return null;
-            } catch (JsonSyntaxException | JsonIOException | IOException e) {
-                log.warn("error loading saved offer json file {}", file, e);
+            }
+            try {
+                RecordCodec.Reader reader = new RecordCodec.Reader(ByteBuffer.wrap(value));
+                return reader.next() ? reader.savedOffer() : null;
+            } catch (IllegalArgumentException e) {
+                log.warn("error decoding saved offer {}", key, e);
                 return null;
             }
         });
     }
 
+    // the offers saved as json by earlier versions
+    private byte[] convertLegacyOffer(byte[] json) {
+        SavedOffer offer = gson.fromJson(new String(json, StandardCharsets.UTF_8), SavedOffer.class);
+        return offer == null ? null : RecordCodec.encode(offer);
+    }
+
     public synchronized void saveOffer(Long accountHash, Integer slot, SavedOffer offer) {
         Map<Integer, SavedOffer> slotToOffer = cachedOffers.computeIfAbsent(accountHash, (k) -> new HashMap<>());
         slotToOffer.put(slot, offer);
-        saveAsync(accountHash, slot);
+        stateSaveScheduler.save(key(accountHash, slot), () -> encodeOffer(accountHash, slot));
     }
 
-    private void saveAsync(Long accountHash, Integer slot) {
-        executorService.submit(() -> save(accountHash, slot));
+    // null removes the slot's offer from the store
+    private synchronized byte[] encodeOffer(Long accountHash, Integer slot) {
+        SavedOffer offer = loadOffer(accountHash, slot);
+        return offer == null ? null : RecordCodec.encode(offer);
     }
 
-    public synchronized void saveAll() {
-        for(Long accountHash: cachedOffers.keySet()) {
-            for(Integer slot: cachedOffers.get(accountHash).keySet()) {
-                save(accountHash, slot);
-            }
-        }
+    private static String key(Long accountHash, Integer slot) {
+        return String.format(OFFER_KEY_TEMPLATE, accountHash, slot);
     }
 
-    private void save(Long accountHash, Integer slot) {
-        File file = getFile(accountHash,slot);
-        synchronized (file) {
-            SavedOffer offer = loadOffer(accountHash, slot);
-            Map<Integer, SavedOffer> slotToLastSaved = lastSaved.computeIfAbsent(accountHash, (k)->new HashMap<>());
-            SavedOffer lastSaved = slotToLastSaved.get(slot);
-            if(!Objects.equals(offer, lastSaved)) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
-                    String json = gson.toJson(offer);
-                    writer.write(json);
-                    writer.newLine();
-                    slotToLastSaved.put(slot, offer);
-                } catch (IOException e) {
-                    log.warn("error saving offer json file {}", file, e);
-                    slotToLastSaved.put(slot, null);
-                }
-            }
-        }
-    }
-
-
-    private File getFile(Long accountHash, Integer slot) {
-        Map<Integer, File> slotToFile = files.computeIfAbsent(accountHash, (k) -> new HashMap<>());
-        return slotToFile.computeIfAbsent(slot, (k) -> new File(Persistance.PARENT_DIRECTORY, String.format(OFFER_FILE_TEMPLATE, accountHash, slot)));
+    private File getLegacyFile(String template, Long accountHash, Integer slot) {
+        return new File(Persistance.PARENT_DIRECTORY, String.format(template, accountHash, slot));
     }
 }
@@ -0,0 +1,67 @@
+package com.flippingcopilot.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last flip per account and item that still has an open position, used to estimate the profit of a new
+ * transaction. The (account id, item id) keys map to slots of a dense flip list, a removed flip's slot is filled by
+ * the last flip so the list never has holes.
+ */
+final class OpenFlipIndex {
+
+    private final LongPairIntMap slots = new LongPairIntMap();
+    private final List<FlipV2> flips = new ArrayList<>();
+
+    FlipV2 get(int accountId, int itemId) {
+        int slot = slots.get(accountId, itemId);
+        return slot == LongPairIntMap.MISSING ? null : flips.get(slot);
+    }
+
+    /**
+     * Indexes the flip if it has an open position, or drops the item's entry once the flip is closed.
+     */
+    void update(FlipV2 flip) {
+        if (flip.getClosedQuantity() < flip.getOpenedQuantity()) {
+            int slot = slots.put(flip.getAccountId(), flip.getItemId(), flips.size());
+            if (slot == LongPairIntMap.MISSING) {
+                flips.add(flip);
+            } else {
+                slots.put(flip.getAccountId(), flip.getItemId(), slot);
+                flips.set(slot, flip);
+            }
+        } else if (flip.isClosed()) {
+            removeItem(flip.getAccountId(), flip.getItemId());
+        }
+    }
+
+    /**
+     * Drops the item's entry if it is the flip, e.g. a flip that is discarded.
+     */
+    void remove(FlipV2 flip) {
+        FlipV2 indexed = get(flip.getAccountId(), flip.getItemId());
+        if (indexed != null && indexed.getId().equals(flip.getId())) {
+            removeItem(flip.getAccountId(), flip.getItemId());
+        }
+    }
+
+    private void removeItem(int accountId, int itemId) {
+        int slot = slots.remove(accountId, itemId);
+        if (slot != LongPairIntMap.MISSING) {
+            FlipV2 last = flips.remove(flips.size() - 1);
+            if (slot < flips.size()) {
+                flips.set(slot, last);
+                slots.put(last.getAccountId(), last.getItemId(), slot);
+            }
+        }
+    }
+
+    int size() {
+        return flips.size();
+    }
+
+    void clear() {
+        slots.clear();
+        flips.clear();
+    }
+}
@@ -2,75 +2,57 @@ package com.flippingcopilot.model;
 
 
 import com.flippingcopilot.controller.Persistance;
-import com.google.gson.JsonIOException;
-import com.google.gson.JsonSyntaxException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.io.*;
+import java.io.File;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ScheduledExecutorService;
 
 @Singleton
 @Slf4j
 @RequiredArgsConstructor(onConstructor_ = @Inject)
 public class PausedManager {
 
+    private static final String PAUSED_KEY_TEMPLATE = "paused/%d";
+    // the file of earlier versions, moved into the state store when first loaded
     private static final String PAUSED_FILE_TEMPLATE = "acc_%d_paused.json";
 
     // dependencies
     private final OsrsLoginManager osrsLoginManager;
-    private final ScheduledExecutorService executorService;
+    private final StateSaveScheduler stateSaveScheduler;
 
     // state
     private final Map<Long, Boolean> cachedPaused = new HashMap<>();
-    private final Map<Long, File> accountHashToFile = new HashMap<>();
 
     public synchronized boolean isPaused() {
         Long accountHash = osrsLoginManager.getAccountHash();
         return cachedPaused.computeIfAbsent(accountHash, (k) -> {
-            File file = getFile(k);
-            try {
-                String text = Files.readString(file.toPath(), StandardCharsets.UTF_8);
-                return text.contains("true");
-            } catch (NoSuchFileException e ){
-                return false;
-            } catch (JsonSyntaxException | JsonIOException | IOException e) {
-                log.warn("error loading stored paused state file {}", file, e);
-                return false;
+            String key = String.format(PAUSED_KEY_TEMPLATE, k);
+            StateStore store = Persistance.stateStore();
+            byte[] value = store.get(key);
+            if (value == null) {
+                File file = new File(Persistance.PARENT_DIRECTORY, String.format(PAUSED_FILE_TEMPLATE, k));
+                value = store.migrate(key, file, text -> encode(new String(text, StandardCharsets.UTF_8).contains("true")));
             }
+            return value != null && value.length == 1 && value[0] == 1;
         });
     }
 
     public synchronized void setPaused(boolean isPaused) {
         Long accountHash = osrsLoginManager.getAccountHash();
         cachedPaused.put(accountHash, isPaused);
-        saveAsync(accountHash);
-    }
-
-    private void saveAsync(Long accountHash) {
-        executorService.submit(() -> {
-            File file = getFile(accountHash);
-            synchronized (file) {
-                boolean isPaused = cachedPaused.getOrDefault(accountHash, false);
-                String text = isPaused ? "{\"isPaused\":true}" : "{\"isPaused\":false}";
-                try {
-                    Files.write(file.toPath(), text.getBytes());
-                } catch (IOException e) {
-                    log.warn("error storing paused.json file {}", file, e);
-                }
+        stateSaveScheduler.save(String.format(PAUSED_KEY_TEMPLATE, accountHash), () -> {
+            synchronized (this) {
+                return encode(cachedPaused.getOrDefault(accountHash, false));
             }
         });
     }
 
-    private File getFile(Long accountHash) {
-        return accountHashToFile.computeIfAbsent(accountHash,
-                (k) -> new File(Persistance.PARENT_DIRECTORY, String.format(PAUSED_FILE_TEMPLATE, accountHash)));
+    private static byte[] encode(boolean isPaused) {
+        return new byte[]{(byte) (isPaused ? 1 : 0)};
     }
-}
\ No newline at end of file
+}
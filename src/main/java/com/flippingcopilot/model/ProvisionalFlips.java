@@ -0,0 +1,222 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.util.GeTax;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Transactions the server hasn't acknowledged yet, applied locally on top of the server's flips so the stats move as
+ * soon as an offer fills. Each transaction is matched to the account's open flip of the item: a buy adds to it (or
+ * opens a new, locally identified flip) and a sell closes its oldest open quantity first. A flip holds a single lot
+ * per item whose cost is tracked as a total, so first-in first-out closing prices the sold units at the lot's average
+ * cost just like the server does. The server's version of every flip changed this way is kept as its baseline, so
+ * {@link FlipManager} can put the baselines back, merge the server's flips and replay what is still pending.
+ */
+final class ProvisionalFlips {
+
+    // unacknowledged transactions in the order they happened, with the account they were made on
+    final List<Pending> pending = new ArrayList<>();
+    // unacknowledged transactions of display names the server hasn't told the account id of yet
+    final Map<String, List<Transaction>> unresolved = new LinkedHashMap<>();
+    // by flip id, in the order the flips were first changed
+    final Map<UUID, Change> changes = new LinkedHashMap<>();
+    // every transaction taken in or acknowledged since the last clear, so none is applied twice
+    private final Set<UUID> seen = new HashSet<>();
+
+    boolean isEmpty() {
+        return pending.isEmpty() && changes.isEmpty();
+    }
+
+    /**
+     * Adds the transaction of the account as the latest pending one, unless it was taken in or acknowledged before.
+     * Returns false for such a duplicate.
+     */
+    boolean addPending(int accountId, String displayName, Transaction t) {
+        if (!seen.add(t.getId())) {
+            return false;
+        }
+        pending.add(new Pending(accountId, displayName, t));
+        return true;
+    }
+
+    /**
+     * Keeps the transaction until its account id is known, unless it was taken in or acknowledged before. Returns
+     * false for such a duplicate.
+     */
+    boolean addUnresolved(String displayName, Transaction t) {
+        if (!seen.add(t.getId())) {
+            return false;
+        }
+        unresolved.computeIfAbsent(displayName, k -> new ArrayList<>()).add(t);
+        return true;
+    }
+
+    /**
+     * Moves the pending transactions of the account back to the unresolved ones, e.g. once its stand-in id is dropped.
+     */
+    void unresolve(int accountId) {
+        pending.removeIf(p -> {
+            if (p.accountId != accountId) {
+                return false;
+            }
+            unresolved.computeIfAbsent(p.displayName, k -> new ArrayList<>()).add(p.transaction);
+            return true;
+        });
+    }
+
+    /**
+     * Moves the unresolved transactions of the display names the function knows the account id of to the pending
+     * ones, keeping those in the order the transactions happened. Returns whether any were moved.
+     */
+    boolean resolve(Function<String, Integer> accountIds) {
+        boolean resolved = false;
+        Iterator<Map.Entry<String, List<Transaction>>> it = unresolved.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<Transaction>> e = it.next();
+            Integer accountId = accountIds.apply(e.getKey());
+            if (accountId == null || accountId == -1) {
+                continue;
+            }
+            it.remove();
+            for (Transaction t : e.getValue()) {
+                pending.add(new Pending(accountId, e.getKey(), t));
+            }
+            resolved = true;
+        }
+        if (resolved) {
+            pending.sort(Comparator.comparing((Pending p) -> p.transaction.getTimestamp(), Comparator.nullsFirst(Comparator.naturalOrder())));
+        }
+        return resolved;
+    }
+
+    Set<UUID> unacknowledgedIds() {
+        Set<UUID> ids = new HashSet<>();
+        pending.forEach(p -> ids.add(p.transaction.getId()));
+        unresolved.values().forEach(l -> l.forEach(t -> ids.add(t.getId())));
+        return ids;
+    }
+
+    void acknowledge(Collection<Transaction> acked) {
+        Set<UUID> ids = new HashSet<>();
+        acked.forEach(t -> ids.add(t.getId()));
+        seen.addAll(ids);
+        pending.removeIf(p -> ids.contains(p.transaction.getId()));
+        unresolved.values().forEach(l -> l.removeIf(t -> ids.contains(t.getId())));
+        unresolved.values().removeIf(List::isEmpty);
+    }
+
+    void clear() {
+        pending.clear();
+        unresolved.clear();
+        changes.clear();
+        seen.clear();
+    }
+
+    /**
+     * Records that the flip is now the provisional version of the flip with the same id, whose server version was
+     * the baseline (null if the flip was opened locally).
+     */
+    void record(FlipV2 baseline, FlipV2 provisional) {
+        Change c = changes.get(provisional.getId());
+        if (c == null) {
+            changes.put(provisional.getId(), new Change(baseline, provisional));
+        } else {
+            c.provisional = provisional;
+        }
+    }
+
+    /**
+     * Returns the open flip updated by the transaction, or null if the transaction doesn't match a flip (a sell
+     * without an open position). The open flip itself is not modified.
+     */
+    static FlipV2 apply(FlipV2 open, int accountId, Transaction t, String itemName) {
+        int time = (int) t.getTimestamp().getEpochSecond();
+        if (t.getType() == OfferStatus.BUY) {
+            FlipV2 f;
+            if (open == null) {
+                f = new FlipV2();
+                f.setId(UUID.randomUUID());
+                f.setAccountId(accountId);
+                f.setItemId(t.getItemId());
+                f.setItemName(itemName);
+                f.setOpenedTime(time);
+                f.setClosedTime(time);
+            } else {
+                f = copy(open);
+            }
+            f.setOpenedQuantity(f.getOpenedQuantity() + t.getQuantity());
+            f.setSpent(f.getSpent() + t.getAmountSpent());
+            return f;
+        }
+        if (open == null || t.getQuantity() <= 0) {
+            return null;
+        }
+        int amountToClose = Math.min(open.getOpenedQuantity() - open.getClosedQuantity(), t.getQuantity());
+        if (amountToClose <= 0) {
+            return null;
+        }
+        int sellPrice = t.getAmountSpent() / t.getQuantity();
+        int sellPricePostTax = GeTax.getPostTaxPrice(t.getItemId(), sellPrice);
+        FlipV2 f = copy(open);
+        f.setClosedQuantity(open.getClosedQuantity() + amountToClose);
+        f.setReceivedPostTax(open.getReceivedPostTax() + (long) amountToClose * sellPricePostTax);
+        f.setTaxPaid(open.getTaxPaid() + (long) amountToClose * (sellPrice - sellPricePostTax));
+        f.setProfit(f.getReceivedPostTax() - f.getSpent() * f.getClosedQuantity() / f.getOpenedQuantity());
+        f.setClosedTime(time);
+        f.setClosed(f.getClosedQuantity() >= f.getOpenedQuantity());
+        return f;
+    }
+
+    private static FlipV2 copy(FlipV2 flip) {
+        FlipV2 f = new FlipV2();
+        f.setId(flip.getId());
+        f.setAccountId(flip.getAccountId());
+        f.setItemId(flip.getItemId());
+        f.setItemName(flip.getItemName());
+        f.setOpenedTime(flip.getOpenedTime());
+        f.setOpenedQuantity(flip.getOpenedQuantity());
+        f.setSpent(flip.getSpent());
+        f.setClosedTime(flip.getClosedTime());
+        f.setClosedQuantity(flip.getClosedQuantity());
+        f.setReceivedPostTax(flip.getReceivedPostTax());
+        f.setProfit(flip.getProfit());
+        f.setTaxPaid(flip.getTaxPaid());
+        f.setClosed(flip.isClosed());
+        f.setAccountDisplayName(flip.getAccountDisplayName());
+        return f;
+    }
+
+    static final class Pending {
+
+        final int accountId;
+        final String displayName;
+        final Transaction transaction;
+
+        Pending(int accountId, String displayName, Transaction transaction) {
+            this.accountId = accountId;
+            this.displayName = displayName;
+            this.transaction = transaction;
+        }
+    }
+
+    static final class Change {
+
+        final FlipV2 baseline;
+        FlipV2 provisional;
+
+        Change(FlipV2 baseline, FlipV2 provisional) {
+            this.baseline = baseline;
+            this.provisional = provisional;
+        }
+    }
+}
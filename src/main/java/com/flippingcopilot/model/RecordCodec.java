@@ -0,0 +1,405 @@
+package com.flippingcopilot.model;
+
+import net.runelite.api.GrandExchangeOfferState;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary records for the locally persisted transactions and offers, replacing a reflective json line per
+ * record. Each record is framed as
+ * <pre>
+ * length  varint, the size of the rest of the record
+ * type    byte, TRANSACTION, ACK, GENERATION, SAVED_OFFER or ENTRY
+ * version byte, the layout version of the type
+ * payload ints as zigzag varints, ids as two fixed longs, booleans packed into a flags byte
+ * </pre>
+ * A transaction takes around 45 bytes against some 250 as json. The length prefix lets a reader skip record types
+ * and versions it doesn't know, and tells a torn last record of a crash mid write from a complete one. Enums are
+ * written as fixed codes rather than ordinals so reordering the enum can't change the meaning of stored records, with
+ * a code of its own for null.
+ */
+public final class RecordCodec {
+
+    public static final byte TRANSACTION = 1;
+    public static final byte ACK = 2;
+    public static final byte GENERATION = 3;
+    public static final byte SAVED_OFFER = 4;
+    public static final byte ENTRY = 5;
+
+    private static final byte TRANSACTION_VERSION = 1;
+    private static final byte ID_VERSION = 1;
+    private static final byte SAVED_OFFER_VERSION = 1;
+    private static final byte ENTRY_VERSION = 1;
+
+    // new codes go at the end, null included
+    private static final OfferStatus[] OFFER_STATUS_CODES = {OfferStatus.EMPTY, OfferStatus.BUY, OfferStatus.SELL, null};
+    private static final GrandExchangeOfferState[] OFFER_STATE_CODES = {GrandExchangeOfferState.EMPTY,
+            GrandExchangeOfferState.CANCELLED_BUY, GrandExchangeOfferState.CANCELLED_SELL, GrandExchangeOfferState.BUYING,
+            GrandExchangeOfferState.BOUGHT, GrandExchangeOfferState.SELLING, GrandExchangeOfferState.SOLD, null};
+
+    private RecordCodec() {
+    }
+
+    public static byte[] encode(Transaction t) {
+        Out out = new Out(TRANSACTION, TRANSACTION_VERSION);
+        out.putUuid(t.getId());
+        out.putByte(code(OFFER_STATUS_CODES, t.getType()));
+        out.putInt(t.getItemId());
+        out.putInt(t.getPrice());
+        out.putInt(t.getQuantity());
+        out.putInt(t.getBoxId());
+        out.putInt(t.getAmountSpent());
+        out.putInt(t.getOfferTotalQuantity());
+        Instant ts = t.getTimestamp();
+        out.putByte(ts == null ? 0 : 1);
+        if (ts != null) {
+            out.putLong(ts.getEpochSecond());
+            out.putInt(ts.getNano());
+        }
+        out.putByte((t.isCopilotPriceUsed() ? 1 : 0) | (t.isLogin() ? 2 : 0) | (t.isConsistent() ? 4 : 0));
+        return out.finish();
+    }
+
+    public static byte[] encodeAck(UUID transactionId) {
+        return encodeId(ACK, transactionId);
+    }
+
+    public static byte[] encodeGeneration(UUID generation) {
+        return encodeId(GENERATION, generation);
+    }
+
+    public static byte[] encode(SavedOffer o) {
+        Out out = new Out(SAVED_OFFER, SAVED_OFFER_VERSION);
+        out.putInt(o.getItemId());
+        out.putInt(o.getQuantitySold());
+        out.putInt(o.getTotalQuantity());
+        out.putInt(o.getPrice());
+        out.putInt(o.getSpent());
+        out.putByte(code(OFFER_STATE_CODES, o.getState()));
+        out.putByte(o.isCopilotPriceUsed() ? 1 : 0);
+        return out.finish();
+    }
+
+    /**
+     * A key value entry of the {@link StateStore}, a null value records the removal of the key.
+     */
+    public static byte[] encodeEntry(String key, byte[] value) {
+        Out out = new Out(ENTRY, ENTRY_VERSION);
+        out.putBytes(key.getBytes(StandardCharsets.UTF_8));
+        out.putByte(value == null ? 0 : 1);
+        if (value != null) {
+            out.putBytes(value);
+        }
+        return out.finish();
+    }
+
+    private static byte[] encodeId(byte type, UUID id) {
+        Out out = new Out(type, ID_VERSION);
+        out.putUuid(id);
+        return out.finish();
+    }
+
+    /**
+     * Iterates the records of a buffer. {@link #next} stops at the end of the buffer and at a torn last record, which
+     * {@link #isTorn} then reports. A record that is complete but can't be decoded throws an
+     * {@link IllegalArgumentException}.
+     */
+    public static final class Reader {
+
+        private final ByteBuffer buf;
+        private int recordStart;
+        private int recordEnd;
+        private byte type;
+        private byte version;
+        private boolean torn;
+
+        public Reader(ByteBuffer buf) {
+            this.buf = buf;
+            this.recordEnd = buf.position();
+        }
+
+        /**
+         * Moves to the next record, returns false if there is no complete one left.
+         */
+        public boolean next() {
+            buf.position(recordEnd);
+            recordStart = recordEnd;
+            if (!buf.hasRemaining()) {
+                return false;
+            }
+            long length;
+            try {
+                length = readVarLong(buf);
+            } catch (BufferUnderflowException e) {
+                torn = true;
+                return false;
+            }
+            if (length < 2 || length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("bad record length " + length + " at " + recordStart);
+            }
+            if (buf.remaining() < length) {
+                torn = true;
+                return false;
+            }
+            recordEnd = buf.position() + (int) length;
+            type = buf.get();
+            version = buf.get();
+            return true;
+        }
+
+        public boolean isTorn() {
+            return torn;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        /**
+         * Whether this reader knows the layout of the current record, unknown ones are meant to be skipped.
+         */
+        public boolean isKnown() {
+            switch (type) {
+                case TRANSACTION:
+                    return version == TRANSACTION_VERSION;
+                case ACK:
+                case GENERATION:
+                    return version == ID_VERSION;
+                case SAVED_OFFER:
+                    return version == SAVED_OFFER_VERSION;
+                case ENTRY:
+                    return version == ENTRY_VERSION;
+                default:
+                    return false;
+            }
+        }
+
+        public int recordStart() {
+            return recordStart;
+        }
+
+        public int recordEnd() {
+            return recordEnd;
+        }
+
+        public Transaction transaction() {
+            expect(TRANSACTION);
+            try {
+                Transaction t = new Transaction();
+                t.setId(readUuid());
+                t.setType(decode(OFFER_STATUS_CODES, buf.get()));
+                t.setItemId(readInt());
+                t.setPrice(readInt());
+                t.setQuantity(readInt());
+                t.setBoxId(readInt());
+                t.setAmountSpent(readInt());
+                t.setOfferTotalQuantity(readInt());
+                if (buf.get() != 0) {
+                    long seconds = readVarLong(buf);
+                    t.setTimestamp(Instant.ofEpochSecond(zigzag(seconds), readInt()));
+                }
+                byte flags = buf.get();
+                t.setCopilotPriceUsed((flags & 1) != 0);
+                t.setLogin((flags & 2) != 0);
+                t.setConsistent((flags & 4) != 0);
+                return t;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("transaction record overruns its length at " + recordStart);
+            }
+        }
+
+        /**
+         * The id of an ACK or GENERATION record.
+         */
+        public UUID id() {
+            if (type != ACK && type != GENERATION) {
+                throw new IllegalArgumentException("record at " + recordStart + " has no id");
+            }
+            try {
+                return readUuid();
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("id record overruns its length at " + recordStart);
+            }
+        }
+
+        public SavedOffer savedOffer() {
+            expect(SAVED_OFFER);
+            try {
+                SavedOffer o = new SavedOffer();
+                o.setItemId(readInt());
+                o.setQuantitySold(readInt());
+                o.setTotalQuantity(readInt());
+                o.setPrice(readInt());
+                o.setSpent(readInt());
+                o.setState(decode(OFFER_STATE_CODES, buf.get()));
+                o.setCopilotPriceUsed(buf.get() != 0);
+                return o;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("saved offer record overruns its length at " + recordStart);
+            }
+        }
+
+        /**
+         * The key and value of an ENTRY record, the value is null for a removal.
+         */
+        public Map.Entry<String, byte[]> entry() {
+            expect(ENTRY);
+            try {
+                String key = new String(readBytes(), StandardCharsets.UTF_8);
+                byte[] value = buf.get() == 0 ? null : readBytes();
+                check();
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("entry record overruns its length at " + recordStart);
+            }
+        }
+
+        private void expect(byte expected) {
+            if (type != expected || !isKnown()) {
+                throw new IllegalArgumentException("record at " + recordStart + " is of type " + type + " version " + version);
+            }
+            buf.position(recordStart);
+            readVarLong(buf);
+            buf.position(buf.position() + 2);
+        }
+
+        private UUID readUuid() {
+            long msb = buf.getLong();
+            long lsb = buf.getLong();
+            check();
+            return msb == 0 && lsb == 0 ? null : new UUID(msb, lsb);
+        }
+
+        private byte[] readBytes() {
+            long length = readVarLong(buf);
+            if (length < 0 || length > recordEnd - buf.position()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] bytes = new byte[(int) length];
+            buf.get(bytes);
+            return bytes;
+        }
+
+        private int readInt() {
+            int v = (int) zigzag(readVarLong(buf));
+            check();
+            return v;
+        }
+
+        // a value read past the record's end belongs to the next record
+        private void check() {
+            if (buf.position() > recordEnd) {
+                throw new BufferUnderflowException();
+            }
+        }
+    }
+
+    private static long readVarLong(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    private static long zigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static <T> byte code(T[] codes, T value) {
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == value) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("no code for enum value " + value);
+    }
+
+    private static <T> T decode(T[] codes, byte code) {
+        if (code < 0 || code >= codes.length) {
+            throw new IllegalArgumentException("unknown enum code " + code);
+        }
+        return codes[code];
+    }
+
+    // builds one record, the length prefix is put in front once the body is complete
+    private static final class Out {
+
+        private byte[] body = new byte[48];
+        private int size;
+
+        Out(byte type, byte version) {
+            putByte(type);
+            putByte(version);
+        }
+
+        void putByte(int b) {
+            if (size == body.length) {
+                body = Arrays.copyOf(body, size * 2);
+            }
+            body[size++] = (byte) b;
+        }
+
+        void putInt(int v) {
+            putVarLong(((v << 1) ^ (v >> 31)) & 0xffffffffL);
+        }
+
+        void putLong(long v) {
+            putVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void putUuid(UUID id) {
+            long msb = id == null ? 0 : id.getMostSignificantBits();
+            long lsb = id == null ? 0 : id.getLeastSignificantBits();
+            for (int i = 56; i >= 0; i -= 8) {
+                putByte((int) (msb >>> i));
+            }
+            for (int i = 56; i >= 0; i -= 8) {
+                putByte((int) (lsb >>> i));
+            }
+        }
+
+        void putBytes(byte[] bytes) {
+            putVarLong(bytes.length);
+            if (size + bytes.length > body.length) {
+                body = Arrays.copyOf(body, Math.max(body.length * 2, size + bytes.length));
+            }
+            System.arraycopy(bytes, 0, body, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void putVarLong(long v) {
+            while ((v & ~0x7fL) != 0) {
+                putByte((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            putByte((int) v);
+        }
+
+        byte[] finish() {
+            byte[] prefix = new byte[10];
+            int n = 0;
+            long v = size;
+            while ((v & ~0x7fL) != 0) {
+                prefix[n++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            prefix[n++] = (byte) v;
+            byte[] record = new byte[n + size];
+            System.arraycopy(prefix, 0, record, 0, n);
+            System.arraycopy(body, 0, record, n, size);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package com.flippingcopilot.model;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An account's log of all transactions, split into a segment of {@link RecordCodec} records per calendar month (UTC)
+ * of the transaction times. Segments live in a directory of their own:
+ * <pre>
+ * &lt;month start&gt;.seg     the records, the newest segment without an index is the one appended to
+ * &lt;month start&gt;.idx     the index written when the segment is sealed
+ * &lt;month start&gt;.seg.gz  the records of a sealed segment when sealed segments are compressed
+ * </pre>
+ * A transaction of a later month than the active segment seals it and starts a new one, a late transaction of an
+ * earlier month goes to the active segment. The index of a sealed segment holds its time range, the item ids in it
+ * and a sparse time to offset table, so range and item queries skip the segments that can't match and start reading
+ * a matching one near the range start.
+ * <p>
+ * The active segment's channel is kept open and appends write at its end. Clients running side by side share the
+ * directory: every append takes a lock on a lock file, indexes the records other clients appended since and cuts off a
+ * torn last record of a crash mid write before writing.
+ */
+@Slf4j
+public final class SegmentedTransactionLog implements Closeable {
+
+    // a sparse index entry per this many records of a segment
+    static final int SPARSE_INTERVAL = 256;
+    private static final int IMPORT_BATCH = 4096;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPRESSED_SUFFIX = ".seg.gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)\\.(seg|seg\\.gz|idx)");
+    // file locks are held by the whole JVM, the instances of one JVM on a directory take turns on a monitor first
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final boolean compressSealed;
+    private final Object monitor;
+    private final Map<Long, SegmentIndex> sealedIndexes = new HashMap<>();
+    private FileChannel lockChannel;
+    private FileChannel active;
+    private long activeKey;
+    private SegmentIndex activeIndex;
+    // segment files opened by queries, to check they only read the segments that can match
+    private int segmentsRead;
+
+    public SegmentedTransactionLog(File dir, boolean compressSealed) {
+        this.dir = dir;
+        this.compressSealed = compressSealed;
+        this.monitor = MONITORS.computeIfAbsent(dir.toPath().toAbsolutePath(), k -> new Object());
+    }
+
+    public void append(Transaction t) {
+        append(List.of(t));
+    }
+
+    public void append(List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return;
+        }
+        synchronized (monitor) {
+            try (FileLock ignored = lockChannel().lock()) {
+                appendLocked(transactions);
+            } catch (IOException e) {
+                log.warn("error appending to transaction log {}", dir, e);
+                closeActive();
+            }
+        }
+    }
+
+    /**
+     * Appends the transactions the source passes to its consumer if the log has no segments yet, used to move the
+     * transactions of an earlier log file into it. Returns false if they could not all be appended.
+     */
+    public boolean importIfEmpty(Consumer<Consumer<Transaction>> source) {
+        synchronized (monitor) {
+            try (FileLock ignored = lockChannel().lock()) {
+                if (!segmentKeys().isEmpty()) {
+                    return true;
+                }
+                List<Transaction> batch = new ArrayList<>(IMPORT_BATCH);
+                IOException[] error = new IOException[1];
+                source.accept(t -> {
+                    batch.add(t);
+                    if (batch.size() == IMPORT_BATCH && error[0] == null) {
+                        try {
+                            appendLocked(batch);
+                        } catch (IOException e) {
+                            error[0] = e;
+                        }
+                        batch.clear();
+                    }
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+                appendLocked(batch);
+                return true;
+            } catch (IOException e) {
+                log.warn("error importing into transaction log {}", dir, e);
+                closeActive();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Streams all logged transactions to the consumer, segment by segment in the order they were appended. Returns the
+     * number of transactions read.
+     */
+    public int readAll(Consumer<Transaction> consumer) {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, -1, consumer);
+    }
+
+    /**
+     * Streams the logged transactions of times (epoch seconds) from inclusive to exclusive to the consumer.
+     */
+    public int readRange(long from, long to, Consumer<Transaction> consumer) {
+        return read(from, to, -1, consumer);
+    }
+
+    /**
+     * Streams the logged transactions of the item to the consumer.
+     */
+    public int readItem(int itemId, Consumer<Transaction> consumer) {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, itemId, consumer);
+    }
+
+    int segmentsRead() {
+        synchronized (monitor) {
+            return segmentsRead;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (monitor) {
+            closeActive();
+            if (lockChannel != null) {
+                closeQuietly(lockChannel);
+                lockChannel = null;
+            }
+        }
+    }
+
+    private void appendLocked(List<Transaction> transactions) throws IOException {
+        int from = 0;
+        while (from < transactions.size()) {
+            prepareActive(monthStart(time(transactions.get(from))));
+            // the run of transactions that go to the active segment, a later month one rotates it
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            List<Long> offsets = new ArrayList<>();
+            int to = from;
+            while (to < transactions.size() && monthStart(time(transactions.get(to))) <= activeKey) {
+                offsets.add(activeIndex.end + records.size());
+                byte[] record = RecordCodec.encode(transactions.get(to));
+                records.write(record, 0, record.length);
+                to++;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(records.toByteArray());
+            long position = activeIndex.end;
+            while (buf.hasRemaining()) {
+                position += active.write(buf, position);
+            }
+            for (int i = from; i < to; i++) {
+                activeIndex.add(transactions.get(i), offsets.get(i - from));
+            }
+            activeIndex.end = position;
+            from = to;
+        }
+    }
+
+    // makes the active segment the one a transaction of the month goes to, caught up with other clients' appends
+    private void prepareActive(long month) throws IOException {
+        if (active != null && indexFile(activeKey).exists()) {
+            // sealed by another client
+            closeActive();
+        }
+        if (active == null) {
+            openNewest();
+        } else {
+            catchUp();
+        }
+        if (active != null && month > activeKey) {
+            seal();
+        }
+        if (active == null) {
+            TreeSet<Long> keys = segmentKeys();
+            long newest = keys.isEmpty() ? Long.MIN_VALUE : keys.last();
+            long key = month > newest ? month : nextMonth(newest);
+            active = FileChannel.open(segmentFile(key).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            activeKey = key;
+            activeIndex = new SegmentIndex();
+            catchUp();
+        }
+    }
+
+    private void openNewest() throws IOException {
+        TreeSet<Long> keys = segmentKeys();
+        if (keys.isEmpty()) {
+            return;
+        }
+        long newest = keys.last();
+        if (indexFile(newest).exists()) {
+            finishSeal(newest);
+            return;
+        }
+        active = FileChannel.open(segmentFile(newest).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeKey = newest;
+        activeIndex = new SegmentIndex();
+        catchUp();
+    }
+
+    // indexes the records appended since this client last wrote, and cuts off a torn last record
+    private void catchUp() throws IOException {
+        long size = active.size();
+        if (size == activeIndex.end) {
+            return;
+        }
+        if (size < activeIndex.end) {
+            activeIndex = new SegmentIndex();
+        }
+        long start = activeIndex.end;
+        // read rather than mapped, a mapping would keep the segment from being truncated on some platforms
+        ByteBuffer buf = ByteBuffer.allocate((int) (size - start));
+        while (buf.hasRemaining() && active.read(buf, start + buf.position()) >= 0) {
+            // until the end read above
+        }
+        buf.flip();
+        RecordCodec.Reader reader = new RecordCodec.Reader(buf);
+        try {
+            while (reader.next()) {
+                if (reader.type() == RecordCodec.TRANSACTION && reader.isKnown()) {
+                    try {
+                        activeIndex.add(reader.transaction(), start + reader.recordStart());
+                    } catch (IllegalArgumentException e) {
+                        log.warn("error decoding transaction record at {} of segment {}", start + reader.recordStart(), segmentFile(activeKey), e);
+                    }
+                }
+                activeIndex.end = start + reader.recordEnd();
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("error reading record at {} of segment {}", activeIndex.end, segmentFile(activeKey), e);
+        }
+        if (activeIndex.end < size) {
+            log.warn("truncating segment {} from {} to {} bytes", segmentFile(activeKey), size, activeIndex.end);
+            active.truncate(activeIndex.end);
+        }
+    }
+
+    private void seal() throws IOException {
+        File index = indexFile(activeKey);
+        Path tmp = index.toPath().resolveSibling(index.getName() + ".tmp");
+        Files.write(tmp, activeIndex.encode());
+        Files.move(tmp, index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sealedIndexes.put(activeKey, activeIndex);
+        long key = activeKey;
+        closeActive();
+        finishSeal(key);
+    }
+
+    // compresses a sealed segment, also completing a compression cut short by a crash
+    private void finishSeal(long key) {
+        File segment = segmentFile(key);
+        File compressed = compressedFile(key);
+        if (!segment.exists() || (!compressSealed && !compressed.exists())) {
+            return;
+        }
+        try {
+            if (!compressed.exists()) {
+                Path tmp = compressed.toPath().resolveSibling(compressed.getName() + ".tmp");
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+                    Files.copy(segment.toPath(), out);
+                }
+                Files.move(tmp, compressed.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.deleteIfExists(segment.toPath());
+        } catch (IOException e) {
+            // the uncompressed segment stays readable, the compression is retried when it's next the newest
+            log.warn("error compressing segment {}", segment, e);
+        }
+    }
+
+    private int read(long from, long to, int itemId, Consumer<Transaction> consumer) {
+        synchronized (monitor) {
+            int n = 0;
+            for (long key : segmentKeys()) {
+                SegmentIndex index = sealedIndex(key);
+                if (index != null && !index.matches(from, to, itemId)) {
+                    continue;
+                }
+                ByteBuffer buf = segmentBytes(key);
+                if (buf == null) {
+                    continue;
+                }
+                segmentsRead++;
+                if (index != null) {
+                    buf.position((int) index.seek(from));
+                }
+                n += readRecords(buf, key, from, to, itemId, consumer);
+            }
+            return n;
+        }
+    }
+
+    private int readRecords(ByteBuffer buf, long key, long from, long to, int itemId, Consumer<Transaction> consumer) {
+        int n = 0;
+        RecordCodec.Reader reader = new RecordCodec.Reader(buf);
+        try {
+            while (reader.next()) {
+                if (reader.type() != RecordCodec.TRANSACTION || !reader.isKnown()) {
+                    continue;
+                }
+                Transaction t;
+                try {
+                    t = reader.transaction();
+                } catch (IllegalArgumentException e) {
+                    log.warn("error decoding transaction record at {} of segment {} in {}", reader.recordStart(), key, dir, e);
+                    continue;
+                }
+                long time = time(t);
+                if (time >= from && time < to && (itemId < 0 || t.getItemId() == itemId)) {
+                    consumer.accept(t);
+                    n++;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("error reading record at {} of segment {} in {}", reader.recordStart(), key, dir, e);
+        }
+        return n;
+    }
+
+    // the records of a segment, inflated if it's compressed. A segment is at most a month of transactions so it's read
+    // whole, mapping it would keep other clients from compressing or truncating it on some platforms
+    private ByteBuffer segmentBytes(long key) {
+        try {
+            try {
+                return ByteBuffer.wrap(Files.readAllBytes(segmentFile(key).toPath()));
+            } catch (NoSuchFileException e) {
+                // compressed, or compressed by another client just now
+            }
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(compressedFile(key).toPath()), 1 << 16)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[1 << 16];
+                int r;
+                while ((r = in.read(chunk)) > 0) {
+                    out.write(chunk, 0, r);
+                }
+                return ByteBuffer.wrap(out.toByteArray());
+            }
+        } catch (NoSuchFileException e) {
+            // an index without records, nothing to read
+            return null;
+        } catch (IOException e) {
+            log.warn("error reading segment {} in {}", key, dir, e);
+            return null;
+        }
+    }
+
+    // the index of a sealed segment, null for the active one or if the index can't be read
+    private SegmentIndex sealedIndex(long key) {
+        SegmentIndex index = sealedIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        File file = indexFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            index = SegmentIndex.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            sealedIndexes.put(key, index);
+            return index;
+        } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            log.warn("error reading segment index {}, the segment is read in full", file, e);
+            return null;
+        }
+    }
+
+    private TreeSet<Long> segmentKeys() {
+        TreeSet<Long> keys = new TreeSet<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher m = FILE_NAME.matcher(name);
+                if (m.matches()) {
+                    keys.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        return keys;
+    }
+
+    private FileChannel lockChannel() throws IOException {
+        if (lockChannel == null) {
+            Files.createDirectories(dir.toPath());
+            lockChannel = FileChannel.open(new File(dir, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return lockChannel;
+    }
+
+    private void closeActive() {
+        if (active != null) {
+            closeQuietly(active);
+            active = null;
+            activeIndex = null;
+        }
+    }
+
+    private File segmentFile(long key) {
+        return new File(dir, key + SEGMENT_SUFFIX);
+    }
+
+    private File compressedFile(long key) {
+        return new File(dir, key + COMPRESSED_SUFFIX);
+    }
+
+    private File indexFile(long key) {
+        return new File(dir, key + INDEX_SUFFIX);
+    }
+
+    private static long time(Transaction t) {
+        return t.getTimestamp() == null ? 0 : t.getTimestamp().getEpochSecond();
+    }
+
+    static long monthStart(long epochSecond) {
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(epochSecond, 86400));
+        return date.withDayOfMonth(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    private static long nextMonth(long monthStart) {
+        return LocalDate.ofEpochDay(Math.floorDiv(monthStart, 86400)).withDayOfMonth(1).plusMonths(1)
+                .atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("error closing transaction log channel", e);
+        }
+    }
+
+    /**
+     * The time range, item ids and sparse time to offset table of a segment. Entry i of the table is the offset of
+     * record i * {@link #SPARSE_INTERVAL} along with the latest time of the records before it, so a range query starts
+     * at the last entry whose earlier records all precede the range, however out of order late transactions were
+     * appended. The binary format is little endian:
+     * <pre>
+     * header:  magic int, version int, record count int, end long, min time long, max time long
+     * items:   count int, then the item ids as ints
+     * entries: count int, then offset long and latest earlier time long pairs
+     * trailer: CRC32 of everything before it as a long
+     * </pre>
+     */
+    static final class SegmentIndex {
+
+        static final int MAGIC = 0x46435849;
+        static final int VERSION = 1;
+
+        private int count;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private final BitSet items = new BitSet();
+        private long[] offsets = new long[4];
+        private long[] latestBefore = new long[4];
+        private int entries;
+        // the bytes of complete records
+        long end;
+
+        void add(Transaction t, long offset) {
+            if (count % SPARSE_INTERVAL == 0) {
+                if (entries == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, entries * 2);
+                    latestBefore = Arrays.copyOf(latestBefore, entries * 2);
+                }
+                offsets[entries] = offset;
+                latestBefore[entries] = maxTime;
+                entries++;
+            }
+            long time = time(t);
+            count++;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            if (t.getItemId() >= 0) {
+                items.set(t.getItemId());
+            }
+        }
+
+        boolean matches(long from, long to, int itemId) {
+            return count > 0 && minTime < to && maxTime >= from && (itemId < 0 || items.get(itemId));
+        }
+
+        long seek(long from) {
+            long offset = 0;
+            for (int i = 0; i < entries && latestBefore[i] < from; i++) {
+                offset = offsets[i];
+            }
+            return offset;
+        }
+
+        byte[] encode() {
+            ByteBuffer buf = ByteBuffer.allocate(36 + 4 + items.cardinality() * 4 + 4 + entries * 16 + 8).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(count).putLong(end).putLong(minTime).putLong(maxTime);
+            buf.putInt(items.cardinality());
+            for (int id = items.nextSetBit(0); id >= 0; id = items.nextSetBit(id + 1)) {
+                buf.putInt(id);
+            }
+            buf.putInt(entries);
+            for (int i = 0; i < entries; i++) {
+                buf.putLong(offsets[i]).putLong(latestBefore[i]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.position());
+            buf.putLong(crc.getValue());
+            return buf.array();
+        }
+
+        static SegmentIndex decode(ByteBuffer buf) {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.remaining() < 52 || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("not a version " + VERSION + " segment index");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, buf.limit() - 8);
+            if (buf.getLong(buf.limit() - 8) != crc.getValue()) {
+                throw new IllegalArgumentException("segment index checksum mismatch");
+            }
+            buf.position(8);
+            SegmentIndex index = new SegmentIndex();
+            index.count = buf.getInt();
+            index.end = buf.getLong();
+            index.minTime = buf.getLong();
+            index.maxTime = buf.getLong();
+            int itemCount = buf.getInt();
+            for (int i = 0; i < itemCount; i++) {
+                index.items.set(buf.getInt());
+            }
+            index.entries = buf.getInt();
+            index.offsets = new long[Math.max(index.entries, 1)];
+            index.latestBefore = new long[Math.max(index.entries, 1)];
+            for (int i = 0; i < index.entries; i++) {
+                index.offsets[i] = buf.getLong();
+                index.latestBefore[i] = buf.getLong();
+            }
+            return index;
+        }
+    }
+}
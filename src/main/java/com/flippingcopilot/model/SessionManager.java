@@ -2,34 +2,33 @@ package com.flippingcopilot.model;
 
 import com.flippingcopilot.controller.Persistance;
 import com.google.gson.Gson;
-import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.io.*;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledExecutorService;
 
 @Singleton
 @Slf4j
 @RequiredArgsConstructor(onConstructor_ = @Inject)
 public class SessionManager {
 
+    public static final String SESSION_DATA_KEY_TEMPLATE = "session/%s";
+    // the file of earlier versions, moved into the state store when first loaded
     public static final String SESSION_DATA_FILE_TEMPLATE = "%s_session_data.jsonl";
 
     private final OsrsLoginManager osrsLoginManager;
-    private final ScheduledExecutorService executorService;
+    private final StateSaveScheduler stateSaveScheduler;
     private final Gson gson;
 
     private final Map<String, SessionData> cachedSessionData =  new HashMap<>();
-    private final Map<String, File> displayNameToFile = new HashMap<>();
 
     private Instant lastSessionUpdateTime;
 
@@ -65,41 +64,39 @@ public class SessionManager {
         }
     }
 
+    // updated every second while flipping, the scheduler writes the latest stats once per save window
     private void saveAsync(String displayName) {
-        executorService.submit(() -> {
-            File file = getFile(displayName);
-            synchronized (file) {
+        stateSaveScheduler.save(key(displayName), () -> {
+            synchronized (this) {
                 SessionData data = cachedSessionData.computeIfAbsent(displayName, this::load);
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
-                    String json = gson.toJson(data);
-                    writer.write(json);
-                    writer.newLine();
-                } catch (IOException e) {
-                    log.warn("error storing session data to file {}", file, e);
-                }
+                return gson.toJson(data).getBytes(StandardCharsets.UTF_8);
             }
         });
     }
 
-     private SessionData load(String displayName) {
-        File file = getFile(displayName);
-        if (!file.exists()) {
-            return new SessionData((int) Instant.now().getEpochSecond(), 0 ,0);
+    private SessionData load(String displayName) {
+        String key = key(displayName);
+        StateStore store = Persistance.stateStore();
+        byte[] value = store.get(key);
+        if (value == null) {
+            File file = new File(Persistance.PARENT_DIRECTORY, String.format(SESSION_DATA_FILE_TEMPLATE, Persistance.hashDisplayName(displayName)));
+            value = store.migrate(key, file, json -> json);
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            SessionData sd =  gson.fromJson(reader, SessionData.class);
-            if (sd != null) {
-                return sd;
+        if (value != null) {
+            try {
+                SessionData sd = gson.fromJson(new String(value, StandardCharsets.UTF_8), SessionData.class);
+                if (sd != null) {
+                    return sd;
+                }
+            } catch (JsonSyntaxException e) {
+                log.warn("error loading session data {}", key, e);
             }
-        } catch (JsonSyntaxException | JsonIOException | IOException e) {
-            log.warn("error loading session data json file {}", file, e);
         }
         return new SessionData((int) Instant.now().getEpochSecond(), 0 ,0);
     }
 
-    private File getFile(String displayName) {
-        return displayNameToFile.computeIfAbsent(displayName,
-                (k) -> new File(Persistance.PARENT_DIRECTORY, String.format(SESSION_DATA_FILE_TEMPLATE, Persistance.hashDisplayName(displayName))));
+    private static String key(String displayName) {
+        return String.format(SESSION_DATA_KEY_TEMPLATE, Persistance.hashDisplayName(displayName));
     }
 
     private SessionData getSessionData(String displayName) {
@@ -0,0 +1,108 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.Persistance;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Defers the saves of hot updated state to the {@link StateStore}. A save marks its key dirty along with a supplier of
+ * the value, and the dirty keys are written together once the save window has passed since the first of them was
+ * marked. Marking a key again within the window only replaces its supplier, so the session stats updated every second
+ * or an offer updated on each fill of a burst are written once per window. The supplier is called when the key is
+ * written, so it should read the latest state under the owner's lock and return null to remove the key.
+ * <p>
+ * {@link #flush} writes the dirty keys straight away, the plugin calls it on shut down so no save is lost.
+ */
+@Slf4j
+@Singleton
+public class StateSaveScheduler {
+
+    static final long DEFAULT_WINDOW_MILLIS = 5000;
+
+    private final ScheduledExecutorService executorService;
+    // writes take turns, so an older value of a key can't be written after a newer one
+    private final Object flushLock = new Object();
+
+    // guarded by this
+    private Map<String, Supplier<byte[]>> dirty = new LinkedHashMap<>();
+    private boolean scheduled;
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private long saves;
+    private long coalesced;
+    private long writes;
+
+    @Inject
+    public StateSaveScheduler(ScheduledExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public synchronized void setWindowMillis(long windowMillis) {
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+
+    /**
+     * Marks the key to be written with the value of the supplier at the end of the save window.
+     */
+    public synchronized void save(String key, Supplier<byte[]> value) {
+        saves++;
+        if (dirty.put(key, value) != null) {
+            coalesced++;
+        }
+        if (!scheduled) {
+            scheduled = true;
+            executorService.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the dirty keys now.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Supplier<byte[]>> toWrite;
+            synchronized (this) {
+                toWrite = dirty;
+                dirty = new LinkedHashMap<>();
+                scheduled = false;
+            }
+            StateStore store = Persistance.stateStore();
+            for (Map.Entry<String, Supplier<byte[]>> e : toWrite.entrySet()) {
+                try {
+                    byte[] value = e.getValue().get();
+                    if (value == null) {
+                        store.remove(e.getKey());
+                    } else {
+                        store.put(e.getKey(), value);
+                    }
+                } catch (RuntimeException ex) {
+                    log.warn("error saving state {}", e.getKey(), ex);
+                }
+            }
+            synchronized (this) {
+                writes += toWrite.size();
+            }
+        }
+    }
+
+    public synchronized long getSaves() {
+        return saves;
+    }
+
+    /**
+     * The saves that didn't cost a write as a later save of the same key replaced them.
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+}
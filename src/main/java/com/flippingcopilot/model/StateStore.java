@@ -0,0 +1,292 @@
+package com.flippingcopilot.model;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Small key value store for the plugin's state: the saved offers, paused flags, suggestion preferences and session
+ * stats that used to be a json file each. Every put appends a {@link RecordCodec} entry record to a single log file and
+ * updates an in memory map of the latest value per key, so a burst of offer updates costs an append each rather than
+ * a file rewrite each. Opening replays the log, a torn last record of a crash mid write is cut off. Once the log is
+ * more than twice the size of the latest records it is rewritten with just those, replacing the old file in one step.
+ * <p>
+ * Clients running side by side share the file. Writes take an exclusive lock on a sidecar lock file, which also holds
+ * the number of times the log was rewritten. Under the lock a client reads the records other clients appended since it
+ * last looked, or the whole log again if it was rewritten meanwhile, before appending. Reads are served from memory,
+ * so they see another client's writes as of this client's last write, as the per file state did.
+ */
+@Slf4j
+public final class StateStore implements Closeable {
+
+    // rewriting a small log isn't worth it
+    static final int COMPACT_MIN_BYTES = 64 * 1024;
+    // file locks are held by the whole JVM, the instances of one JVM on a file take turns on a monitor first
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final Path lockFile;
+    private final Object monitor;
+    private final Map<String, byte[]> values = new HashMap<>();
+    // the size of each key's latest record, the bytes a rewrite would keep
+    private final Map<String, Integer> recordSizes = new HashMap<>();
+    private long liveBytes;
+    private FileChannel lockChannel;
+    private FileChannel channel;
+    // how far the log has been read, and the rewrite count it was read at
+    private long end;
+    private long generation;
+
+    public StateStore(File file) {
+        this.file = file;
+        this.lockFile = file.toPath().resolveSibling(file.getName() + ".lock").toAbsolutePath();
+        this.monitor = MONITORS.computeIfAbsent(lockFile, k -> new Object());
+    }
+
+    /**
+     * The latest value of the key, or null if it has none. The returned array must not be modified.
+     */
+    public byte[] get(String key) {
+        synchronized (monitor) {
+            if (channel == null) {
+                try (FileLock ignored = lockChannel().lock()) {
+                    refresh();
+                } catch (IOException e) {
+                    log.warn("error reading state store {}", file, e);
+                    closeChannel();
+                }
+            }
+            return values.get(key);
+        }
+    }
+
+    /**
+     * Sets the value of the key, a value equal to the current one isn't written again. Returns false if the value
+     * could not be written.
+     */
+    public boolean put(String key, byte[] value) {
+        return write(key, value);
+    }
+
+    public boolean remove(String key) {
+        return write(key, null);
+    }
+
+    /**
+     * Moves the state of a file of earlier versions into the key, unless the file doesn't exist. The converter turns
+     * the file's bytes into the value, returning null if there is nothing worth keeping. The file is deleted once the
+     * value is stored. Returns the value, or null if there was none.
+     */
+    public byte[] migrate(String key, File legacyFile, Function<byte[], byte[]> converter) {
+        if (!legacyFile.exists()) {
+            return null;
+        }
+        byte[] value;
+        try {
+            value = converter.apply(Files.readAllBytes(legacyFile.toPath()));
+        } catch (IOException | RuntimeException e) {
+            log.warn("error migrating {} into state store {}", legacyFile, file, e);
+            return null;
+        }
+        if (value != null && !put(key, value)) {
+            return value;
+        }
+        if (!legacyFile.delete()) {
+            log.warn("unable to delete migrated file {}", legacyFile);
+        }
+        return value;
+    }
+
+    // the bytes of the log as of the last look, to check when it's rewritten
+    long logSize() {
+        synchronized (monitor) {
+            return end;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (monitor) {
+            closeChannel();
+            if (lockChannel != null) {
+                closeQuietly(lockChannel);
+                lockChannel = null;
+            }
+        }
+    }
+
+    private boolean write(String key, byte[] value) {
+        synchronized (monitor) {
+            try (FileLock ignored = lockChannel().lock()) {
+                refresh();
+                if (Arrays.equals(values.get(key), value)) {
+                    return true;
+                }
+                byte[] record = RecordCodec.encodeEntry(key, value);
+                ByteBuffer buf = ByteBuffer.wrap(record);
+                long position = end;
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+                end = position;
+                apply(key, value, record.length);
+                if (end >= COMPACT_MIN_BYTES && end > liveBytes * 2) {
+                    compact();
+                }
+                return true;
+            } catch (IOException e) {
+                log.warn("error writing {} to state store {}", key, file, e);
+                closeChannel();
+                return false;
+            }
+        }
+    }
+
+    // reads what other clients appended since the last look, or the whole log again if it was rewritten meanwhile
+    private void refresh() throws IOException {
+        long current = readGeneration();
+        if (channel == null || current != generation) {
+            closeChannel();
+            values.clear();
+            recordSizes.clear();
+            liveBytes = 0;
+            end = 0;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            generation = current;
+        }
+        long size = channel.size();
+        if (size <= end) {
+            return;
+        }
+        long start = end;
+        // read rather than mapped, a mapping would keep the log from being truncated or replaced on some platforms
+        ByteBuffer buf = ByteBuffer.allocate((int) (size - start));
+        while (buf.hasRemaining() && channel.read(buf, start + buf.position()) >= 0) {
+            // until the end read above
+        }
+        buf.flip();
+        RecordCodec.Reader reader = new RecordCodec.Reader(buf);
+        try {
+            while (reader.next()) {
+                if (reader.type() == RecordCodec.ENTRY && reader.isKnown()) {
+                    try {
+                        Map.Entry<String, byte[]> entry = reader.entry();
+                        apply(entry.getKey(), entry.getValue(), reader.recordEnd() - reader.recordStart());
+                    } catch (IllegalArgumentException e) {
+                        log.warn("error decoding entry record at {} of state store {}", start + reader.recordStart(), file, e);
+                    }
+                }
+                end = start + reader.recordEnd();
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("error reading record at {} of state store {}", end, file, e);
+        }
+        if (end < size) {
+            // the next append would otherwise be read as the rest of the torn record
+            log.warn("truncating state store {} from {} to {} bytes", file, size, end);
+            channel.truncate(end);
+        }
+    }
+
+    private void apply(String key, byte[] value, int recordSize) {
+        Integer previous;
+        if (value == null) {
+            values.remove(key);
+            previous = recordSizes.remove(key);
+        } else {
+            values.put(key, value);
+            previous = recordSizes.put(key, recordSize);
+            liveBytes += recordSize;
+        }
+        if (previous != null) {
+            liveBytes -= previous;
+        }
+    }
+
+    private void compact() {
+        Path tmp = file.toPath().resolveSibling(file.getName() + ".tmp");
+        try {
+            long size = writeLatest(tmp);
+            // some platforms refuse to replace a file this process has open
+            closeChannel();
+            // counted before the move, so a crash between the two can only cause a needless re-read, never leave
+            // another client appending to the replaced file
+            writeGeneration(++generation);
+            // replace the log in one step so a crash mid rewrite leaves the old records intact
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            end = size;
+            liveBytes = size;
+        } catch (IOException e) {
+            // the next operation reads the log again, whichever file it ended up as
+            log.warn("error compacting state store {}", file, e);
+            closeChannel();
+        }
+    }
+
+    private long writeLatest(Path tmp) throws IOException {
+        long size = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, byte[]> e : values.entrySet()) {
+                ByteBuffer buf = ByteBuffer.wrap(RecordCodec.encodeEntry(e.getKey(), e.getValue()));
+                while (buf.hasRemaining()) {
+                    size += out.write(buf);
+                }
+            }
+            out.force(false);
+        }
+        return size;
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES);
+        while (buf.hasRemaining() && lockChannel.read(buf, buf.position()) >= 0) {
+            // until the end of the lock file
+        }
+        return buf.position() == Long.BYTES ? buf.getLong(0) : 0;
+    }
+
+    private void writeGeneration(long g) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES).putLong(0, g);
+        while (buf.hasRemaining()) {
+            lockChannel.write(buf, buf.position());
+        }
+    }
+
+    private FileChannel lockChannel() throws IOException {
+        if (lockChannel == null) {
+            Files.createDirectories(lockFile.getParent());
+            lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return lockChannel;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("error closing state store channel", e);
+        }
+    }
+}
@@ -34,6 +34,15 @@ public class Stats {
         }
     }
 
+    public void subtract(Stats s) {
+        if(s != null) {
+            profit -= s.profit;
+            gross -= s.gross;
+            taxPaid -= s.taxPaid;
+            flipsMade -= s.flipsMade;
+        }
+    }
+
     public void addFlip(FlipV2 f) {
         profit += f.getProfit();
         gross += f.getSpent();
@@ -0,0 +1,90 @@
+package com.flippingcopilot.model;
+
+/**
+ * Fenwick (binary indexed) tree of {@link Stats} keyed by bucket index. Supports adding a flip's stats to a bucket
+ * and summing any contiguous range of buckets in O(log n), which lets FlipManager answer arbitrary time ranges
+ * without walking every bucket in between.
+ */
+final class StatsFenwickTree {
+
+    private long[] profit;
+    private long[] gross;
+    private long[] taxPaid;
+    private int[] flipsMade;
+
+    StatsFenwickTree(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1);
+    }
+
+    int capacity() {
+        return profit.length - 1;
+    }
+
+    void add(int index, Stats s) {
+        add(index, s.profit, s.gross, s.taxPaid, s.flipsMade);
+    }
+
+    void subtract(int index, Stats s) {
+        add(index, -s.profit, -s.gross, -s.taxPaid, -s.flipsMade);
+    }
+
+    void add(int index, long p, long g, long t, int f) {
+        if (index >= capacity()) {
+            grow(index + 1);
+        }
+        for (int i = index + 1; i < profit.length; i += i & -i) {
+            profit[i] += p;
+            gross[i] += g;
+            taxPaid[i] += t;
+            flipsMade[i] += f;
+        }
+    }
+
+    /**
+     * Adds the sum of the buckets in the range [from, to) to the provided stats.
+     */
+    void addRange(int from, int to, Stats into) {
+        to = Math.min(to, capacity());
+        if (to <= from) {
+            return;
+        }
+        addPrefix(to, into, 1);
+        addPrefix(from, into, -1);
+    }
+
+    private void addPrefix(int end, Stats into, int sign) {
+        for (int i = end; i > 0; i -= i & -i) {
+            into.profit += sign * profit[i];
+            into.gross += sign * gross[i];
+            into.taxPaid += sign * taxPaid[i];
+            into.flipsMade += sign * flipsMade[i];
+        }
+    }
+
+    private void grow(int required) {
+        int n = capacity();
+        long[] p = new long[n];
+        long[] g = new long[n];
+        long[] t = new long[n];
+        int[] f = new int[n];
+        for (int i = 0; i < n; i++) {
+            Stats s = new Stats();
+            addRange(i, i + 1, s);
+            p[i] = s.profit;
+            g[i] = s.gross;
+            t[i] = s.taxPaid;
+            f[i] = s.flipsMade;
+        }
+        allocate(Integer.highestOneBit(required - 1) << 1);
+        for (int i = 0; i < n; i++) {
+            add(i, p[i], g[i], t[i], f[i]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        profit = new long[capacity + 1];
+        gross = new long[capacity + 1];
+        taxPaid = new long[capacity + 1];
+        flipsMade = new int[capacity + 1];
+    }
+}
@@ -3,7 +3,6 @@ package com.flippingcopilot.model;
 import com.flippingcopilot.controller.Persistance;
 import com.flippingcopilot.ui.FuzzySearchScorer;
 import com.google.gson.Gson;
-import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -14,9 +13,9 @@ import org.apache.commons.lang3.tuple.Pair;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.io.*;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -27,6 +26,8 @@ import java.util.stream.IntStream;
 @RequiredArgsConstructor(onConstructor_ = @Inject)
 public class SuggestionPreferencesManager {
 
+    private static final String SUGGESTION_PREFERENCES_KEY_TEMPLATE = "preferences/%d";
+    // the file of earlier versions, moved into the state store when first loaded
     private static final String SUGGESTION_PREFERENCES_FILE_TEMPLATE = "acc_%d_preferences.json";
 
     // dependencies
@@ -35,11 +36,10 @@ public class SuggestionPreferencesManager {
     private final FuzzySearchScorer fuzzySearchScorer;
     private final Client client;
     private final ItemManager itemManager;
-    private final ScheduledExecutorService executorService;
+    private final StateSaveScheduler stateSaveScheduler;
 
     // state
     private final Map<Long, SuggestionPreferences> cached = new HashMap<>();
-    private final Map<Long, File> accountHashToFile = new HashMap<>();
     
     public synchronized SuggestionPreferences getPreferences() {
         Long accountHash = osrsLoginManager.getAccountHash();
@@ -211,20 +211,28 @@ public class SuggestionPreferencesManager {
     }
 
     private SuggestionPreferences load(Long accountHash) {
-        File file = getFile(accountHash);
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            return gson.fromJson(reader, SuggestionPreferences.class);
-        } catch (FileNotFoundException ignored) {
+        String key = String.format(SUGGESTION_PREFERENCES_KEY_TEMPLATE, accountHash);
+        StateStore store = Persistance.stateStore();
+        byte[] value = store.get(key);
+        if (value == null) {
+            File file = new File(Persistance.PARENT_DIRECTORY, String.format(SUGGESTION_PREFERENCES_FILE_TEMPLATE, accountHash));
+            value = store.migrate(key, file, json -> json);
+        }
+        if (value == null) {
             return new SuggestionPreferences();
-        } catch (JsonSyntaxException | JsonIOException | IOException e) {
-            log.warn("error loading preferences json file {}", file, e);
+        }
+        try {
+            SuggestionPreferences preferences = gson.fromJson(new String(value, StandardCharsets.UTF_8), SuggestionPreferences.class);
+            return preferences == null ? new SuggestionPreferences() : preferences;
+        } catch (JsonSyntaxException e) {
+            log.warn("error loading preferences {}", key, e);
             return new SuggestionPreferences();
         }
     }
 
     private void saveAsync(Long accountHash) {
-        executorService.submit(() -> {
-            File file = getFile(accountHash);
+        String key = String.format(SUGGESTION_PREFERENCES_KEY_TEMPLATE, accountHash);
+        stateSaveScheduler.save(key, () -> {
             synchronized (cached) {
                 SuggestionPreferences p = cached.computeIfAbsent(accountHash, this::load);
                 // Create a deep copy of the preferences for serialization
@@ -238,20 +246,8 @@ public class SuggestionPreferencesManager {
                 synchronized (p.getWhitelistedItemIds()) {
                     copy.setWhitelistedItemIds(new ArrayList<>(p.getWhitelistedItemIds()));
                 }
-                
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
-                    String json = gson.toJson(copy);
-                    writer.write(json);
-                    writer.newLine();
-                } catch (IOException e) {
-                    log.warn("error saving preferences json file {}", file, e);
-                }
+                return gson.toJson(copy).getBytes(StandardCharsets.UTF_8);
             }
         });
     }
-
-    private File getFile(Long accountHash) {
-        return accountHashToFile.computeIfAbsent(accountHash,
-                (k) -> new File(Persistance.PARENT_DIRECTORY, String.format(SUGGESTION_PREFERENCES_FILE_TEMPLATE, accountHash)));
-    }
 }
@@ -0,0 +1,67 @@
+package com.flippingcopilot.model;
+
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Rebuilds an account's flips offline from its log of all transactions, without the server. The transactions are
+ * fed in the order they happened and matched per item first-in first-out: a buy adds to the item's open flip (or opens
+ * one) and a sell closes the oldest open quantity, post tax, exactly like a provisional flip update. Only the open flip
+ * per item is kept, a flip is handed to the sink as soon as it's fully closed and the ones still open are handed over
+ * by {@link #finish}, so memory stays bounded by the number of items traded however long the log is.
+ */
+public final class TransactionLogReplay {
+
+    private final int accountId;
+    private final Consumer<FlipV2> sink;
+    private final Map<Integer, FlipV2> openFlips = new HashMap<>();
+    @Getter
+    private int transactions;
+    // sells without open quantity to close, e.g. of items bought before the log was started
+    @Getter
+    private int unmatchedSells;
+    @Getter
+    private int flips;
+
+    public TransactionLogReplay(int accountId, Consumer<FlipV2> sink) {
+        this.accountId = accountId;
+        this.sink = sink;
+    }
+
+    public void accept(Transaction t) {
+        transactions++;
+        FlipV2 open = openFlips.get(t.getItemId());
+        FlipV2 updated = ProvisionalFlips.apply(open, accountId, t, null);
+        if (updated == null) {
+            unmatchedSells++;
+            return;
+        }
+        if (open == null) {
+            // the opening buy identifies the flip, so replaying the same log gives the same flip ids
+            updated.setId(t.getId());
+        }
+        if (updated.isClosed()) {
+            openFlips.remove(t.getItemId());
+            flips++;
+            sink.accept(updated);
+        } else {
+            openFlips.put(t.getItemId(), updated);
+        }
+    }
+
+    /**
+     * Hands over the flips still open at the end of the log.
+     */
+    public void finish() {
+        openFlips.values().forEach(sink);
+        flips += openFlips.size();
+        openFlips.clear();
+    }
+
+    int openFlipCount() {
+        return openFlips.size();
+    }
+}
@@ -13,6 +13,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
@@ -22,6 +23,11 @@ import java.util.function.Consumer;
 @RequiredArgsConstructor(onConstructor_ = @Inject)
 public class TransactionManger {
 
+    // a long spell offline can leave thousands of transactions, they are sent oldest first in batches capped by count
+    // and by request body size so no single request gets large enough to keep timing out
+    static final int MAX_BATCH_TRANSACTIONS = 200;
+    static final int MAX_BATCH_BYTES = 48 * 1024;
+
     // dependencies
     private final FlipManager flipManager;
     private final ScheduledExecutorService executorService;
@@ -30,75 +36,146 @@ public class TransactionManger {
     private final OsrsLoginManager osrsLoginManager;
 
     // state
-    private final ConcurrentMap<String, List<Transaction>> cachedUnAckedTransactions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, UnAckedTransactionLog> cachedUnAckedTransactions = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, AtomicBoolean> transactionSyncScheduled = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> consecutiveSyncFailures = new ConcurrentHashMap<>();
+    long retryBaseMillis = 2_000;
+    long retryCapMillis = 5 * 60_000;
+    // how soon to look again while another client holds the send lease of the same log
+    long leaseRetryMillis = 5_000;
 
     public void syncUnAckedTransactions(String displayName) {
 
         long s = System.nanoTime();
         List<Transaction> toSend;
+        UnAckedTransactionLog.SendLease lease;
         synchronized (this) {
-            toSend = new ArrayList<>(getUnAckedTransactions(displayName));
-            if(toSend.isEmpty()) {
+            UnAckedTransactionLog unAckedTransactions = getUnAckedTransactions(displayName);
+            lease = unAckedTransactions.tryLeaseSending();
+            if (lease == null) {
+                // another client running side by side is sending, it also sends what this one appended meanwhile
                 transactionSyncScheduled.get(displayName).set(false);
+                scheduleSyncInMillis(leaseRetryMillis, displayName);
                 return;
             }
-        }
-
-        Consumer<List<FlipV2>> onSuccess = (flips) -> {
-            for (FlipV2 f : flips) {
-                log.debug("server updated flip for {} closed qty {}, profit {}", f.getItemName(), f.getClosedQuantity(), f.getProfit());
-            }
-            flipManager.mergeFlips(flips, displayName);
-            log.info("sending {} transactions took {}ms", toSend.size(), (System.nanoTime() - s) / 1000_000);
-            synchronized (this) {
-                List<Transaction> unAckedTransactions  = getUnAckedTransactions(displayName);
+            toSend = nextBatch(unAckedTransactions.pending());
+            if(toSend.isEmpty()) {
+                lease.release();
                 transactionSyncScheduled.get(displayName).set(false);
-                toSend.forEach(unAckedTransactions::remove);
-                if(!unAckedTransactions.isEmpty()) {
-                    scheduleSyncIn(0, displayName);
-                }
+                return;
             }
-        };
+        }
 
         Consumer<HttpResponseException> onFailure = (e) -> {
             synchronized (this) {
+                lease.release();
                 transactionSyncScheduled.get(displayName).set(false);
             }
+            int failures = consecutiveSyncFailures.merge(displayName, 1, Integer::sum);
             String currentDisplayName = osrsLoginManager.getPlayerDisplayName();
             if (loginResponseManager.isLoggedIn() && (currentDisplayName == null || currentDisplayName.equals(displayName))) {
-                log.warn("failed to send transactions to copilot server {}", e.getMessage(), e);
-                scheduleSyncIn(10, displayName);
+                long delay = retryDelayMillis(failures);
+                log.warn("failed to send transactions to copilot server {}, attempt {} retrying in {}ms", e.getMessage(), failures, delay, e);
+                scheduleSyncInMillis(delay, displayName);
             }
         };
-        api.sendTransactionsAsync(toSend, displayName, onSuccess, onFailure);
+
+        Consumer<List<FlipV2>> onSuccess = (flips) -> {
+            try {
+                for (FlipV2 f : flips) {
+                    log.debug("server updated flip for {} closed qty {}, profit {}", f.getItemName(), f.getClosedQuantity(), f.getProfit());
+                }
+                flipManager.mergeAckedFlips(flips, displayName, toSend);
+                log.info("sending {} transactions took {}ms", toSend.size(), (System.nanoTime() - s) / 1000_000);
+                synchronized (this) {
+                    UnAckedTransactionLog unAckedTransactions = getUnAckedTransactions(displayName);
+                    transactionSyncScheduled.get(displayName).set(false);
+                    consecutiveSyncFailures.remove(displayName);
+                    // each batch is acknowledged on its own, so the batches already sent survive a later failure
+                    unAckedTransactions.ack(toSend);
+                    lease.release();
+                    if(!unAckedTransactions.isEmpty()) {
+                        scheduleSyncIn(0, displayName);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the batch stays pending and is sent again after the backoff, the server dedupes it by id
+                onFailure.accept(new HttpResponseException(-1, "error applying acknowledged transactions", e));
+            } finally {
+                // whatever went wrong the lease must go, or no client could send this account's transactions again
+                lease.release();
+            }
+        };
+
+        try {
+            api.sendTransactionsAsync(toSend, displayName, onSuccess, onFailure);
+        } catch (RuntimeException e) {
+            onFailure.accept(new HttpResponseException(-1, "error sending transactions", e));
+        }
     }
 
     public long addTransaction(Transaction transaction, String displayName) {
+        boolean added;
         synchronized (this) {
-            List<Transaction> unAckedTransactions = getUnAckedTransactions(displayName);
-            unAckedTransactions.add(transaction);
-            Persistance.storeUnAckedTransactions(unAckedTransactions, displayName);
+            // the transaction id is the idempotency key, a transaction recorded before isn't stored or sent again
+            added = getUnAckedTransactions(displayName).append(transaction);
+            if (added) {
+                Persistance.storeTransaction(transaction, displayName);
+            }
         }
         MutableReference<Long> profit = new MutableReference<>(0L);
         if (OfferStatus.SELL.equals(transaction.getType())) {
             profit.setValue(flipManager.estimateTransactionProfit(displayName, transaction));
         }
+        if (added) {
+            flipManager.applyTransaction(transaction, displayName);
+        }
         scheduleSyncIn(0, displayName);
         return profit.getValue();
     }
 
-    private List<Transaction> getUnAckedTransactions(String displayName) {
-        return cachedUnAckedTransactions.computeIfAbsent(displayName, (k) -> Persistance.loadUnAckedTransactions(displayName));
+    /**
+     * The oldest pending transactions that fit in one request, at least one however large it is.
+     */
+    static List<Transaction> nextBatch(List<Transaction> pending) {
+        List<Transaction> batch = new ArrayList<>(Math.min(pending.size(), MAX_BATCH_TRANSACTIONS));
+        int bytes = 2;
+        for (Transaction t : pending) {
+            if (batch.size() == MAX_BATCH_TRANSACTIONS) {
+                break;
+            }
+            bytes += t.toJsonObject().toString().length() + 1;
+            if (bytes > MAX_BATCH_BYTES && !batch.isEmpty()) {
+                break;
+            }
+            batch.add(t);
+        }
+        return batch;
+    }
+
+    // exponential in the consecutive failures up to the cap, with the upper half jittered so that clients that lost
+    // the server at the same time don't all retry together
+    long retryDelayMillis(int failures) {
+        long delay = Math.min(retryCapMillis, retryBaseMillis << Math.min(failures - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private UnAckedTransactionLog getUnAckedTransactions(String displayName) {
+        return cachedUnAckedTransactions.computeIfAbsent(displayName, (k) -> UnAckedTransactionLog.load(Persistance.unAckedTransactionsFile(displayName),
+                Persistance.legacyUnAckedTransactionsFile(displayName), Persistance.gson));
     }
 
     public synchronized void scheduleSyncIn(int seconds, String displayName) {
+        scheduleSyncInMillis(seconds * 1000L, displayName);
+    }
+
+    private synchronized void scheduleSyncInMillis(long millis, String displayName) {
         AtomicBoolean scheduled = transactionSyncScheduled.computeIfAbsent(displayName, k -> new AtomicBoolean(false));
         if(scheduled.compareAndSet(false, true)) {
-            log.info("scheduling attempt to sync {} transactions in {}s", displayName, seconds);
+            log.info("scheduling attempt to sync {} transactions in {}ms", displayName, millis);
             executorService.schedule(() ->  {
                 this.syncUnAckedTransactions(displayName);
-            }, seconds, TimeUnit.SECONDS);
+            }, millis, TimeUnit.MILLISECONDS);
         } else {
             log.debug("skipping scheduling sync as already scheduled");
         }
@@ -0,0 +1,435 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Append-only log of an account's transactions not yet acknowledged by the server. A new transaction is appended as
+ * a {@link RecordCodec} transaction record and an acknowledgement as an ack record, so a fill costs the same however
+ * large the backlog grew during a server outage. Loading replays the records to rebuild the pending transactions in
+ * the order they were added, a torn last record of a crash mid write is dropped. Once the acknowledged records
+ * outweigh the pending ones the file is rewritten with just the pending transactions, headed by a record naming the
+ * new generation of the file. The json lines log of earlier versions is imported as pending when there is no binary
+ * log yet, and deleted once imported.
+ * <p>
+ * Clients running side by side share the file. Every operation takes an exclusive lock on a sidecar lock file,
+ * first reads the records other clients appended since it last looked (or the whole file if another client rewrote
+ * it) and only then writes. The transaction id is the idempotency key: a transaction that is already pending or was
+ * acknowledged in the current generation is never recorded twice. Sending is guarded by a second lock, see
+ * {@link #tryLeaseSending}.
+ */
+@Slf4j
+final class UnAckedTransactionLog {
+
+    private static final String LEGACY_ACK_PREFIX = "{\"ack\":\"";
+    private static final String LEGACY_GENERATION_PREFIX = "{\"log\":\"";
+    // rewriting a small file isn't worth it, the records of a few acks are left in place
+    static final int COMPACT_MIN_RECORDS = 256;
+    // file locks are held by the whole JVM and closing any channel of a file may drop them all, so the instances of
+    // one JVM take turns on a monitor before opening the lock file and only one of them opens the send lock file
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+    private static final Set<Path> SENDING = ConcurrentHashMap.newKeySet();
+
+    private final File file;
+    private final File legacyFile;
+    private final Path lockFile;
+    private final Path sendLockFile;
+    private final Object monitor;
+    private final Gson gson;
+    private final Map<UUID, Transaction> pending = new LinkedHashMap<>();
+    // acknowledged in the current generation, so a late duplicate append of one is ignored
+    private final Set<UUID> acked = new HashSet<>();
+    // records in the file, pending transactions plus the acknowledged ones and their acks
+    private int records;
+    // how far the file has been read and its first record, a different first record means it was rewritten
+    private long position;
+    private byte[] firstRecord;
+    private boolean damaged;
+
+    private UnAckedTransactionLog(File file, File legacyFile, Gson gson) {
+        this.file = file;
+        this.legacyFile = legacyFile;
+        this.lockFile = file.toPath().resolveSibling(file.getName() + ".lock").toAbsolutePath();
+        this.sendLockFile = file.toPath().resolveSibling(file.getName() + ".send.lock").toAbsolutePath();
+        this.monitor = MONITORS.computeIfAbsent(lockFile, k -> new Object());
+        this.gson = gson;
+    }
+
+    static UnAckedTransactionLog load(File file, Gson gson) {
+        return load(file, null, gson);
+    }
+
+    /**
+     * Loads the log, importing the json lines log of earlier versions if there is no binary log yet.
+     */
+    static UnAckedTransactionLog load(File file, File legacyFile, Gson gson) {
+        UnAckedTransactionLog l = new UnAckedTransactionLog(file, legacyFile, gson);
+        l.locked(() -> {
+            l.importLegacy();
+            l.compactIfWasteful();
+            return null;
+        });
+        return l;
+    }
+
+    /**
+     * Returns the transactions pending in the account's log, without creating the log if there is none yet.
+     */
+    static List<Transaction> readPending(File file, File legacyFile, Gson gson) {
+        if (!file.exists() && (legacyFile == null || !legacyFile.exists())) {
+            return Collections.emptyList();
+        }
+        return load(file, legacyFile, gson).pending();
+    }
+
+    List<Transaction> pending() {
+        return locked(() -> new ArrayList<>(pending.values()));
+    }
+
+    boolean isEmpty() {
+        return locked(pending::isEmpty);
+    }
+
+    int size() {
+        return locked(pending::size);
+    }
+
+    /**
+     * Records the transaction unless it's already pending or acknowledged. Returns false for such a duplicate.
+     */
+    boolean append(Transaction t) {
+        return locked(() -> {
+            if (pending.containsKey(t.getId()) || acked.contains(t.getId())) {
+                return false;
+            }
+            pending.put(t.getId(), t);
+            appendRecords(List.of(RecordCodec.encode(t)));
+            return true;
+        });
+    }
+
+    /**
+     * Records the acknowledgement of the transactions that are still pending.
+     */
+    void ack(Collection<Transaction> transactions) {
+        locked(() -> {
+            List<byte[]> acks = new ArrayList<>(transactions.size());
+            for (Transaction t : transactions) {
+                if (pending.remove(t.getId()) != null) {
+                    acked.add(t.getId());
+                    acks.add(RecordCodec.encodeAck(t.getId()));
+                }
+            }
+            if (!acks.isEmpty()) {
+                appendRecords(acks);
+                compactIfWasteful();
+            }
+            return null;
+        });
+    }
+
+    int records() {
+        return locked(() -> records);
+    }
+
+    /**
+     * Takes the right to send this log's pending transactions, held until the returned lease is released. Returns null
+     * while another client (or another instance in this JVM) holds it, that client picks up the transactions appended
+     * here as it re-reads the log before each batch.
+     */
+    SendLease tryLeaseSending() {
+        if (!SENDING.add(sendLockFile)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(sendLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.tryLock() != null) {
+                return new SendLease(sendLockFile, channel);
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            log.warn("error locking un acked transactions file {} for sending", sendLockFile, e);
+        }
+        closeQuietly(channel);
+        SENDING.remove(sendLockFile);
+        return null;
+    }
+
+    private <T> T locked(Supplier<T> operation) {
+        synchronized (monitor) {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.lock();
+            } catch (IOException e) {
+                // carry on unlocked rather than lose the transaction, like the log did before it was shared
+                log.warn("error locking un acked transactions file {}", lockFile, e);
+                closeQuietly(channel);
+                channel = null;
+            }
+            // only taking the lock falls back, the operation runs once whatever closing the lock file does
+            try {
+                refresh();
+                return operation.get();
+            } finally {
+                // closing the channel releases the lock
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    // replays what was appended since the last look, or everything again if the file was rewritten meanwhile
+    private void refresh() {
+        if (!file.exists()) {
+            reset();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < position || (firstRecord != null && !startsWith(channel, firstRecord))) {
+                reset();
+            }
+            if (size > position) {
+                ByteBuffer buf = ByteBuffer.allocate((int) (size - position));
+                readFully(channel, buf, position);
+                readRecords(buf);
+            }
+        } catch (IOException e) {
+            log.warn("error reading un acked transactions file {}", file, e);
+        }
+        if (damaged) {
+            // the next append would otherwise be read as the rest of the torn record
+            damaged = false;
+            compact();
+        }
+    }
+
+    private void readRecords(ByteBuffer buf) {
+        RecordCodec.Reader reader = new RecordCodec.Reader(buf);
+        int end = 0;
+        try {
+            while (reader.next()) {
+                if (position == 0 && reader.recordStart() == 0) {
+                    firstRecord = Arrays.copyOf(buf.array(), reader.recordEnd());
+                }
+                replay(reader);
+                end = reader.recordEnd();
+            }
+            if (reader.isTorn()) {
+                log.warn("dropping torn last record of un acked transactions file {}", file);
+                damaged = true;
+            }
+        } catch (IllegalArgumentException e) {
+            // the records after a bad length can't be found, they are dropped by the rewrite
+            log.warn("error reading record at {} of un acked transactions file {}", position + end, file, e);
+            damaged = true;
+        }
+        position += end;
+    }
+
+    private void replay(RecordCodec.Reader reader) {
+        try {
+            switch (reader.type()) {
+                case RecordCodec.TRANSACTION:
+                    Transaction t = reader.transaction();
+                    records++;
+                    if (!acked.contains(t.getId())) {
+                        pending.putIfAbsent(t.getId(), t);
+                    }
+                    break;
+                case RecordCodec.ACK:
+                    UUID id = reader.id();
+                    records++;
+                    pending.remove(id);
+                    acked.add(id);
+                    break;
+                default:
+                    // generation records and the records of newer versions
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("error decoding record at {} of un acked transactions file {}", position + reader.recordStart(), file, e);
+            damaged = true;
+        }
+    }
+
+    // the json lines of earlier versions: transaction lines, {"ack":"id"} lines and a {"log":"id"} generation line
+    private void importLegacy() {
+        if (legacyFile == null || !legacyFile.exists() || file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(legacyFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(LEGACY_GENERATION_PREFIX)) {
+                    continue;
+                }
+                try {
+                    if (line.startsWith(LEGACY_ACK_PREFIX)) {
+                        pending.remove(UUID.fromString(line.substring(LEGACY_ACK_PREFIX.length(), line.length() - 2)));
+                    } else {
+                        Transaction t = gson.fromJson(line, Transaction.class);
+                        pending.putIfAbsent(t.getId(), t);
+                    }
+                } catch (JsonSyntaxException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                    log.warn("error importing line '{}' of legacy un acked transactions file {}", line, legacyFile, e);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("error importing legacy un acked transactions file {}", legacyFile, e);
+            return;
+        }
+        compact();
+        if (file.exists() && !legacyFile.delete()) {
+            log.warn("unable to delete imported legacy un acked transactions file {}", legacyFile);
+        }
+    }
+
+    private void reset() {
+        pending.clear();
+        acked.clear();
+        records = 0;
+        position = 0;
+        firstRecord = null;
+    }
+
+    private void compactIfWasteful() {
+        if (records >= COMPACT_MIN_RECORDS && records >= pending.size() * 2) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        Path tmp = file.toPath().resolveSibling(file.getName() + ".tmp");
+        byte[] generation = RecordCodec.encodeGeneration(UUID.randomUUID());
+        List<byte[]> all = new ArrayList<>(pending.size() + 1);
+        all.add(generation);
+        pending.values().forEach(t -> all.add(RecordCodec.encode(t)));
+        byte[] bytes = concat(all);
+        try {
+            Files.write(tmp, bytes);
+            // replace the log in one step so a crash mid rewrite leaves the old records intact
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = pending.size();
+            acked.clear();
+            position = bytes.length;
+            firstRecord = generation;
+        } catch (IOException e) {
+            log.warn("error compacting un acked transactions file {}", file, e);
+        }
+    }
+
+    private void appendRecords(List<byte[]> appended) {
+        List<byte[]> all = appended;
+        if (position == 0) {
+            // a new file starts a generation of its own, so a client that read an earlier file notices the change
+            firstRecord = RecordCodec.encodeGeneration(UUID.randomUUID());
+            all = new ArrayList<>(appended.size() + 1);
+            all.add(firstRecord);
+            all.addAll(appended);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.wrap(concat(all));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            records += appended.size();
+            position = channel.size();
+        } catch (IOException e) {
+            log.warn("error appending to un acked transactions file {}", file, e);
+        }
+    }
+
+    private static byte[] concat(List<byte[]> records) {
+        int size = 0;
+        for (byte[] r : records) {
+            size += r.length;
+        }
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (byte[] r : records) {
+            System.arraycopy(r, 0, bytes, offset, r.length);
+            offset += r.length;
+        }
+        return bytes;
+    }
+
+    private static boolean startsWith(FileChannel channel, byte[] expected) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(expected.length);
+        readFully(channel, buf, 0);
+        return buf.limit() == expected.length && Arrays.equals(buf.array(), expected);
+    }
+
+    // reads from the offset until the buffer is full or the end of the file, the buffer is flipped for reading
+    private static void readFully(FileChannel channel, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("error closing lock file channel", e);
+            }
+        }
+    }
+
+    /**
+     * The right to send the log's pending transactions, released by closing the lock file channel.
+     */
+    static final class SendLease {
+
+        private final Path file;
+        private final FileChannel channel;
+        private boolean released;
+
+        private SendLease(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Releases the lease, a second call does nothing so it can't drop a lease taken since.
+         */
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            closeQuietly(channel);
+            SENDING.remove(file);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.flippingcopilot.model;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Segment file holding the flip rows of weeks older than the retention horizon, so only their stats stay on the heap.
+ * Each spilled week is appended as a segment of {@link FlipColumns} blocks (account id int, row count int, then the
+ * columns, little endian) and read back on demand through a small LRU of loaded weeks. The file is scratch space for
+ * the session, the flip snapshot remains the persisted copy, so it is truncated when opened and has no checksum. Each
+ * client has a file of its own.
+ * Segments of weeks that were thawed or rebuilt are released, once they outweigh the live ones the file is rewritten.
+ */
+@Slf4j
+final class WeekSpillStore implements AutoCloseable {
+
+    static final int CACHED_WEEKS = 8;
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+
+    @Getter
+    private final Path file;
+    private FileChannel channel;
+    private long end;
+    private long liveBytes;
+    private final Set<Segment> live = new LinkedHashSet<>();
+    private final Map<Segment, Map<Integer, FlipColumns>> loaded = new LinkedHashMap<Segment, Map<Integer, FlipColumns>>(CACHED_WEEKS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Segment, Map<Integer, FlipColumns>> eldest) {
+            return size() > CACHED_WEEKS;
+        }
+    };
+
+    WeekSpillStore(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Appends the week's rows as a new segment.
+     */
+    synchronized Segment write(Map<Integer, FlipColumns> accountIdToFlips) throws IOException {
+        int bytes = 4;
+        for (FlipColumns c : accountIdToFlips.values()) {
+            bytes += 8 + c.size() * FlipColumns.ROW_BYTES;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(accountIdToFlips.size());
+        for (FlipColumns c : accountIdToFlips.values()) {
+            buf.putInt(c.accountId).putInt(c.size());
+            c.writeColumns(buf);
+        }
+        buf.flip();
+        Segment segment = new Segment(end, bytes);
+        writeFully(channel, buf, end);
+        end += bytes;
+        liveBytes += bytes;
+        live.add(segment);
+        return segment;
+    }
+
+    /**
+     * Returns the rows of the segment, loading them unless they are among the most recently used weeks. The rows
+     * are shared with other readers and must not be modified.
+     */
+    synchronized Map<Integer, FlipColumns> load(Segment segment) throws IOException {
+        Map<Integer, FlipColumns> rows = loaded.get(segment);
+        if (rows == null) {
+            rows = Collections.unmodifiableMap(read(segment));
+            loaded.put(segment, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns a private copy of the segment's rows and releases the segment, for a week that becomes resident again.
+     */
+    synchronized Map<Integer, FlipColumns> take(Segment segment) throws IOException {
+        Map<Integer, FlipColumns> rows = loaded.remove(segment);
+        Map<Integer, FlipColumns> copy;
+        if (rows == null) {
+            copy = read(segment);
+        } else {
+            copy = new HashMap<>(rows.size() * 2);
+            for (FlipColumns c : rows.values()) {
+                FlipColumns own = new FlipColumns(c.accountId, c.size());
+                for (int i = 0; i < c.size(); i++) {
+                    own.appendRow(c, i);
+                }
+                copy.put(c.accountId, own);
+            }
+        }
+        release(segment);
+        return copy;
+    }
+
+    /**
+     * Marks the segment's bytes as garbage, its week no longer refers to it.
+     */
+    synchronized void release(Segment segment) {
+        if (live.remove(segment)) {
+            loaded.remove(segment);
+            liveBytes -= segment.length;
+        }
+    }
+
+    synchronized int loadedWeeks() {
+        return loaded.size();
+    }
+
+    synchronized long fileBytes() {
+        return end;
+    }
+
+    /**
+     * Rewrites the live segments into a fresh file once the released ones take up most of it.
+     */
+    synchronized void compactIfWasteful() throws IOException {
+        long garbage = end - liveBytes;
+        if (garbage < COMPACT_MIN_BYTES || garbage < liveBytes) {
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Map<Segment, Long> offsets = new HashMap<>(live.size() * 2);
+        long position = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Segment s : live) {
+                writeFully(out, readBytes(s), position);
+                offsets.put(s, position);
+                position += s.length;
+            }
+        }
+        // the file is closed first as it can't be replaced while open on some platforms
+        channel.close();
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        offsets.forEach((s, offset) -> s.offset = offset);
+        log.debug("compacted week spill file from {} to {} bytes", end, position);
+        end = position;
+    }
+
+    @Override
+    public synchronized void close() {
+        loaded.clear();
+        live.clear();
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("error removing week spill file {}", file, e);
+        }
+    }
+
+    private Map<Integer, FlipColumns> read(Segment segment) throws IOException {
+        ByteBuffer buf = readBytes(segment);
+        int accounts = checkCount(buf.getInt(), 8, buf, "account");
+        Map<Integer, FlipColumns> rows = new HashMap<>(accounts * 2);
+        for (int a = 0; a < accounts; a++) {
+            int accountId = buf.getInt();
+            int n = checkCount(buf.getInt(), FlipColumns.ROW_BYTES, buf, "row");
+            rows.put(accountId, FlipColumns.readColumns(accountId, n, buf));
+        }
+        return rows;
+    }
+
+    // a count the rest of the segment can't hold means the file was changed under us, better than allocating it
+    private int checkCount(int count, int bytesEach, ByteBuffer buf, String what) throws IOException {
+        if (count < 0 || (long) count * bytesEach > buf.remaining()) {
+            throw new IOException("week spill file " + file + " " + what + " count " + count + " exceeds the "
+                    + buf.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    private ByteBuffer readBytes(Segment segment) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(segment.length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, segment.offset + buf.position()) < 0) {
+                throw new IOException("week spill file truncated");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Location of a spilled week's rows in the file, moved by compaction.
+     */
+    static final class Segment {
+
+        private long offset;
+        private final int length;
+
+        private Segment(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
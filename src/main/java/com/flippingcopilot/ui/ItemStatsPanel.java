@@ -0,0 +1,49 @@
+package com.flippingcopilot.ui;
+
+import com.flippingcopilot.controller.FlippingCopilotConfig;
+import com.flippingcopilot.model.ItemStats;
+import com.flippingcopilot.model.Stats;
+import net.runelite.client.ui.ColorScheme;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+
+public class ItemStatsPanel extends JPanel {
+
+    public ItemStatsPanel(ItemStats itemStats, FlippingCopilotConfig config) {
+        setLayout(new BorderLayout());
+        setBackground(ColorScheme.DARKER_GRAY_COLOR);
+        Stats stats = itemStats.getStats();
+
+        JLabel flipCount = new JLabel(String.format("%d x ", stats.flipsMade));
+        flipCount.setForeground(Color.WHITE);
+
+        String itemName = itemStats.getItemName() == null ? "Item " + itemStats.getItemId() : itemStats.getItemName();
+        JLabel itemNameLabel = new JLabel(UIUtilities.truncateString(itemName, 20));
+
+        JPanel leftPanel = new JPanel();
+        leftPanel.setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        leftPanel.setBackground(ColorScheme.DARKER_GRAY_COLOR);
+        leftPanel.add(flipCount);
+        leftPanel.add(itemNameLabel);
+
+        JLabel profitLabel = new JLabel(UIUtilities.formatProfitWithoutGp(stats.profit));
+        profitLabel.setForeground(UIUtilities.getProfitColor(stats.profit, config));
+
+        add(leftPanel, BorderLayout.LINE_START);
+        add(profitLabel, BorderLayout.LINE_END);
+        setMaximumSize(new Dimension(Integer.MAX_VALUE, getPreferredSize().height));
+
+        String tooltipText = String.format("Flips made: %d\nGross: %s\nTax paid: %s\nROI: %.3f%%\nProfit: %s",
+                stats.flipsMade,
+                UIUtilities.formatProfit(stats.gross),
+                UIUtilities.formatProfit(stats.taxPaid),
+                stats.calculateRoi() * 100,
+                UIUtilities.formatProfit(stats.profit));
+        setToolTipText(tooltipText);
+    }
+}
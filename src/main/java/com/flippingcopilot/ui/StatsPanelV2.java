@@ -19,8 +19,12 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,6 +51,12 @@ public class StatsPanelV2 extends JPanel {
             "Session",
             "All"};
 
+    private static final String FLIPS_VIEW_OPTION = "Flips";
+    private static final String TOP_ITEMS_VIEW_OPTION = "Top items";
+    private static final String WORST_ITEMS_VIEW_OPTION = "Worst items";
+    private static final int ITEM_BREAKDOWN_SIZE = 50;
+    private static final int FLIPS_PAGE_SIZE = 50;
+
     private static final Pattern INTERVAL_PATTERN = Pattern.compile("^-?(\\d+)([hdwmy])[()\\w\\s]*");
 
     // dependencies
@@ -62,6 +72,7 @@ public class StatsPanelV2 extends JPanel {
     private JComboBox<String> timeIntervalDropdown;
     private final DefaultComboBoxModel<String> rsAccountDropdownModel = new DefaultComboBoxModel<>();
     private final JComboBox<String> rsAccountDropdown = new JComboBox<>(rsAccountDropdownModel);
+    private final JComboBox<String> viewDropdown = new JComboBox<>(new String[]{FLIPS_VIEW_OPTION, TOP_ITEMS_VIEW_OPTION, WORST_ITEMS_VIEW_OPTION});
     private final JButton sessionResetButton = new JButton("  reset  ");
     private JPanel profitAndSubInfoPanel;
     private JPanel subInfoPanel;
@@ -73,11 +84,21 @@ public class StatsPanelV2 extends JPanel {
     private final JLabel sessionTimeVal = new JLabel("00:00:00");
     private final JLabel hourlyProfitVal = new JLabel("0 gp/hr");
     private final JLabel avgCashVal = new JLabel("0 gp");
+    private final JLabel flipsLoadingLabel = new JLabel();
+    private final JTextField jumpToDateField = new JTextField();
     private final Paginator paginator;
 
     private IntervalTimeUnit selectedIntervalTimeUnit = IntervalTimeUnit.SESSION;
     private int selectedIntervalValue = -1;
     private volatile boolean lastValidState = false;
+    // what the flips panel was last built from, it is only rebuilt when this changes
+    private List<Object> renderedFlipsKey;
+    // keyset cursors of the pages visited for the current interval, page n starts after the last flip of page n - 1
+    private final Map<Integer, FlipCursor> pageCursors = new HashMap<>();
+    private List<Object> pageCursorsInterval;
+    // the end of the day jumped to (epoch seconds), the flips listed start from the newest flip closed before it, or
+    // null to list from the newest flip
+    private Integer jumpToTime;
 
     @Inject
     public StatsPanelV2(LoginResponseManager loginResponseManager,
@@ -138,7 +159,23 @@ public class StatsPanelV2 extends JPanel {
         intervalRsAccountDropdownWrapper.setMaximumSize(new Dimension(Integer.MAX_VALUE, intervalRsAccountDropdownWrapper.getPreferredSize().height));
 
         mainPanel.add(intervalRsAccountDropdownWrapper);
+        viewDropdown.setBorder(BorderFactory.createEmptyBorder());
+        viewDropdown.setToolTipText("Show the interval's flips or a per-item profit breakdown");
+        viewDropdown.setMaximumSize(new Dimension(Integer.MAX_VALUE, viewDropdown.getPreferredSize().height));
+        viewDropdown.addActionListener(e -> {
+            jumpToDateField.setVisible(selectedItemSortKey() == null);
+            refresh(true, lastValidState);
+        });
+        setupJumpToDateField();
+
         mainPanel.add(profitAndSubInfoPanel);
+        mainPanel.add(viewDropdown);
+        mainPanel.add(jumpToDateField);
+        flipsLoadingLabel.setFont(FontManager.getRunescapeSmallFont());
+        flipsLoadingLabel.setForeground(ColorScheme.LIGHT_GRAY_COLOR);
+        flipsLoadingLabel.setBorder(new EmptyBorder(2, 5, 2, 5));
+        flipsLoadingLabel.setVisible(false);
+        mainPanel.add(flipsLoadingLabel);
         mainPanel.add(scrollPane);
 
         add(mainPanel, BorderLayout.CENTER);
@@ -147,6 +184,39 @@ public class StatsPanelV2 extends JPanel {
         add(paginator, BorderLayout.SOUTH);
 
         flipManager.setFlipsChangedCallback(() -> refresh(true, loginResponseManager.isLoggedIn() && osrsLoginManager.isValidLoginState()));
+        flipManager.setFlipsLoadingCallback(this::showFlipsLoading);
+    }
+
+    // n is the number of flips downloaded so far, or -1 once the flip history has loaded
+    private void showFlipsLoading(int n) {
+        SwingUtilities.invokeLater(() -> {
+            flipsLoadingLabel.setVisible(n >= 0);
+            if (n >= 0) {
+                flipsLoadingLabel.setText(String.format("Loading flip history... %,d flips", n));
+            }
+        });
+    }
+
+    private void setupJumpToDateField() {
+        jumpToDateField.setBorder(new EmptyBorder(2, 5, 2, 5));
+        jumpToDateField.setToolTipText("Jump to a date (yyyy-mm-dd) in the flips, clear it to list from the newest flip");
+        jumpToDateField.setMaximumSize(new Dimension(Integer.MAX_VALUE, jumpToDateField.getPreferredSize().height));
+        jumpToDateField.addActionListener(e -> {
+            String text = jumpToDateField.getText().trim();
+            Integer time = null;
+            if (!text.isEmpty()) {
+                try {
+                    // the flips of the day itself are listed first
+                    time = (int) LocalDate.parse(text).plusDays(1).atStartOfDay(flipManager.getTimeZone()).toEpochSecond();
+                } catch (DateTimeParseException ex) {
+                    jumpToDateField.setForeground(UIUtilities.TOMATO);
+                    return;
+                }
+            }
+            jumpToDateField.setForeground(ColorScheme.LIGHT_GRAY_COLOR);
+            jumpToTime = time;
+            refresh(true, lastValidState);
+        });
     }
 
     private void setupSessionResetButton() {
@@ -384,6 +454,8 @@ public class StatsPanelV2 extends JPanel {
             hourlyProfitVal.setText("0 gp/hr");
             avgCashVal.setText("0 gp");
             flipsPanel.removeAll();
+            renderedFlipsKey = null;
+            flipsLoadingLabel.setVisible(false);
             paginator.setTotalPages(1);
             boolean v = IntervalTimeUnit.SESSION.equals(selectedIntervalTimeUnit);
             SESSION_STATS_INDS.forEach(i -> subInfoPanel.getComponent(i).setVisible(v));
@@ -392,8 +464,10 @@ public class StatsPanelV2 extends JPanel {
             return;
         }
 
-        java.util.List<String> displayNameOptions = flipManager.getDisplayNameOptions();
-        String selectedDisplayName = flipManager.getIntervalDisplayName();
+        // read without locking the flip manager, the snapshot is replaced after every change
+        FlipStatsSnapshot snapshot = flipManager.getStatsSnapshot();
+        java.util.List<String> displayNameOptions = snapshot.getDisplayNameOptions();
+        String selectedDisplayName = snapshot.getIntervalDisplayName();
         if (displayNameOptionsOutOfDate(displayNameOptions) || selectedDisplayNameOutOfDate(selectedDisplayName)) {
             rsAccountDropdownModel.removeAllElements();
             rsAccountDropdownModel.addAll(displayNameOptions);
@@ -409,12 +483,25 @@ public class StatsPanelV2 extends JPanel {
         }
 
         SessionData sd = sessionManager.getCachedSessionData();
-        Stats stats = flipManager.getIntervalStats();
-        paginator.setTotalPages(1 + stats.flipsMade / 50);
+        Stats stats = snapshot.getIntervalStats();
+        ItemSortKey itemSortKey = selectedItemSortKey();
+        int listedFlips = stats.flipsMade;
+        if (itemSortKey == null && jumpToTime != null) {
+            // the flips closed after the date aren't listed
+            int start = Math.max(jumpToTime, snapshot.getIntervalStartTime());
+            listedFlips -= flipManager.calculateStats(start, snapshot.getIntervalDisplayName()).flipsMade;
+        }
+        paginator.setTotalPages(itemSortKey == null ? 1 + listedFlips / FLIPS_PAGE_SIZE : 1);
         long s = System.nanoTime();
-        if (flipsMaybeChanged) {
+        List<Object> flipsKey = Arrays.asList(snapshot.getVersion(), paginator.getPageNumber(), itemSortKey, jumpToTime, config.profitAmountColor(), config.lossAmountColor());
+        if (flipsMaybeChanged && !flipsKey.equals(renderedFlipsKey)) {
+            renderedFlipsKey = flipsKey;
             flipsPanel.removeAll();
-            flipManager.getPageFlips(paginator.getPageNumber(), 50).forEach(f -> flipsPanel.add(new FlipPanel(f, config)));
+            if (itemSortKey == null) {
+                loadPageFlips(snapshot, paginator.getPageNumber()).forEach(f -> flipsPanel.add(new FlipPanel(f, config)));
+            } else {
+                flipManager.getIntervalTopItems(ITEM_BREAKDOWN_SIZE, itemSortKey).forEach(i -> flipsPanel.add(new ItemStatsPanel(i, config)));
+            }
             // labels displayed to the user
             roiVal.setText(String.format("%.3f%%", stats.calculateRoi() * 100));
             roiVal.setForeground(UIUtilities.getProfitColor(stats.profit, config));
@@ -441,6 +528,41 @@ public class StatsPanelV2 extends JPanel {
         }
     }
 
+    private List<FlipV2> loadPageFlips(FlipStatsSnapshot snapshot, int page) {
+        List<Object> interval = Arrays.asList(snapshot.getIntervalDisplayName(), snapshot.getIntervalStartTime(), jumpToTime);
+        if (!interval.equals(pageCursorsInterval)) {
+            pageCursors.clear();
+            pageCursors.put(1, jumpToTime == null ? null : FlipCursor.beforeTime(jumpToTime));
+            pageCursorsInterval = interval;
+        }
+        // the pages are stepped through one at a time so the next page's cursor is known, only after the cursors were
+        // reset on a later page it is walked to from the nearest page with one
+        int known = page;
+        while (!pageCursors.containsKey(known)) {
+            known--;
+        }
+        List<FlipV2> flips = flipManager.getPageFlips(pageCursors.get(known), FLIPS_PAGE_SIZE);
+        while (!flips.isEmpty()) {
+            pageCursors.put(known + 1, FlipCursor.after(flips.get(flips.size() - 1)));
+            if (known == page) {
+                break;
+            }
+            known++;
+            flips = flipManager.getPageFlips(pageCursors.get(known), FLIPS_PAGE_SIZE);
+        }
+        return flips;
+    }
+
+    private ItemSortKey selectedItemSortKey() {
+        Object view = viewDropdown.getSelectedItem();
+        if (TOP_ITEMS_VIEW_OPTION.equals(view)) {
+            return ItemSortKey.PROFIT;
+        } else if (WORST_ITEMS_VIEW_OPTION.equals(view)) {
+            return ItemSortKey.LOSS;
+        }
+        return null;
+    }
+
     private boolean selectedDisplayNameOutOfDate(String selectedDisplayName) {
         String oldSelectedDisplayName = (String) rsAccountDropdown.getSelectedItem();
         if (ALL_ACCOUNTS_DROPDOWN_OPTION.equals(oldSelectedDisplayName) && selectedDisplayName == null) {
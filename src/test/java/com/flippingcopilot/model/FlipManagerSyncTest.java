@@ -0,0 +1,437 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.ApiRequestHandler;
+import com.flippingcopilot.controller.DoesNothingExecutorService;
+import com.flippingcopilot.controller.Persistance;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+public class FlipManagerSyncTest {
+
+    private static final int USER_ID = 7;
+
+    private final Gson gson = new Gson();
+    // stand-in server state: flip id -> flip and the time it was last updated
+    private final Map<UUID, FlipV2> serverFlips = new LinkedHashMap<>();
+    private final Map<UUID, Integer> serverUpdatedTimes = new HashMap<>();
+    private final List<Integer> requestedSince = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> responseSizes = Collections.synchronizedList(new ArrayList<>());
+
+    private HttpServer server;
+    private Path directory;
+    private OkHttpClient okHttpClient;
+    private ApiRequestHandler api;
+    private LoginResponseManager loginResponseManager;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("flip-sync-test");
+        Persistance.setUp(directory.toString());
+        Persistance.gson = gson;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/profit-tracking/rs-account-names", (ex) -> respond(ex, "{\"Acc 0\":0}"));
+        server.createContext("/profit-tracking/client-flips", this::serveFlips);
+        server.start();
+
+        okHttpClient = new OkHttpClient.Builder().build();
+        loginResponseManager = new LoginResponseManager(gson, new DoesNothingExecutorService());
+        loginResponseManager.setLoginResponse(new LoginResponse(false, "", "test-jwt", USER_ID));
+        api = new ApiRequestHandler(okHttpClient, gson, loginResponseManager, null, null, new NameInterner(),
+                "http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        Persistance.closeTransactionLogs();
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Test
+    public void testSecondSyncOnlyDownloadsChangedFlips() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 5000; i++) {
+            putServerFlip(newFlip(now - 3600 * 24 * (i % 300) - 3600, i % 3), now - 3600);
+        }
+
+        FlipManager first = newFlipManager();
+        first.syncFlips(0);
+        Assert.assertEquals(Collections.singletonList(0), requestedSince);
+        assertMatchesServer(first);
+
+        // while "logged out" some flips are updated and new ones are made
+        List<FlipV2> existing = new ArrayList<>(serverFlips.values());
+        for (int i = 0; i < 10; i++) {
+            FlipV2 updated = copy(existing.get(i * 100));
+            updated.setClosedTime(now - 60);
+            updated.setProfit(updated.getProfit() + 1000);
+            putServerFlip(updated, now);
+        }
+        for (int i = 0; i < 20; i++) {
+            putServerFlip(newFlip(now - 30, i % 3), now);
+        }
+
+        FlipManager second = newFlipManager();
+        second.syncFlips(0);
+        Assert.assertEquals(2, requestedSince.size());
+        Assert.assertTrue(requestedSince.get(1) > 0);
+        Assert.assertEquals(30, (int) responseSizes.get(1));
+        assertMatchesServer(second);
+    }
+
+    @Test
+    public void testCorruptSnapshotFallsBackToFullDownload() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 100; i++) {
+            putServerFlip(newFlip(now - 3600 * i, 0), now - 3600);
+        }
+        Path snapshotFile = directory.resolve(String.format(Persistance.FLIP_SNAPSHOT_FILE_TEMPLATE, USER_ID));
+        Files.write(snapshotFile, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+
+        FlipManager flipManager = newFlipManager();
+        flipManager.syncFlips(0);
+        Assert.assertEquals(Collections.singletonList(0), requestedSince);
+        assertMatchesServer(flipManager);
+        Assert.assertEquals(100, Persistance.loadFlipSnapshot(USER_ID).size());
+
+        // a single flipped bit in the rows fails the checksum
+        byte[] bytes = Files.readAllBytes(snapshotFile);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(snapshotFile, bytes);
+        Assert.assertNull(Persistance.loadFlipSnapshot(USER_ID));
+
+        // as does a bad count under a valid checksum, rather than allocating for it
+        bytes[bytes.length / 2] ^= 1;
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(24, Integer.MAX_VALUE / 4);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        buf.putLong(bytes.length - 8, crc.getValue());
+        Files.write(snapshotFile, bytes);
+        Assert.assertNull(Persistance.loadFlipSnapshot(USER_ID));
+
+        FlipManager second = newFlipManager();
+        second.syncFlips(0);
+        Assert.assertEquals(Arrays.asList(0, 0), requestedSince);
+        assertMatchesServer(second);
+    }
+
+    @Test
+    public void testFlipsDeletedOnServerDroppedByPeriodicFullSync() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 100; i++) {
+            putServerFlip(newFlip(now - 3600 * i - 3600, 0), now - 3600);
+        }
+        newFlipManager().syncFlips(0);
+        FlipSnapshot snapshot = Persistance.loadFlipSnapshot(USER_ID);
+        Assert.assertTrue(snapshot.getFullSyncTime() >= now);
+
+        // a delta sync doesn't learn of a flip deleted on the server
+        UUID deleted = serverFlips.keySet().iterator().next();
+        serverFlips.remove(deleted);
+        serverUpdatedTimes.remove(deleted);
+        FlipManager delta = newFlipManager();
+        delta.syncFlips(0);
+        Assert.assertTrue(requestedSince.get(1) > 0);
+        Assert.assertEquals(serverFlips.size() + 1, delta.existingCloseTimes.size());
+        Assert.assertEquals(snapshot.getFullSyncTime(), Persistance.loadFlipSnapshot(USER_ID).getFullSyncTime());
+
+        // once the last full download is old enough the history is downloaded again
+        snapshot = Persistance.loadFlipSnapshot(USER_ID);
+        int fullSyncTime = now - FlipManager.FULL_SYNC_INTERVAL_SECS;
+        Persistance.storeFlipSnapshot(USER_ID, new FlipSnapshot(snapshot.getCursor(), fullSyncTime, snapshot.accounts, snapshot.itemNames));
+        FlipManager full = newFlipManager();
+        full.syncFlips(0);
+        Assert.assertEquals(0, (int) requestedSince.get(2));
+        assertMatchesServer(full);
+        Assert.assertEquals(LongPairIntMap.MISSING, full.existingCloseTimes.get(deleted));
+        Assert.assertEquals(serverFlips.size(), Persistance.loadFlipSnapshot(USER_ID).size());
+        Assert.assertTrue(Persistance.loadFlipSnapshot(USER_ID).getFullSyncTime() >= now);
+    }
+
+    @Test
+    public void testPendingTransactionsNotPersistedInSnapshot() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 100; i++) {
+            putServerFlip(newFlip(now - 3600 * i - 3600, 0), now - 3600);
+        }
+        FlipManager flipManager = newFlipManager();
+        flipManager.syncFlips(0);
+
+        // a buy the server hasn't acknowledged yet opens a provisional flip
+        Transaction t = new Transaction();
+        t.setId(UUID.randomUUID());
+        t.setType(OfferStatus.BUY);
+        t.setItemId(1001);
+        t.setQuantity(5);
+        t.setPrice(100);
+        t.setAmountSpent(500);
+        t.setTimestamp(Instant.ofEpochSecond(now - 10));
+        flipManager.applyTransaction(t, "Acc 0");
+        Assert.assertEquals(serverFlips.size() + 1, flipManager.existingCloseTimes.size());
+
+        flipManager.syncFlips(0);
+        Assert.assertEquals(serverFlips.size() + 1, flipManager.existingCloseTimes.size());
+        FlipSnapshot snapshot = Persistance.loadFlipSnapshot(USER_ID);
+        Assert.assertEquals(serverFlips.size(), snapshot.size());
+        for (FlipColumns c : snapshot.accounts) {
+            for (int i = 0; i < c.size(); i++) {
+                Assert.assertTrue(serverFlips.containsKey(c.get(i, snapshot.itemNames::get).getId()));
+            }
+        }
+    }
+
+    @Test
+    public void testUnackedTransactionsAppliedAgainAfterRestart() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 100; i++) {
+            putServerFlip(newFlip(now - 3600 * i - 3600, 0), now - 3600);
+        }
+        // a buy of an earlier run the server never acknowledged is still in the account's log
+        Transaction t = transaction(OfferStatus.BUY, 1001, 100, now - 10);
+        UnAckedTransactionLog.load(Persistance.unAckedTransactionsFile("Acc 0"), gson).append(t);
+
+        FlipManager flipManager = newFlipManager();
+        flipManager.syncFlips(0);
+        Assert.assertEquals(serverFlips.size() + 1, flipManager.existingCloseTimes.size());
+        flipManager.syncFlips(0);
+        Assert.assertEquals(serverFlips.size() + 1, flipManager.existingCloseTimes.size());
+        Assert.assertEquals(serverFlips.size(), Persistance.loadFlipSnapshot(USER_ID).size());
+    }
+
+    @Test
+    public void testTransactionAppliedOnceAccountIdIsKnown() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 100; i++) {
+            putServerFlip(newFlip(now - 3600 * i - 3600, 0), now - 3600);
+        }
+        FlipManager flipManager = newFlipManager();
+        Transaction t = transaction(OfferStatus.BUY, 1001, 100, now - 10);
+        flipManager.applyTransaction(t, "Acc 0");
+        Assert.assertEquals(0, flipManager.existingCloseTimes.size());
+
+        flipManager.syncFlips(0);
+        Assert.assertEquals(serverFlips.size() + 1, flipManager.existingCloseTimes.size());
+        // taken in already, so applying it again changes nothing
+        flipManager.applyTransaction(t, "Acc 0");
+        Assert.assertEquals(serverFlips.size() + 1, flipManager.existingCloseTimes.size());
+    }
+
+    @Test
+    public void testLostSpillFileAbortsSnapshotAndRetryReloads() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 2000; i++) {
+            putServerFlip(newFlip(now - 3600 * 4 * i - 3600, i % 2), now - 3600);
+        }
+        FlipManager flipManager = newFlipManager();
+        flipManager.setRetentionWeeks(2);
+        flipManager.syncFlips(0);
+        Path snapshotFile = directory.resolve(USER_ID + "_flips.bin");
+        byte[] snapshot = Files.readAllBytes(snapshotFile);
+        Path spillFile;
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            spillFile = files.filter(p -> p.getFileName().toString().startsWith(USER_ID + "_cold_flips_")).findFirst().get();
+        }
+        Files.write(spillFile, new byte[0]);
+
+        FlipV2 updated = copy(serverFlips.values().iterator().next());
+        updated.setProfit(updated.getProfit() + 1000);
+        putServerFlip(updated, now);
+        try {
+            flipManager.syncFlips(0);
+            Assert.fail();
+        } catch (java.io.UncheckedIOException e) {
+            // the cold weeks can't be read back
+        }
+        Assert.assertArrayEquals(snapshot, Files.readAllBytes(snapshotFile));
+        Assert.assertFalse(Files.exists(spillFile));
+
+        flipManager.syncFlips(0);
+        assertMatchesServer(flipManager);
+        Assert.assertEquals(serverFlips.size(), Persistance.loadFlipSnapshot(USER_ID).size());
+    }
+
+    @Test
+    public void testFlipsRebuiltOfflineUntilServerIsBack() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        List<Transaction> logged = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Transaction buy = transaction(OfferStatus.BUY, 560 + i, 200, now - 7200 + i);
+            Transaction sell = transaction(OfferStatus.SELL, 560 + i, 250, now - 3600 + i);
+            logged.add(buy);
+            Persistance.storeTransaction(buy, "Acc 0");
+            Persistance.storeTransaction(sell, "Acc 0");
+        }
+        FlipManager flipManager = newFlipManager();
+        flipManager.setIntervalDisplayName("Acc 0");
+        flipManager.loadLocalFlips(0);
+
+        Assert.assertEquals(20, flipManager.existingCloseTimes.size());
+        logged.forEach(t -> Assert.assertNotEquals(LongPairIntMap.MISSING, flipManager.existingCloseTimes.get(t.getId())));
+        Assert.assertEquals(20, flipManager.getIntervalStats().flipsMade);
+        Assert.assertEquals(FlipManager.OFFLINE_ACCOUNT_ID, (int) flipManager.displayNameToAccountId.get("Acc 0"));
+
+        // once the server is back its flips replace the ones rebuilt from the log
+        for (int i = 0; i < 30; i++) {
+            putServerFlip(newFlip(now - 3600 - i, 0), now - 60);
+        }
+        flipManager.syncFlips(0);
+        assertMatchesServer(flipManager);
+        Assert.assertEquals(0, (int) flipManager.displayNameToAccountId.get("Acc 0"));
+        Assert.assertEquals(30, flipManager.getIntervalStats().flipsMade);
+    }
+
+    @Test
+    public void testHistoryIsStreamedWithProgress() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        for (int i = 0; i < 12_000; i++) {
+            putServerFlip(newFlip(now - 60 * i - 60, i % 2), now - 60);
+        }
+
+        List<Integer> progress = new ArrayList<>();
+        FlipManager flipManager = newFlipManager();
+        flipManager.setFlipsLoadingCallback(progress::add);
+        flipManager.syncFlips(0);
+        Assert.assertEquals(Arrays.asList(5000, 10_000, 12_000, -1), progress);
+        assertMatchesServer(flipManager);
+    }
+
+    @Test
+    public void testOnlyServerFaultsReportedAsServerErrors() {
+        int now = (int) Instant.now().getEpochSecond();
+        putServerFlip(newFlip(now - 60, 0), now - 60);
+        try {
+            api.streamFlipsSince(0, f -> {
+                throw new IllegalStateException("new flips must be added before the existing ones");
+            }, n -> {});
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("new flips must be added before the existing ones", e.getMessage());
+        } catch (HttpResponseException e) {
+            Assert.fail("the consumer's error was reported as a server error");
+        }
+
+        server.removeContext("/profit-tracking/client-flips");
+        server.createContext("/profit-tracking/client-flips", (ex) -> respond(ex, "{\"flips\":[]}"));
+        try {
+            api.streamFlipsSince(0, f -> {}, n -> {});
+            Assert.fail();
+        } catch (HttpResponseException e) {
+            Assert.assertEquals(-1, e.getResponseCode());
+        }
+    }
+
+    private FlipManager newFlipManager() {
+        return new FlipManager(api, new DoesNothingExecutorService(), okHttpClient, loginResponseManager);
+    }
+
+    private void assertMatchesServer(FlipManager flipManager) {
+        Stats expected = new Stats(0, 0, 0, 0);
+        serverFlips.values().forEach(expected::addFlip);
+        Assert.assertEquals(expected, flipManager.calculateStats(0, Integer.MAX_VALUE, null));
+        Assert.assertEquals(serverFlips.size(), flipManager.existingCloseTimes.size());
+        serverFlips.values().forEach(f -> Assert.assertEquals(f.getClosedTime(), flipManager.existingCloseTimes.get(f.getId())));
+    }
+
+    private synchronized void serveFlips(HttpExchange ex) throws IOException {
+        String query = ex.getRequestURI().getQuery();
+        int since = query == null ? 0 : Integer.parseInt(query.replace("since=", ""));
+        List<FlipV2> changed = serverFlips.values().stream()
+                .filter(f -> serverUpdatedTimes.get(f.getId()) >= since)
+                .collect(Collectors.toList());
+        requestedSince.add(since);
+        responseSizes.add(changed.size());
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(200, 0);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write('[');
+            for (int i = 0; i < changed.size(); i++) {
+                os.write(((i > 0 ? "," : "") + gson.toJson(changed.get(i))).getBytes(StandardCharsets.UTF_8));
+            }
+            os.write(']');
+        }
+    }
+
+    private synchronized void putServerFlip(FlipV2 flip, int updatedTime) {
+        serverFlips.put(flip.getId(), flip);
+        serverUpdatedTimes.put(flip.getId(), updatedTime);
+    }
+
+    private static void respond(HttpExchange ex, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Transaction transaction(OfferStatus type, int itemId, int price, int time) {
+        Transaction t = new Transaction();
+        t.setId(UUID.randomUUID());
+        t.setType(type);
+        t.setItemId(itemId);
+        t.setQuantity(10);
+        t.setPrice(price);
+        t.setAmountSpent(10 * price);
+        t.setTimestamp(Instant.ofEpochSecond(time));
+        return t;
+    }
+
+    private static FlipV2 newFlip(int closedTime, int accountId) {
+        Random random = new Random();
+        FlipV2 f = new FlipV2();
+        f.setId(UUID.randomUUID());
+        f.setAccountId(accountId);
+        f.setItemId(random.nextInt(1000));
+        f.setItemName("Item " + f.getItemId());
+        f.setOpenedTime(closedTime - 600);
+        f.setOpenedQuantity(10);
+        f.setClosedQuantity(10);
+        f.setClosedTime(closedTime);
+        f.setSpent(random.nextInt(1_000_000));
+        f.setProfit(random.nextInt(20_000) - 5_000);
+        f.setClosed(true);
+        return f;
+    }
+
+    private static FlipV2 copy(FlipV2 f) {
+        FlipV2 c = new FlipV2();
+        c.setId(f.getId());
+        c.setAccountId(f.getAccountId());
+        c.setItemId(f.getItemId());
+        c.setItemName(f.getItemName());
+        c.setOpenedTime(f.getOpenedTime());
+        c.setOpenedQuantity(f.getOpenedQuantity());
+        c.setClosedQuantity(f.getClosedQuantity());
+        c.setClosedTime(f.getClosedTime());
+        c.setSpent(f.getSpent());
+        c.setProfit(f.getProfit());
+        c.setClosed(f.isClosed());
+        return c;
+    }
+}
@@ -5,7 +5,12 @@ import okhttp3.OkHttpClient;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -27,7 +32,7 @@ public class FlipManagerTest {
         List<FlipV2> flips = generateFlipsBetween(sixMonthsAgo, now, 10_000, List.of(0));
 
         // create and populate the flip cache
-        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build());
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
         flipManager.setFlipsChangedCallback(() -> {});
         flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
         flipManager.mergeFlips(flips, null);
@@ -76,14 +81,14 @@ public class FlipManagerTest {
         List<FlipV2> flips = generateFlipsBetween(sixMonthsAgo, now, 5_000, List.of(0, 1, 2));
 
         // create and populate the flip cache
-        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build());
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
         flipManager.setFlipsChangedCallback(() -> {});
         flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
         flipManager.mergeFlips(flips, null);
         verifyflipManagerStoredOrder(flipManager);
 
 
-        flips.sort(Comparator.comparing(FlipV2::getClosedTime).reversed().thenComparing(Comparator.comparing(FlipV2::getId).reversed()));
+        flips.sort(Comparator.comparing(FlipV2::getClosedTime).reversed().thenComparing(FlipV2::getId));
 
         // create list of test interval start times
         List<Integer> testTimes = Stream.generate(()-> randomIntBetween(sixMonthsAgo, now)).limit(100).collect(Collectors.toList());
@@ -121,13 +126,522 @@ public class FlipManagerTest {
         }
     }
 
+    @Test
+    public void testCursorPagination() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 20_000, List.of(0, 1, 2));
+        // plenty of same second ties across and within accounts
+        for (int i = 0; i < flips.size(); i += 7) {
+            flips.get(i).setClosedTime(flips.get(i / 2).getClosedTime());
+        }
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        flipManager.mergeFlips(flips, null);
+        flips.sort(Comparator.comparing(FlipV2::getClosedTime).reversed().thenComparing(FlipV2::getId));
+
+        for (String name : Arrays.asList(DISPLAY_NAME_2, null)) {
+            flipManager.setIntervalDisplayName(name);
+            for (int time : Arrays.asList(0, randomIntBetween(oneYearAgo, now))) {
+                flipManager.setIntervalStartTime(time);
+                // walking the cursor through the whole log visits the same pages as the page numbers do
+                FlipCursor cursor = null;
+                for (int page = 1; ; page++) {
+                    List<FlipV2> pageFlips = flipManager.getPageFlips(cursor, 97);
+                    assertFlipListsEqual(pageFlips, expectedPage(flips, time, page, 97, name));
+                    if (pageFlips.isEmpty()) {
+                        break;
+                    }
+                    cursor = FlipCursor.after(pageFlips.get(pageFlips.size() - 1));
+                }
+
+                // jump to a date
+                int seekTime = randomIntBetween(Math.max(time, oneYearAgo), now);
+                List<FlipV2> expected = flips.stream()
+                        .filter(f -> f.getClosedTime() < seekTime && f.getClosedTime() >= time)
+                        .filter(f -> name == null || f.getAccountId() == displayNameToAccountId.get(name))
+                        .limit(50)
+                        .collect(Collectors.toList());
+                assertFlipListsEqual(flipManager.getPageFlips(FlipCursor.beforeTime(seekTime), 50), expected);
+            }
+        }
+    }
+
+    @Test
+    public void testRowMergeSteppingBothWays() {
+        int now = (int) Instant.now().getEpochSecond();
+        int weekAgo = now - 7 * 24 * 60 * 60;
+        List<FlipV2> flips = generateFlipsBetween(weekAgo, now, 2_000, List.of(0, 1, 2));
+        for (int i = 0; i < flips.size(); i += 5) {
+            flips.get(i).setClosedTime(flips.get(i / 2).getClosedTime());
+        }
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.mergeFlips(flips, null);
+
+        for (FlipManager.WeekAggregate w : flipManager.weeks) {
+            List<UUID> forward = new ArrayList<>();
+            FlipRowMerge merge = w.mergeFrom(0, null);
+            Assert.assertEquals(w.allStats.flipsMade, merge.remainingBefore());
+            while (merge.previous()) {
+                forward.add(merge.column().get(merge.row(), i -> null).getId());
+            }
+            Assert.assertEquals(0, merge.remainingBefore());
+            // stepping forward again visits the rows in reverse, so the newest first order
+            List<UUID> backward = new ArrayList<>();
+            while (merge.next()) {
+                backward.add(0, merge.column().get(merge.row(), i -> null).getId());
+            }
+            Assert.assertEquals(forward, backward);
+            Assert.assertEquals(w.allStats.flipsMade, forward.size());
+        }
+    }
+
+    @Test
+    public void testColdWeeksSpilledAndReadBack() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        int twoYearsAgo = (int) Instant.now().minus(730, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(twoYearsAgo, now, 20_000, List.of(0, 1, 2));
+        Path spillFile = Files.createTempFile("flip-spill-test", ".seg");
+
+        FlipManager resident = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        FlipManager spilling = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        spilling.setRetentionWeeks(8);
+        Assert.assertTrue(spilling.openSpillStore(spillFile, 0));
+        for (FlipManager m : Arrays.asList(resident, spilling)) {
+            m.displayNameToAccountId.putAll(displayNameToAccountId);
+            m.mergeFlips(flips, null);
+        }
+        long cold = spilling.weeks.stream().filter(w -> !w.isResident()).count();
+        Assert.assertTrue(cold >= spilling.weeks.size() - 10);
+        Assert.assertTrue(Files.size(spillFile) > 0);
+
+        // updates of old flips thaw their week, the next merge spills it again
+        List<FlipV2> updates = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            FlipV2 f = flips.get(randomIntBetween(0, flips.size() - 1));
+            FlipV2 updated = new FlipV2();
+            updated.setId(f.getId());
+            updated.setAccountId(f.getAccountId());
+            updated.setItemId(f.getItemId());
+            updated.setClosedTime(randomIntBetween(twoYearsAgo, now));
+            updated.setProfit(f.getProfit() + 1);
+            updated.setSpent(f.getSpent());
+            updates.add(updated);
+        }
+        resident.mergeFlips(updates, null);
+        spilling.mergeFlips(updates, null);
+        Assert.assertEquals(cold, spilling.weeks.stream().filter(w -> !w.isResident()).count());
+
+        for (String name : Arrays.asList(DISPLAY_NAME_1, null)) {
+            for (FlipManager m : Arrays.asList(resident, spilling)) {
+                m.setIntervalDisplayName(name);
+                m.setIntervalStartTime(twoYearsAgo + 1000);
+            }
+            Assert.assertEquals(resident.getIntervalStats(), spilling.getIntervalStats());
+            for (int page : Arrays.asList(1, 40, 120)) {
+                assertFlipListsEqual(resident.getPageFlips(page, 50), spilling.getPageFlips(page, 50));
+            }
+            FlipCursor cursor = FlipCursor.beforeTime(twoYearsAgo + 30 * 24 * 60 * 60);
+            assertFlipListsEqual(resident.getPageFlips(cursor, 50), spilling.getPageFlips(cursor, 50));
+            Assert.assertEquals(resident.getIntervalTopItems(10, ItemSortKey.PROFIT), spilling.getIntervalTopItems(10, ItemSortKey.PROFIT));
+        }
+        for (int i = 0; i < 100; i++) {
+            int start = randomIntBetween(twoYearsAgo, now);
+            int end = start + randomIntBetween(0, 60 * 24 * 60 * 60);
+            for (Integer accountId : Arrays.asList(0, 1, 2, null)) {
+                Assert.assertEquals(resident.calculateStats(start, end, accountId), spilling.calculateStats(start, end, accountId));
+            }
+        }
+
+        spilling.reset();
+        Assert.assertFalse(Files.exists(spillFile));
+    }
+
+    @Test
+    public void testRangeStats() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 10_000, List.of(0, 1, 2));
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.setFlipsChangedCallback(() -> {});
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        flipManager.mergeFlips(flips, null);
+
+        assertRangeStatsMatch(flipManager, flips, oneYearAgo, now);
+    }
+
+    @Test
+    public void testRangeStatsTimeZones() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 10_000, List.of(0, 1, 2));
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.setFlipsChangedCallback(() -> {});
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        flipManager.setTimeZone(ZoneId.of("America/New_York"));
+        flipManager.mergeFlips(flips, null);
+        assertRangeStatsMatch(flipManager, flips, oneYearAgo, now);
+
+        // changing the zone re-buckets the flips already loaded, Lord Howe has a 30 minute DST shift
+        for (String zone : List.of("Asia/Kolkata", "Australia/Lord_Howe", "UTC")) {
+            flipManager.setTimeZone(ZoneId.of(zone));
+            assertRangeStatsMatch(flipManager, flips, oneYearAgo, now);
+            // ranges starting and ending on local midnight and hour boundaries
+            ZoneId z = ZoneId.of(zone);
+            for (int i = 0; i < 100; i++) {
+                ZonedDateTime from = LocalDate.ofInstant(Instant.ofEpochSecond(randomIntBetween(oneYearAgo, now)), z).atStartOfDay(z);
+                ZonedDateTime to = i % 2 == 0 ? from.plusDays(randomIntBetween(1, 20)) : from.plusHours(randomIntBetween(1, 50));
+                assertRangeStatsMatch(flipManager, flips, (int) from.toEpochSecond(), (int) to.toEpochSecond(), i % 4 == 0 ? null : i % 3);
+            }
+        }
+        Assert.assertEquals(flips.size(), flipManager.calculateStats(oneYearAgo, now + 1, null).flipsMade);
+    }
+
+    @Test
+    public void testTopItems() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 100_000, List.of(0, 1, 2));
+        flips.forEach(f -> {
+            f.setItemId(randomIntBetween(1, 4000));
+            f.setItemName("Item " + f.getItemId());
+        });
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.setFlipsChangedCallback(() -> {});
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        flipManager.mergeFlips(flips, null);
+
+        for (int i = 0; i < 20; i++) {
+            int start = randomIntBetween(oneYearAgo - 100_000, now);
+            Integer accountId = i % 4 == 3 ? null : i % 4;
+            ItemSortKey sortKey = ItemSortKey.values()[i % ItemSortKey.values().length];
+
+            Map<Integer, Stats> expectedByItem = new HashMap<>();
+            for (FlipV2 f : flips) {
+                if (f.getClosedTime() >= start && (accountId == null || accountId == f.getAccountId())) {
+                    expectedByItem.computeIfAbsent(f.getItemId(), (k) -> new Stats()).addFlip(f);
+                }
+            }
+            List<ItemStats> expected = expectedByItem.entrySet().stream()
+                    .map(e -> new ItemStats(e.getKey(), "Item " + e.getKey(), e.getValue()))
+                    .sorted(Comparator.comparing(ItemStats::getStats, sortKey.getComparator()).thenComparingInt(ItemStats::getItemId))
+                    .limit(10)
+                    .collect(Collectors.toList());
+
+            Assert.assertEquals(expected, flipManager.topItems(start, accountId, 10, sortKey));
+        }
+    }
+
+    @Test
+    public void testBulkMergeMatchesIncrementalMerge() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 20_000, List.of(0, 1, 2));
+        flips.forEach(f -> {
+            f.setItemId(randomIntBetween(1, 500));
+            f.setItemName("Item " + f.getItemId());
+        });
+        // updated copies of some flips, these should replace the originals
+        for (int i = 0; i < 500; i++) {
+            FlipV2 original = flips.get(i * 7);
+            FlipV2 updated = new FlipV2();
+            updated.setId(original.getId());
+            updated.setAccountId(original.getAccountId());
+            updated.setItemId(original.getItemId());
+            updated.setItemName(original.getItemName());
+            updated.setSpent(original.getSpent());
+            updated.setClosedTime(randomIntBetween(oneYearAgo, now));
+            updated.setProfit(randomIntBetween(-1000, 1000));
+            flips.add(updated);
+        }
+
+        FlipManager bulk = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        bulk.displayNameToAccountId.putAll(displayNameToAccountId);
+        bulk.setIntervalStartTime(oneYearAgo + 1000);
+        bulk.mergeFlips(flips.subList(0, 50), null);
+        bulk.mergeFlips(flips, null);
+
+        FlipManager incremental = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        incremental.displayNameToAccountId.putAll(displayNameToAccountId);
+        incremental.setIntervalStartTime(oneYearAgo + 1000);
+        incremental.mergeFlips(flips.subList(0, 50), null);
+        for (int i = 0; i < flips.size(); i += 500) {
+            incremental.mergeFlips(flips.subList(i, Math.min(i + 500, flips.size())), null);
+        }
+
+        verifyflipManagerStoredOrder(bulk);
+        Assert.assertEquals(incremental.existingCloseTimes, bulk.existingCloseTimes);
+        Assert.assertEquals(incremental.getIntervalStats(), bulk.getIntervalStats());
+        Assert.assertEquals(incremental.weeks.size(), bulk.weeks.size());
+        for (int i = 0; i < bulk.weeks.size(); i++) {
+            FlipManager.WeekAggregate a = incremental.weeks.get(i);
+            FlipManager.WeekAggregate b = bulk.weeks.get(i);
+            Assert.assertEquals(a.weekStart, b.weekStart);
+            Assert.assertEquals(a.allStats, b.allStats);
+            Assert.assertEquals(a.accountIdToStats, b.accountIdToStats);
+            for (Map.Entry<Integer, FlipColumns> e : b.accountIdToFlips.entrySet()) {
+                FlipColumns ca = a.accountIdToFlips.get(e.getKey());
+                FlipColumns cb = e.getValue();
+                Assert.assertEquals(ca.size(), cb.size());
+                for (int ii = 0; ii < cb.size(); ii++) {
+                    Assert.assertEquals(ca.get(ii, incremental.itemNames::get), cb.get(ii, bulk.itemNames::get));
+                }
+            }
+        }
+        Assert.assertEquals(incremental.topItems(0, null, 20, ItemSortKey.PROFIT), bulk.topItems(0, null, 20, ItemSortKey.PROFIT));
+        Assert.assertEquals(incremental.calculateStats(oneYearAgo, now + 1, 1), bulk.calculateStats(oneYearAgo, now + 1, 1));
+    }
+
+    @Test
+    public void testLoadedFlipsMergedWhileOtherFlipsArrive() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        int twoYearsAgo = (int) Instant.now().minus(730, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> history = generateFlipsBetween(twoYearsAgo, now, 200_000, List.of(0, 1, 2));
+        List<FlipV2> live = generateFlipsBetween(now - 3600, now, 2_000, List.of(0, 1, 2));
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        Thread loader = new Thread(() -> flipManager.mergeLoadedFlips(history, 0));
+        loader.start();
+        // flips keep arriving from new transactions while the history is loading
+        for (int i = 0; i < live.size(); i += 20) {
+            flipManager.mergeFlips(live.subList(i, Math.min(i + 20, live.size())), null);
+            flipManager.getIntervalStats();
+        }
+        loader.join();
+
+        List<FlipV2> all = new ArrayList<>(history);
+        all.addAll(live);
+        verifyflipManagerStoredOrder(flipManager);
+        Assert.assertTrue(flipManager.flipsLoaded);
+        Assert.assertEquals(all.size(), flipManager.existingCloseTimes.size());
+        Assert.assertEquals(expectedStats(all, 0, null), flipManager.getIntervalStats());
+        for (Integer accountId : Arrays.asList(0, 1, 2)) {
+            assertRangeStatsMatch(flipManager, all, twoYearsAgo, now, accountId);
+        }
+    }
+
+    @Test
+    public void testConcurrentMergesAndReads() throws Exception {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 60_000, List.of(0, 1, 2));
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        Queue<Throwable> failures = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        java.util.concurrent.CountDownLatch writersDone = new java.util.concurrent.CountDownLatch(3);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 3; w++) {
+            List<FlipV2> part = flips.subList(w * flips.size() / 3, (w + 1) * flips.size() / 3);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < part.size(); i += 50) {
+                        flipManager.mergeFlips(part.subList(i, Math.min(i + 50, part.size())), null);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                } finally {
+                    writersDone.countDown();
+                }
+            }));
+        }
+        for (int r = 0; r < 4; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    int lastFlipsMade = 0;
+                    while (writersDone.getCount() > 0) {
+                        // flips are only ever added, so each read must see at least as many as the previous one
+                        Stats all = flipManager.calculateStats(0, Integer.MAX_VALUE, null);
+                        Assert.assertTrue(all.flipsMade >= lastFlipsMade && all.flipsMade <= flips.size());
+                        lastFlipsMade = all.flipsMade;
+
+                        List<FlipV2> page = flipManager.getPageFlips(1, 50);
+                        for (int i = 1; i < page.size(); i++) {
+                            Assert.assertTrue(page.get(i - 1).getClosedTime() >= page.get(i).getClosedTime());
+                        }
+                        flipManager.topItems(oneYearAgo, null, 10, ItemSortKey.PROFIT);
+                        flipManager.getIntervalStats();
+                        flipManager.getDisplayNameOptions();
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+        verifyflipManagerStoredOrder(flipManager);
+        Assert.assertEquals(flips.size(), flipManager.existingCloseTimes.size());
+        Assert.assertEquals(expectedStats(flips, 0, null), flipManager.getIntervalStats());
+        assertRangeStatsMatch(flipManager, flips, oneYearAgo, now);
+    }
+
+    @Test
+    public void testStatsSnapshotPublishedAfterChanges() {
+        int now = (int) Instant.now().getEpochSecond();
+        int oneYearAgo = (int) Instant.now().minus(365, ChronoUnit.DAYS).getEpochSecond();
+        List<FlipV2> flips = generateFlipsBetween(oneYearAgo, now, 2_000, List.of(0, 1));
+
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        long version = flipManager.getStatsSnapshot().getVersion();
+
+        flipManager.mergeFlips(flips.subList(0, 100), null);
+        FlipStatsSnapshot snapshot = flipManager.getStatsSnapshot();
+        Assert.assertTrue(snapshot.getVersion() > version);
+        Assert.assertEquals(flipManager.getIntervalStats(), snapshot.getIntervalStats());
+        Assert.assertEquals(flipManager.getDisplayNameOptions(), snapshot.getDisplayNameOptions());
+
+        flipManager.mergeFlips(flips.subList(100, flips.size()), null);
+        flipManager.setIntervalDisplayName(DISPLAY_NAME_2);
+        flipManager.setIntervalStartTime(oneYearAgo + 1000);
+        snapshot = flipManager.getStatsSnapshot();
+        Assert.assertEquals(DISPLAY_NAME_2, snapshot.getIntervalDisplayName());
+        Assert.assertEquals(oneYearAgo + 1000, snapshot.getIntervalStartTime());
+        Assert.assertEquals(expectedStats(flips, oneYearAgo + 1000, DISPLAY_NAME_2), snapshot.getIntervalStats());
+
+        // no change, no new snapshot
+        flipManager.setIntervalStartTime(oneYearAgo + 1000);
+        Assert.assertSame(snapshot, flipManager.getStatsSnapshot());
+    }
+
+    @Test
+    public void testProvisionalFlipsUntilAcknowledged() {
+        int now = (int) Instant.now().getEpochSecond();
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+
+        // the server has an open flip of 100 units bought for 1000gp each
+        FlipV2 open = new FlipV2();
+        open.setId(UUID.randomUUID());
+        open.setAccountId(0);
+        open.setItemId(560);
+        open.setOpenedTime(now - 100);
+        open.setClosedTime(now - 100);
+        open.setOpenedQuantity(100);
+        open.setSpent(100_000);
+        flipManager.mergeFlips(List.of(open), DISPLAY_NAME_1);
+        Assert.assertEquals(expectedStats(List.of(open), 0, null), flipManager.getIntervalStats());
+
+        // selling 40 shows up in the stats straight away
+        Transaction sell = transaction(OfferStatus.SELL, 560, 40, 1200, now - 50);
+        flipManager.applyTransaction(sell, DISPLAY_NAME_1);
+        FlipV2 sold = ProvisionalFlips.apply(open, 0, sell, null);
+        Assert.assertEquals(expectedStats(List.of(sold), 0, null), flipManager.getIntervalStats());
+        Assert.assertEquals(1, flipManager.existingCloseTimes.size());
+
+        // a buy of an item without an open flip opens a local one
+        Transaction buy = transaction(OfferStatus.BUY, 4151, 1, 1_500_000, now - 40);
+        flipManager.applyTransaction(buy, DISPLAY_NAME_1);
+        Assert.assertEquals(2, flipManager.existingCloseTimes.size());
+
+        // the server acknowledges the sell with its own numbers, the buy stays provisional
+        FlipV2 serverSold = ProvisionalFlips.apply(open, 0, sell, null);
+        serverSold.setProfit(serverSold.getProfit() - 5);
+        flipManager.mergeAckedFlips(List.of(serverSold), DISPLAY_NAME_1, List.of(sell));
+        FlipV2 bought = ProvisionalFlips.apply(null, 0, buy, null);
+        Assert.assertEquals(expectedStats(List.of(serverSold, bought), 0, null), flipManager.getIntervalStats());
+        Assert.assertEquals(2, flipManager.existingCloseTimes.size());
+
+        // once the buy is acknowledged the locally opened flip is replaced by the server's
+        FlipV2 serverBought = ProvisionalFlips.apply(null, 0, buy, null);
+        flipManager.mergeAckedFlips(List.of(serverBought), DISPLAY_NAME_1, List.of(buy));
+        Assert.assertEquals(2, flipManager.existingCloseTimes.size());
+        Assert.assertEquals(expectedStats(List.of(serverSold, serverBought), 0, null), flipManager.getIntervalStats());
+        Assert.assertEquals(serverBought.getId(), flipManager.lastOpenFLipByItemId.get(0, 4151).getId());
+        Assert.assertTrue(flipManager.provisionalFlips.isEmpty());
+    }
+
+    @Test
+    public void testFailedAckedMergeKeepsTransactionsPending() {
+        int now = (int) Instant.now().getEpochSecond();
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        flipManager.displayNameToAccountId.putAll(displayNameToAccountId);
+        FlipV2 open = new FlipV2();
+        open.setId(UUID.randomUUID());
+        open.setAccountId(0);
+        open.setItemId(560);
+        open.setOpenedTime(now - 100);
+        open.setClosedTime(now - 100);
+        open.setOpenedQuantity(100);
+        open.setSpent(100_000);
+        flipManager.mergeFlips(List.of(open), DISPLAY_NAME_1);
+        Transaction sell = transaction(OfferStatus.SELL, 560, 40, 1200, now - 50);
+        flipManager.applyTransaction(sell, DISPLAY_NAME_1);
+        FlipV2 sold = ProvisionalFlips.apply(open, 0, sell, null);
+
+        // a flip without an id can't be merged
+        FlipV2 broken = ProvisionalFlips.apply(open, 0, sell, null);
+        broken.setId(null);
+        try {
+            flipManager.mergeAckedFlips(List.of(broken), DISPLAY_NAME_1, List.of(sell));
+            Assert.fail();
+        } catch (RuntimeException e) {
+            // the batch is sent again
+        }
+        Assert.assertEquals(1, flipManager.provisionalFlips.pending.size());
+        Assert.assertEquals(expectedStats(List.of(sold), 0, null), flipManager.getIntervalStats());
+
+        FlipV2 serverSold = ProvisionalFlips.apply(open, 0, sell, null);
+        flipManager.mergeAckedFlips(List.of(serverSold), DISPLAY_NAME_1, List.of(sell));
+        Assert.assertTrue(flipManager.provisionalFlips.isEmpty());
+        Assert.assertEquals(expectedStats(List.of(serverSold), 0, null), flipManager.getIntervalStats());
+    }
+
+    private void assertRangeStatsMatch(FlipManager flipManager, List<FlipV2> flips, int oneYearAgo, int now) {
+        for (int i = 0; i < 200; i++) {
+            int a = randomIntBetween(oneYearAgo - 100_000, now + 100_000);
+            int b = randomIntBetween(oneYearAgo - 100_000, now + 100_000);
+            int start = Math.min(a, b);
+            // mix of sub-week, multi-week and exact boundary windows
+            int end = i % 3 == 0 ? start + randomIntBetween(0, 3 * 24 * 60 * 60) : i % 3 == 1 ? Math.max(a, b) : flips.get(i).getClosedTime();
+            for (Integer accountId : Arrays.asList(0, 1, 2, null)) {
+                assertRangeStatsMatch(flipManager, flips, start, end, accountId);
+            }
+        }
+    }
+
+    private void assertRangeStatsMatch(FlipManager flipManager, List<FlipV2> flips, int start, int end, Integer accountId) {
+        Stats expected = new Stats(0, 0, 0, 0);
+        for (FlipV2 f : flips) {
+            if (f.getClosedTime() >= start && f.getClosedTime() < end && (accountId == null || accountId == f.getAccountId())) {
+                expected.addFlip(f);
+            }
+        }
+        Assert.assertEquals(expected, flipManager.calculateStats(start, end, accountId));
+    }
+
+    private static Transaction transaction(OfferStatus type, int itemId, int quantity, int price, int time) {
+        Transaction t = new Transaction();
+        t.setId(UUID.randomUUID());
+        t.setType(type);
+        t.setItemId(itemId);
+        t.setQuantity(quantity);
+        t.setPrice(price);
+        t.setAmountSpent(quantity * price);
+        t.setTimestamp(Instant.ofEpochSecond(time));
+        return t;
+    }
+
     public void verifyflipManagerStoredOrder(FlipManager flipManager) {
         for (int i =0; i < flipManager.weeks.size(); i++) {
             Assert.assertTrue(flipManager.weeks.get(Math.max(i-1,0)).weekStart <= flipManager.weeks.get(i).weekStart);
             FlipManager.WeekAggregate w = flipManager.weeks.get(i);
-            for (List<FlipV2> flips : w.accountIdToFlips.values()) {
+            for (FlipColumns flips : w.accountIdToFlips.values()) {
                 for (int ii =1; ii < flips.size(); ii++) {
-                    Assert.assertTrue(flips.get(ii-1).getClosedTime() <= flips.get(ii).getClosedTime());
+                    Assert.assertTrue(flips.closedTime(ii-1) <= flips.closedTime(ii));
                 }
             }
         }
@@ -138,7 +652,7 @@ public class FlipManagerTest {
         int toSkip = (pageNumber - 1) * pageSize;
         List<FlipV2> page = new ArrayList<>();
         for(FlipV2 f : flips) {
-            if(f.getClosedTime() > time && (accountId == null || accountId == f.getAccountId())) {
+            if(f.getClosedTime() >= time && (accountId == null || accountId == f.getAccountId())) {
                 if(toSkip > 0) {
                     toSkip -= 1;
                 } else {
@@ -169,16 +683,17 @@ public class FlipManagerTest {
         Integer accountId = displayName == null ? null : displayNameToAccountId.getOrDefault(displayName, -1);
         Stats stats = new Stats(0,0,0,0);
         for(FlipV2 f : flips) {
-            if(f.getClosedTime() > time && (accountId == null || accountId == f.getAccountId())) {
+            if(f.getClosedTime() >= time && (accountId == null || accountId == f.getAccountId())) {
                 stats.flipsMade += 1;
                 stats.gross += f.getSpent();
                 stats.profit += f.getProfit();
+                stats.taxPaid += f.getTaxPaid();
             }
         }
         return stats;
     }
 
-    private List<FlipV2> generateFlipsBetween(int start, int end, int number, List<Integer> accountIds) {
+    static List<FlipV2> generateFlipsBetween(int start, int end, int number, List<Integer> accountIds) {
         List<FlipV2> flips = new ArrayList<>();
         for (int i =0; i< number; i++) {
             FlipV2 f = new FlipV2();
@@ -195,7 +710,7 @@ public class FlipManagerTest {
         return flips;
     }
 
-    private int randomIntBetween(int min, int max) {
+    static int randomIntBetween(int min, int max) {
         return (int)(Math.random() * ((max - min) + 1)) + min;
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.flippingcopilot.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class LongPairIntMapTest {
+
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(7);
+        LongPairIntMap map = new LongPairIntMap();
+        Map<List<Long>, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            // small keys, including the all zero one, so probe runs collide and get shifted back on removal
+            long k1 = random.nextInt(30);
+            long k2 = random.nextInt(300);
+            List<Long> key = Arrays.asList(k1, k2);
+            if (random.nextInt(3) == 0) {
+                Integer removed = expected.remove(key);
+                Assert.assertEquals(removed == null ? LongPairIntMap.MISSING : removed, map.remove(k1, k2));
+            } else {
+                Integer previous = expected.put(key, i);
+                Assert.assertEquals(previous == null ? LongPairIntMap.MISSING : previous, map.put(k1, k2, i));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        for (long k1 = 0; k1 < 30; k1++) {
+            for (long k2 = 0; k2 < 300; k2++) {
+                Integer value = expected.get(Arrays.asList(k1, k2));
+                Assert.assertEquals(value == null ? LongPairIntMap.MISSING : value, map.get(k1, k2));
+            }
+        }
+        List<List<Long>> visited = new ArrayList<>();
+        map.forEach((k1, k2, value) -> {
+            Assert.assertEquals(expected.get(Arrays.asList(k1, k2)), (Integer) value);
+            visited.add(Arrays.asList(k1, k2));
+        });
+        Assert.assertEquals(expected.size(), visited.size());
+    }
+
+    @Test
+    public void testUuidKeysMatchHashMap() {
+        int n = 100_000;
+        Random random = new Random(11);
+        UUID[] ids = new UUID[n];
+        int[] closeTimes = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = UUID.randomUUID();
+            closeTimes[i] = random.nextInt();
+        }
+        Map<UUID, Integer> boxed = new HashMap<>();
+        mergeAll(ids, closeTimes, (id, t) -> boxed.merge(id, t, Integer::sum));
+        LongPairIntMap primitive = new LongPairIntMap();
+        mergeAll(ids, closeTimes, (id, t) -> {
+            int existing = primitive.get(id);
+            primitive.put(id, existing == LongPairIntMap.MISSING ? t : existing + t);
+        });
+        Assert.assertEquals(boxed.size(), primitive.size());
+        boxed.forEach((id, t) -> Assert.assertEquals((int) t, primitive.get(id)));
+    }
+
+    interface Merge {
+        void apply(UUID id, int closeTime);
+    }
+
+    // each flip is merged twice, as a flip is when it is first downloaded and then updated
+    static void mergeAll(UUID[] ids, int[] closeTimes, Merge merge) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < ids.length; i++) {
+                merge.apply(ids[i], closeTimes[i]);
+            }
+        }
+    }
+}
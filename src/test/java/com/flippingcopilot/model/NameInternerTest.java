@@ -0,0 +1,60 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.*;
+
+public class NameInternerTest {
+
+    @Test
+    public void testNamesShareOneInstancePerId() {
+        NameInterner interner = new NameInterner();
+        String first = interner.itemName(2, new String("Cannonball"));
+        Assert.assertSame(first, interner.itemName(2, new String("Cannonball")));
+        // a renamed item replaces the canonical name
+        Assert.assertEquals("Steel cannonball", interner.itemName(2, "Steel cannonball"));
+        Assert.assertSame(interner.itemName(2, "Steel cannonball"), interner.itemName(2, new String("Steel cannonball")));
+        Assert.assertNull(interner.itemName(3, null));
+        Assert.assertSame(interner.displayName(1, new String("Zezima")), interner.displayName(1, new String("Zezima")));
+    }
+
+    @Test
+    public void testDecodedHistoryInternedToOneNamePerItem() {
+        List<FlipV2> flips = decodeHistory(20_000, 2_000);
+        NameInterner interner = new NameInterner();
+        flips.forEach(interner::intern);
+
+        Set<String> itemNames = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> displayNames = Collections.newSetFromMap(new IdentityHashMap<>());
+        flips.forEach(f -> {
+            itemNames.add(f.getItemName());
+            displayNames.add(f.getAccountDisplayName());
+        });
+        Assert.assertTrue(itemNames.size() <= 2_000);
+        Assert.assertTrue(displayNames.size() <= 3);
+    }
+
+    // a synthetic flip history over the given number of distinct items, decoded like the server response is
+    static List<FlipV2> decodeHistory(int n, int items) {
+        Random random = new Random(3);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < n; i++) {
+            int itemId = random.nextInt(items);
+            int accountId = random.nextInt(3);
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"id\":\"").append(UUID.randomUUID())
+                    .append("\",\"account_id\":").append(accountId)
+                    .append(",\"item_id\":").append(itemId)
+                    .append(",\"item_name\":\"Some tradeable item ").append(itemId)
+                    .append("\",\"accountDisplayName\":\"Account number ").append(accountId)
+                    .append("\",\"closed_time\":").append(1_700_000_000 + i).append("}");
+        }
+        json.append("]");
+        Type type = new TypeToken<List<FlipV2>>(){}.getType();
+        return new Gson().fromJson(json.toString(), type);
+    }
+}
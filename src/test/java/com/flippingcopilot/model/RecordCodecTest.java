@@ -0,0 +1,185 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import net.runelite.api.GrandExchangeOfferState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+public class RecordCodecTest {
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+            .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, ctx) -> Instant.ofEpochSecond(json.getAsLong()))
+            .create();
+
+    @Test
+    public void testRoundTrip() {
+        Transaction t = transaction(new Random(1));
+        t.setBoxId(-1);
+        t.setTimestamp(Instant.ofEpochSecond(1_700_000_000L, 123_456_789));
+        t.setCopilotPriceUsed(true);
+        t.setConsistent(true);
+        Transaction noTimestamp = transaction(new Random(2));
+        noTimestamp.setTimestamp(null);
+        noTimestamp.setType(OfferStatus.EMPTY);
+        noTimestamp.setLogin(true);
+        SavedOffer offer = new SavedOffer();
+        offer.setItemId(13190);
+        offer.setQuantitySold(3);
+        offer.setTotalQuantity(10);
+        offer.setPrice(Integer.MAX_VALUE);
+        offer.setSpent(Integer.MIN_VALUE);
+        offer.setState(GrandExchangeOfferState.CANCELLED_SELL);
+        offer.setCopilotPriceUsed(true);
+        UUID acked = UUID.randomUUID();
+        UUID generation = UUID.randomUUID();
+
+        RecordCodec.Reader reader = reader(RecordCodec.encode(t), RecordCodec.encode(noTimestamp), RecordCodec.encode(offer),
+                RecordCodec.encodeAck(acked), RecordCodec.encodeGeneration(generation));
+        Assert.assertTrue(reader.next());
+        assertSame(t, reader.transaction());
+        Assert.assertTrue(reader.next());
+        assertSame(noTimestamp, reader.transaction());
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(offer, reader.savedOffer());
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(RecordCodec.ACK, reader.type());
+        Assert.assertEquals(acked, reader.id());
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(RecordCodec.GENERATION, reader.type());
+        Assert.assertEquals(generation, reader.id());
+        Assert.assertFalse(reader.next());
+        Assert.assertFalse(reader.isTorn());
+    }
+
+    @Test
+    public void testNullEnumsKeptAsNull() {
+        Transaction t = transaction(new Random(3));
+        t.setType(null);
+        SavedOffer offer = new SavedOffer();
+        offer.setItemId(560);
+        offer.setState(null);
+
+        RecordCodec.Reader reader = reader(RecordCodec.encode(t), RecordCodec.encode(offer));
+        Assert.assertTrue(reader.next());
+        Assert.assertNull(reader.transaction().getType());
+        Assert.assertTrue(reader.next());
+        Assert.assertNull(reader.savedOffer().getState());
+        Assert.assertEquals(offer, reader.savedOffer());
+    }
+
+    @Test
+    public void testUnknownRecordsSkippedAndTornTailDetected() {
+        Transaction first = transaction(new Random(3));
+        Transaction second = transaction(new Random(4));
+        byte[] unknownType = {4, 9, 1, 7, 7};
+        // a newer layout of a transaction, longer than this version reads
+        byte[] newerVersion = Arrays.copyOf(RecordCodec.encode(first), RecordCodec.encode(first).length + 3);
+        newerVersion[0] += 3;
+        newerVersion[2] = 2;
+        byte[] torn = Arrays.copyOf(RecordCodec.encode(second), 9);
+
+        RecordCodec.Reader reader = reader(RecordCodec.encode(first), unknownType, newerVersion, RecordCodec.encode(second), torn);
+        List<Transaction> read = new ArrayList<>();
+        int skipped = 0;
+        while (reader.next()) {
+            if (reader.isKnown()) {
+                read.add(reader.transaction());
+            } else {
+                skipped++;
+            }
+        }
+        Assert.assertEquals(2, read.size());
+        assertSame(first, read.get(0));
+        assertSame(second, read.get(1));
+        Assert.assertEquals(2, skipped);
+        Assert.assertTrue(reader.isTorn());
+    }
+
+    @Test
+    public void testExportedAsJsonLines() {
+        Transaction t = transaction(new Random(5));
+        UUID acked = UUID.randomUUID();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int n = RecordJsonlExport.export(ByteBuffer.wrap(concat(RecordCodec.encode(t), RecordCodec.encodeAck(acked))),
+                new PrintStream(bytes, true));
+
+        Assert.assertEquals(2, n);
+        String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertSame(t, gson.fromJson(lines[0], Transaction.class));
+        Assert.assertEquals("{\"ack\":\"" + acked + "\"}", lines[1].trim());
+    }
+
+    @Test
+    public void testSmallerThanGsonLines() {
+        int n = 2000;
+        Random random = new Random(6);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Transaction> transactions = new ArrayList<>(n);
+        long gsonBytes = 0;
+        for (int i = 0; i < n; i++) {
+            Transaction t = transaction(random);
+            transactions.add(t);
+            byte[] record = RecordCodec.encode(t);
+            out.write(record, 0, record.length);
+            gsonBytes += gson.toJson(t).getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        byte[] records = out.toByteArray();
+
+        RecordCodec.Reader reader = new RecordCodec.Reader(ByteBuffer.wrap(records));
+        for (Transaction t : transactions) {
+            Assert.assertTrue(reader.next());
+            assertSame(t, reader.transaction());
+        }
+        Assert.assertFalse(reader.next());
+        Assert.assertTrue(records.length * 4 < gsonBytes);
+    }
+
+    private static RecordCodec.Reader reader(byte[]... records) {
+        return new RecordCodec.Reader(ByteBuffer.wrap(concat(records)));
+    }
+
+    private static byte[] concat(byte[]... records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] r : records) {
+            out.write(r, 0, r.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertSame(Transaction expected, Transaction actual) {
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getType(), actual.getType());
+        Assert.assertTrue(expected.equals(actual));
+        Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        Assert.assertEquals(expected.getOfferTotalQuantity(), actual.getOfferTotalQuantity());
+        Assert.assertEquals(expected.isCopilotPriceUsed(), actual.isCopilotPriceUsed());
+        Assert.assertEquals(expected.isLogin(), actual.isLogin());
+        Assert.assertEquals(expected.isConsistent(), actual.isConsistent());
+    }
+
+    static Transaction transaction(Random random) {
+        Transaction t = new Transaction();
+        t.setId(new UUID(random.nextLong(), random.nextLong()));
+        t.setType(random.nextBoolean() ? OfferStatus.BUY : OfferStatus.SELL);
+        t.setItemId(1 + random.nextInt(30_000));
+        t.setQuantity(1 + random.nextInt(10_000));
+        t.setPrice(1 + random.nextInt(2_000_000));
+        t.setAmountSpent(t.getQuantity() * t.getPrice());
+        t.setBoxId(random.nextInt(8));
+        t.setOfferTotalQuantity(t.getQuantity() + random.nextInt(100));
+        t.setTimestamp(Instant.ofEpochSecond(1_700_000_000L + random.nextInt(100_000_000)));
+        return t;
+    }
+}
@@ -0,0 +1,96 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Debugging tool printing the {@link RecordCodec} records of the given files as json lines, e.g. to diff an account's
+ * un acked transactions log or a transaction log segment. It lives with the tests so it isn't shipped in the plugin
+ * jar, run it from the compiled test classes (gson is on the RuneLite client's classpath):
+ * <pre>
+ * ./gradlew testClasses
+ * java -cp build/classes/java/main:build/classes/java/test:&lt;gson jar&gt; com.flippingcopilot.model.RecordJsonlExport \
+ *     ~/.runelite/flipping-copilot/*.bin ~/.runelite/flipping-copilot/*_transactions/*.seg
+ * </pre>
+ * Acks and generations print as {"ack":"id"} and {"log":"id"} like the json lines logs did, state store entries as
+ * {"key":key,"bytes":n} or {"key":key,"removed":true}, records of unknown types or versions as
+ * {"skipped":type,"bytes":n}.
+ */
+public class RecordJsonlExport {
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+            .disableHtmlEscaping()
+            .create();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: RecordJsonlExport <file>...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            export(ByteBuffer.wrap(Files.readAllBytes(Paths.get(arg))), System.out);
+        }
+    }
+
+    /**
+     * Prints a json line per record of the buffer. Returns the number of records printed.
+     */
+    static int export(ByteBuffer buf, PrintStream out) {
+        RecordCodec.Reader reader = new RecordCodec.Reader(buf);
+        int n = 0;
+        try {
+            while (reader.next()) {
+                out.println(toJson(reader));
+                n++;
+            }
+            if (reader.isTorn()) {
+                System.err.println("torn last record at " + reader.recordStart());
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("unreadable record at " + reader.recordStart() + ": " + e.getMessage());
+        }
+        return n;
+    }
+
+    private static String toJson(RecordCodec.Reader reader) {
+        JsonObject o = new JsonObject();
+        if (!reader.isKnown()) {
+            o.addProperty("skipped", reader.type());
+            o.addProperty("bytes", reader.recordEnd() - reader.recordStart());
+            return GSON.toJson(o);
+        }
+        switch (reader.type()) {
+            case RecordCodec.TRANSACTION:
+                return GSON.toJson(reader.transaction());
+            case RecordCodec.SAVED_OFFER:
+                return GSON.toJson(reader.savedOffer());
+            case RecordCodec.ACK:
+                o.addProperty("ack", String.valueOf(reader.id()));
+                return GSON.toJson(o);
+            case RecordCodec.ENTRY:
+                Map.Entry<String, byte[]> entry = reader.entry();
+                o.addProperty("key", entry.getKey());
+                if (entry.getValue() == null) {
+                    o.addProperty("removed", true);
+                } else {
+                    o.addProperty("bytes", entry.getValue().length);
+                }
+                return GSON.toJson(o);
+            default:
+                o.addProperty("log", String.valueOf(reader.id()));
+                return GSON.toJson(o);
+        }
+    }
+}
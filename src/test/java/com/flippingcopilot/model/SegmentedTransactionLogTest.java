@@ -0,0 +1,177 @@
+package com.flippingcopilot.model;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class SegmentedTransactionLogTest {
+
+    private static final LocalDate START = LocalDate.of(2022, 1, 1);
+
+    private Path dir;
+    private final List<SegmentedTransactionLog> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("segmented-log-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        opened.forEach(SegmentedTransactionLog::close);
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    @Test
+    public void testRotatedMonthlyAndQueriesReadOnlyMatchingSegments() throws IOException {
+        int months = 24;
+        List<Transaction> all = new ArrayList<>();
+        Random random = new Random(1);
+        for (int m = 0; m < months; m++) {
+            long start = epochSecond(START.plusMonths(m));
+            for (int i = 0; i < 2000; i++) {
+                Transaction t = transaction(random, start + i * 1200L);
+                // an item only traded in a few months
+                if (i % 100 == 0 && (m == 3 || m == 10 || m == 17)) {
+                    t.setItemId(999);
+                }
+                all.add(t);
+            }
+        }
+        SegmentedTransactionLog log = open(true);
+        for (int i = 0; i < all.size(); i += 500) {
+            log.append(all.subList(i, i + 500));
+        }
+
+        List<String> files;
+        try (java.util.stream.Stream<Path> list = Files.list(dir)) {
+            files = list.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+        }
+        Assert.assertEquals(months - 1, files.stream().filter(f -> f.endsWith(".seg.gz")).count());
+        Assert.assertEquals(months - 1, files.stream().filter(f -> f.endsWith(".idx")).count());
+        Assert.assertEquals(1, files.stream().filter(f -> f.endsWith(".seg")).count());
+        Assert.assertEquals(ids(all), ids(readAll(log)));
+
+        // a fresh instance reads the indexes from disk
+        SegmentedTransactionLog reopened = open(true);
+        long from = epochSecond(START.plusMonths(5)) + 3600 * 24 * 3;
+        long to = epochSecond(START.plusMonths(6)) + 3600 * 24 * 2;
+        List<Transaction> range = new ArrayList<>();
+        reopened.readRange(from, to, range::add);
+        Assert.assertEquals(ids(filter(all, from, to, -1)), ids(range));
+        // the two months of the range plus the active segment, which has no index yet
+        Assert.assertEquals(3, reopened.segmentsRead());
+
+        List<Transaction> item = new ArrayList<>();
+        reopened.readItem(999, item::add);
+        Assert.assertEquals(ids(filter(all, Long.MIN_VALUE, Long.MAX_VALUE, 999)), ids(item));
+        Assert.assertEquals(3 + 3 + 1, reopened.segmentsRead());
+    }
+
+    @Test
+    public void testRangeSeekWithLateTransactions() {
+        Random random = new Random(2);
+        long start = epochSecond(START);
+        List<Transaction> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // now and then a transaction logged late, with the time of an earlier fill
+            long time = i % 97 == 0 ? start + random.nextInt(Math.max(1, i)) * 300L : start + i * 300L;
+            all.add(transaction(random, time));
+        }
+        all.add(transaction(random, epochSecond(START.plusMonths(1))));
+        SegmentedTransactionLog log = open(false);
+        all.forEach(log::append);
+
+        for (long from = start; from < start + 5000 * 300L; from += 150_000) {
+            List<Transaction> range = new ArrayList<>();
+            log.readRange(from, from + 100_000, range::add);
+            Assert.assertEquals(ids(filter(all, from, from + 100_000, -1)), ids(range));
+        }
+    }
+
+    @Test
+    public void testAppendsOfAnotherClientIndexedAndTornRecordCutOff() throws IOException {
+        Random random = new Random(3);
+        long month = epochSecond(START);
+        SegmentedTransactionLog a = open(true);
+        SegmentedTransactionLog b = open(true);
+        List<Transaction> expected = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            Transaction t = transaction(random, month + i * 60);
+            expected.add(t);
+            (i < 10 ? a : b).append(t);
+        }
+        // a crash while appending leaves a torn record
+        Files.write(dir.resolve(month + ".seg"), Arrays.copyOf(RecordCodec.encode(transaction(random, month)), 11), StandardOpenOption.APPEND);
+        Transaction afterTear = transaction(random, month + 1000);
+        a.append(afterTear);
+        expected.add(afterTear);
+        // b rotates to the next month while a still has the first month's segment open
+        Transaction nextMonth = transaction(random, epochSecond(START.plusMonths(1)));
+        b.append(nextMonth);
+        expected.add(nextMonth);
+        Transaction late = transaction(random, month + 2000);
+        a.append(late);
+        expected.add(late);
+
+        SegmentedTransactionLog c = open(true);
+        Assert.assertEquals(ids(expected), ids(readAll(c)));
+        List<Transaction> firstMonth = new ArrayList<>();
+        c.readRange(month, epochSecond(START.plusMonths(1)), firstMonth::add);
+        Assert.assertEquals(17, firstMonth.size());
+    }
+
+    private SegmentedTransactionLog open(boolean compress) {
+        SegmentedTransactionLog log = new SegmentedTransactionLog(dir.toFile(), compress);
+        opened.add(log);
+        return log;
+    }
+
+    private static List<Transaction> readAll(SegmentedTransactionLog log) {
+        List<Transaction> read = new ArrayList<>();
+        log.readAll(read::add);
+        return read;
+    }
+
+    private static List<Transaction> filter(List<Transaction> transactions, long from, long to, int itemId) {
+        return transactions.stream()
+                .filter(t -> t.getTimestamp().getEpochSecond() >= from && t.getTimestamp().getEpochSecond() < to)
+                .filter(t -> itemId < 0 || t.getItemId() == itemId)
+                .collect(Collectors.toList());
+    }
+
+    private static List<UUID> ids(List<Transaction> transactions) {
+        return transactions.stream().map(Transaction::getId).collect(Collectors.toList());
+    }
+
+    private static long epochSecond(LocalDate date) {
+        return date.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    private static Transaction transaction(Random random, long time) {
+        Transaction t = new Transaction();
+        t.setId(new UUID(random.nextLong(), random.nextLong()));
+        t.setType(random.nextBoolean() ? OfferStatus.BUY : OfferStatus.SELL);
+        t.setItemId(1 + random.nextInt(50));
+        t.setQuantity(1 + random.nextInt(100));
+        t.setPrice(100 + random.nextInt(10_000));
+        t.setAmountSpent(t.getQuantity() * t.getPrice());
+        t.setTimestamp(Instant.ofEpochSecond(time));
+        return t;
+    }
+}
@@ -0,0 +1,94 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.Persistance;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StateSaveSchedulerTest {
+
+    private Path directory;
+    private ScheduledExecutorService executorService;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("state-save-test");
+        Persistance.setUp(directory.toString());
+        executorService = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executorService.shutdownNow();
+        Persistance.closeStateStore();
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    @Test
+    public void testSavesWithinWindowCoalescedAndFlushedOnShutDown() {
+        StateSaveScheduler scheduler = new StateSaveScheduler(executorService);
+        scheduler.setWindowMillis(60_000);
+        AtomicInteger session = new AtomicInteger();
+        AtomicInteger encoded = new AtomicInteger();
+        // an hour of session stats updates, as one every second
+        for (int i = 0; i < 3600; i++) {
+            session.incrementAndGet();
+            scheduler.save("session/a", () -> {
+                encoded.incrementAndGet();
+                return bytes("{\"duration_millis\":" + session.get() * 1000 + "}");
+            });
+        }
+        scheduler.save("offer/1/0", () -> bytes("offer"));
+        scheduler.save("offer/1/0", () -> null);
+        Assert.assertNull(Persistance.stateStore().get("session/a"));
+
+        scheduler.flush();
+        Assert.assertEquals(1, encoded.get());
+        Assert.assertArrayEquals(bytes("{\"duration_millis\":3600000}"), Persistance.stateStore().get("session/a"));
+        Assert.assertNull(Persistance.stateStore().get("offer/1/0"));
+        Assert.assertEquals(3602, scheduler.getSaves());
+        Assert.assertEquals(2, scheduler.getWrites());
+        Assert.assertEquals(3600, scheduler.getCoalesced());
+    }
+
+    @Test
+    public void testWrittenOnceWindowPassed() throws InterruptedException {
+        StateSaveScheduler scheduler = new StateSaveScheduler(executorService);
+        scheduler.setWindowMillis(50);
+        scheduler.save("paused/1", () -> new byte[]{1});
+        scheduler.save("paused/1", () -> new byte[]{0});
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getWrites() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertArrayEquals(new byte[]{0}, Persistance.stateStore().get("paused/1"));
+        Assert.assertEquals(1, scheduler.getWrites());
+
+        // a save after the write starts a new window
+        scheduler.save("paused/1", () -> new byte[]{1});
+        deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getWrites() == 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertArrayEquals(new byte[]{1}, Persistance.stateStore().get("paused/1"));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,142 @@
+package com.flippingcopilot.model;
+
+import net.runelite.api.GrandExchangeOfferState;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+public class StateStoreTest {
+
+    private Path dir;
+    private File file;
+    private final List<StateStore> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("state-store-test");
+        file = dir.resolve("state.bin").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        opened.forEach(StateStore::close);
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    @Test
+    public void testLatestValuesSurviveReopenAndTornRecordCutOff() throws IOException {
+        StateStore store = open();
+        store.put("paused/1", new byte[]{1});
+        store.put("offer/1/0", bytes("first"));
+        store.put("offer/1/0", bytes("second"));
+        store.put("offer/1/1", bytes("gone"));
+        store.remove("offer/1/1");
+        store.close();
+        // a crash while appending leaves a torn record
+        Files.write(file.toPath(), Arrays.copyOf(RecordCodec.encodeEntry("offer/1/2", bytes("torn")), 6), StandardOpenOption.APPEND);
+
+        StateStore reopened = open();
+        Assert.assertArrayEquals(new byte[]{1}, reopened.get("paused/1"));
+        Assert.assertArrayEquals(bytes("second"), reopened.get("offer/1/0"));
+        Assert.assertNull(reopened.get("offer/1/1"));
+        Assert.assertNull(reopened.get("offer/1/2"));
+        reopened.put("offer/1/2", bytes("after tear"));
+
+        Assert.assertArrayEquals(bytes("after tear"), open().get("offer/1/2"));
+    }
+
+    @Test
+    public void testRewrittenOnceMostlyStaleAndSharedBetweenClients() {
+        StateStore a = open();
+        StateStore b = open();
+        b.put("paused/2", new byte[]{0});
+        // some 700KB of records for 5 keys
+        for (int i = 0; i < 20_000; i++) {
+            a.put("session/" + (i % 4), bytes("{\"duration_millis\":" + i + "}"));
+        }
+        Assert.assertTrue(a.logSize() < StateStore.COMPACT_MIN_BYTES);
+        Assert.assertEquals(a.logSize(), file.length());
+
+        // b reads the rewritten log before its own write, so neither loses the other's values
+        b.put("paused/3", new byte[]{1});
+        a.put("paused/4", new byte[]{1});
+        StateStore c = open();
+        Assert.assertArrayEquals(new byte[]{0}, c.get("paused/2"));
+        Assert.assertArrayEquals(new byte[]{1}, c.get("paused/3"));
+        Assert.assertArrayEquals(new byte[]{1}, c.get("paused/4"));
+        Assert.assertArrayEquals(bytes("{\"duration_millis\":19999}"), c.get("session/3"));
+    }
+
+    @Test
+    public void testLegacyFileMigratedOnce() throws IOException {
+        File legacy = dir.resolve("acc_1_paused.json").toFile();
+        Files.write(legacy.toPath(), bytes("{\"isPaused\":true}"));
+        StateStore store = open();
+
+        byte[] value = store.migrate("paused/1", legacy, text -> new byte[]{(byte) (new String(text, StandardCharsets.UTF_8).contains("true") ? 1 : 0)});
+        Assert.assertArrayEquals(new byte[]{1}, value);
+        Assert.assertFalse(legacy.exists());
+        Assert.assertNull(store.migrate("paused/1", legacy, text -> text));
+        Assert.assertArrayEquals(new byte[]{1}, open().get("paused/1"));
+    }
+
+    @Test
+    public void testGeBurstKeepsLatestOfferPerSlot() {
+        List<SavedOffer> offers = geBurst(400);
+        StateStore store = open();
+        for (int i = 0; i < offers.size(); i++) {
+            store.put(String.format("offer/1/%d", i % 8), RecordCodec.encode(offers.get(i)));
+        }
+
+        StateStore reopened = open();
+        for (int slot = 0; slot < 8; slot++) {
+            RecordCodec.Reader reader = new RecordCodec.Reader(ByteBuffer.wrap(reopened.get("offer/1/" + slot)));
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(offers.get(offers.size() - 8 + slot), reader.savedOffer());
+            Assert.assertFalse(reader.next());
+        }
+    }
+
+    // offer updates cycling through the 8 slots, as the fills of a burst of trades
+    static List<SavedOffer> geBurst(int updates) {
+        List<SavedOffer> offers = new ArrayList<>(updates);
+        for (int i = 0; i < updates; i++) {
+            SavedOffer offer = new SavedOffer();
+            offer.setItemId(560 + i % 8);
+            offer.setPrice(200 + i % 8);
+            offer.setTotalQuantity(25_000);
+            offer.setQuantitySold(i / 8);
+            offer.setSpent(i / 8 * 200);
+            offer.setState(GrandExchangeOfferState.BUYING);
+            offers.add(offer);
+        }
+        return offers;
+    }
+
+    private StateStore open() {
+        StateStore store = new StateStore(file);
+        opened.add(store);
+        return store;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,189 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.DoesNothingExecutorService;
+import com.flippingcopilot.controller.Persistance;
+import com.flippingcopilot.util.GeTax;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+
+public class TransactionLogReplayTest {
+
+    private static final String DISPLAY_NAME = "replay-test";
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+            .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, ctx) -> Instant.ofEpochSecond(json.getAsLong()))
+            .create();
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("all-transactions-test");
+        Persistance.setUp(directory.toString());
+        Persistance.gson = gson;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Persistance.closeTransactionLogs();
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesStandInServer() throws IOException {
+        int now = (int) Instant.now().getEpochSecond();
+        List<Transaction> transactions = generateTransactions(now - 3600 * 24 * 200, 20_000, 50, new Random(1));
+        // the older transactions in the single file logs of earlier versions, moved into the segmented log when
+        // the rest is stored
+        int legacy = transactions.size() / 4;
+        writeLegacyLog(transactions.subList(0, legacy));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Persistance.allTransactionsFile(DISPLAY_NAME).toPath()))) {
+            for (Transaction t : transactions.subList(legacy, legacy * 2)) {
+                out.write(RecordCodec.encode(t));
+            }
+        }
+        transactions.subList(legacy * 2, transactions.size()).forEach(t -> Persistance.storeTransaction(t, DISPLAY_NAME));
+        Assert.assertFalse(Persistance.legacyAllTransactionsFile(DISPLAY_NAME).exists());
+        Assert.assertFalse(Persistance.allTransactionsFile(DISPLAY_NAME).exists());
+
+        List<FlipV2> replayed = new ArrayList<>();
+        TransactionLogReplay replay = new TransactionLogReplay(0, replayed::add);
+        Assert.assertEquals(transactions.size(), Persistance.readAllTransactions(DISPLAY_NAME, replay::accept));
+        replay.finish();
+
+        Map<UUID, FlipV2> expected = new HashMap<>();
+        serverFlips(transactions).forEach(f -> expected.put(f.getId(), f));
+        Assert.assertEquals(expected.size(), replayed.size());
+        for (FlipV2 f : replayed) {
+            FlipV2 e = expected.get(f.getId());
+            Assert.assertNotNull(e);
+            Assert.assertEquals(e.getOpenedQuantity(), f.getOpenedQuantity());
+            Assert.assertEquals(e.getClosedQuantity(), f.getClosedQuantity());
+            Assert.assertEquals(e.getSpent(), f.getSpent());
+            Assert.assertEquals(e.getReceivedPostTax(), f.getReceivedPostTax());
+            Assert.assertEquals(e.getProfit(), f.getProfit());
+            Assert.assertEquals(e.getTaxPaid(), f.getTaxPaid());
+            Assert.assertEquals(e.getClosedTime(), f.getClosedTime());
+        }
+
+        // the same log loaded into the week buckets gives the stand-in server's stats
+        FlipManager flipManager = new FlipManager(null, new DoesNothingExecutorService(), new OkHttpClient.Builder().build(), null);
+        Assert.assertTrue(flipManager.loadOfflineFlips(DISPLAY_NAME, 0, 0));
+        Stats stats = new Stats(0, 0, 0, 0);
+        for (FlipV2 f : expected.values()) {
+            stats.add(new Stats(f.getProfit(), f.getSpent(), f.getTaxPaid(), 1));
+        }
+        Assert.assertEquals(stats, flipManager.getIntervalStats());
+        Assert.assertEquals(expected.size(), flipManager.existingCloseTimes.size());
+    }
+
+    @Test
+    public void testLongLogReplayedKeepingOneOpenFlipPerItem() throws IOException {
+        int now = (int) Instant.now().getEpochSecond();
+        int items = 500;
+        Random random = new Random(2);
+        int n = 0;
+        for (int chunk = 0; chunk < 10; chunk++) {
+            List<Transaction> transactions = generateTransactions(now - 3600 * 24 * 1000 + chunk * 3600 * 24 * 10, 10_000, items, random);
+            Persistance.transactionLog(DISPLAY_NAME).append(transactions);
+            n += transactions.size();
+        }
+
+        int[] maxOpen = new int[1];
+        int[] flips = new int[1];
+        TransactionLogReplay replay = new TransactionLogReplay(0, f -> flips[0]++);
+        Persistance.readAllTransactions(DISPLAY_NAME, t -> {
+            replay.accept(t);
+            maxOpen[0] = Math.max(maxOpen[0], replay.openFlipCount());
+        });
+        replay.finish();
+
+        Assert.assertEquals(n, replay.getTransactions());
+        Assert.assertEquals(replay.getFlips(), flips[0]);
+        Assert.assertTrue(maxOpen[0] <= items);
+        Assert.assertEquals(0, replay.openFlipCount());
+    }
+
+    private void writeLegacyLog(List<Transaction> transactions) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(Persistance.legacyAllTransactionsFile(DISPLAY_NAME).toPath())) {
+            for (Transaction t : transactions) {
+                w.write(gson.toJson(t));
+                w.newLine();
+            }
+        }
+    }
+
+    // how the server turns an account's transactions into flips, one open flip per item at a time
+    private static List<FlipV2> serverFlips(List<Transaction> transactions) {
+        Map<Integer, List<Transaction>> byItem = new LinkedHashMap<>();
+        transactions.forEach(t -> byItem.computeIfAbsent(t.getItemId(), k -> new ArrayList<>()).add(t));
+        List<FlipV2> flips = new ArrayList<>();
+        for (List<Transaction> itemTransactions : byItem.values()) {
+            FlipV2 open = null;
+            for (Transaction t : itemTransactions) {
+                if (t.getType() == OfferStatus.BUY) {
+                    if (open == null) {
+                        open = new FlipV2();
+                        open.setId(t.getId());
+                        open.setItemId(t.getItemId());
+                        open.setClosedTime((int) t.getTimestamp().getEpochSecond());
+                        flips.add(open);
+                    }
+                    open.setOpenedQuantity(open.getOpenedQuantity() + t.getQuantity());
+                    open.setSpent(open.getSpent() + t.getAmountSpent());
+                } else if (open != null) {
+                    int q = Math.min(t.getQuantity(), open.getOpenedQuantity() - open.getClosedQuantity());
+                    int price = t.getAmountSpent() / t.getQuantity();
+                    int postTax = GeTax.getPostTaxPrice(t.getItemId(), price);
+                    open.setClosedQuantity(open.getClosedQuantity() + q);
+                    open.setReceivedPostTax(open.getReceivedPostTax() + (long) q * postTax);
+                    open.setTaxPaid(open.getTaxPaid() + (long) q * (price - postTax));
+                    open.setProfit(open.getReceivedPostTax() - open.getSpent() * open.getClosedQuantity() / open.getOpenedQuantity());
+                    open.setClosedTime((int) t.getTimestamp().getEpochSecond());
+                    if (open.getClosedQuantity() == open.getOpenedQuantity()) {
+                        open = null;
+                    }
+                }
+            }
+        }
+        return flips;
+    }
+
+    // random buys and somewhat larger sells of each item so positions open, close and sometimes oversell
+    static List<Transaction> generateTransactions(int start, int n, int items, Random random) {
+        List<Transaction> transactions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Transaction t = new Transaction();
+            t.setId(new UUID(random.nextLong(), random.nextLong()));
+            t.setType(random.nextInt(5) < 3 ? OfferStatus.BUY : OfferStatus.SELL);
+            t.setItemId(1 + random.nextInt(items));
+            t.setQuantity(1 + random.nextInt(t.getType() == OfferStatus.BUY ? 100 : 150));
+            t.setPrice(100 + random.nextInt(10_000));
+            t.setAmountSpent(t.getQuantity() * t.getPrice());
+            t.setTimestamp(Instant.ofEpochSecond(start + i * 60L));
+            transactions.add(t);
+        }
+        return transactions;
+    }
+}
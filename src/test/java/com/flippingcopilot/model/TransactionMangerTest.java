@@ -0,0 +1,338 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.ApiRequestHandler;
+import com.flippingcopilot.controller.DoesNothingExecutorService;
+import com.flippingcopilot.controller.Persistance;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+
+public class TransactionMangerTest {
+
+    private static final String DISPLAY_NAME = "Acc 1";
+    private static final String DISPLAY_NAME_2 = "Acc 2";
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+            .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, ctx) -> Instant.ofEpochSecond(json.getAsLong()))
+            .create();
+    // stand-in server state
+    private final Set<String> received = Collections.synchronizedSet(new HashSet<>());
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> batchBytes = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> failedRequestTimes = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    // requests in flight per display name
+    private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile IntPredicate failBeforeStoring = i -> false;
+    private volatile IntPredicate failAfterStoring = i -> false;
+    private volatile IntFunction<String> acknowledgement = i -> "[]";
+
+    private HttpServer server;
+    private Path directory;
+    private ScheduledExecutorService executor;
+    private TransactionManger transactionManger;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transaction-sync-test");
+        Persistance.setUp(directory.toString());
+        Persistance.gson = gson;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/profit-tracking/client-transactions", this::serveTransactions);
+        server.start();
+
+        OkHttpClient okHttpClient = new OkHttpClient.Builder().build();
+        LoginResponseManager loginResponseManager = new LoginResponseManager(gson, new DoesNothingExecutorService());
+        loginResponseManager.setLoginResponse(new LoginResponse(false, "", "test-jwt", 7));
+        ApiRequestHandler api = new ApiRequestHandler(okHttpClient, gson, loginResponseManager, null, null, new NameInterner(),
+                "http://127.0.0.1:" + server.getAddress().getPort());
+        FlipManager flipManager = new FlipManager(api, new DoesNothingExecutorService(), okHttpClient, loginResponseManager);
+        OsrsLoginManager osrsLoginManager = new OsrsLoginManager(null) {
+            @Override
+            public String getPlayerDisplayName() {
+                return DISPLAY_NAME;
+            }
+        };
+        executor = Executors.newSingleThreadScheduledExecutor();
+        transactionManger = new TransactionManger(flipManager, executor, api, loginResponseManager, osrsLoginManager);
+        transactionManger.retryBaseMillis = 20;
+        transactionManger.retryCapMillis = 400;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.stop(0);
+        Persistance.closeTransactionLogs();
+        try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Test
+    public void testBacklogSentInCappedBatchesThroughErrors() throws Exception {
+        List<Transaction> backlog = storeBacklog(3000);
+        // every third request fails, half of them after the server stored the batch
+        failBeforeStoring = i -> i % 6 == 1;
+        failAfterStoring = i -> i % 6 == 4;
+
+        transactionManger.scheduleSyncIn(0, DISPLAY_NAME);
+        awaitCondition(() -> received.size() == backlog.size() && pendingInCopy().isEmpty());
+
+        Assert.assertEquals(1, maxInFlight.get());
+        Assert.assertFalse(failedRequestTimes.isEmpty());
+        for (int i = 0; i < batchSizes.size(); i++) {
+            Assert.assertTrue(batchSizes.get(i) <= TransactionManger.MAX_BATCH_TRANSACTIONS);
+            Assert.assertTrue(batchBytes.get(i) <= TransactionManger.MAX_BATCH_BYTES);
+        }
+        Assert.assertTrue(batchSizes.size() >= backlog.size() / TransactionManger.MAX_BATCH_TRANSACTIONS);
+    }
+
+    @Test
+    public void testAcknowledgedBatchesSurviveAnOutage() throws Exception {
+        List<Transaction> backlog = storeBacklog(1000);
+        // the server goes down after three batches
+        failBeforeStoring = i -> i >= 3;
+
+        transactionManger.scheduleSyncIn(0, DISPLAY_NAME);
+        awaitCondition(() -> failedRequestTimes.size() >= 6);
+
+        // the retries back off, the gaps grow towards the cap
+        long firstGap = failedRequestTimes.get(1) - failedRequestTimes.get(0);
+        long lastGap = failedRequestTimes.get(5) - failedRequestTimes.get(4);
+        Assert.assertTrue(lastGap > firstGap);
+        // a restart now only has to send what the server didn't acknowledge
+        Assert.assertEquals(backlog.size() - received.size(), pendingInCopy().size());
+        Assert.assertTrue(received.size() > 0);
+
+        failBeforeStoring = i -> false;
+        awaitCondition(() -> received.size() == backlog.size() && pendingInCopy().isEmpty());
+    }
+
+    @Test
+    public void testClientProcessesSharingALogSendEachTransactionOnce() throws Exception {
+        // two clients logged in with the same account name share its log, a third one has its own
+        String[] clientNames = {DISPLAY_NAME, DISPLAY_NAME, DISPLAY_NAME_2};
+        int perClient = 400;
+        List<Process> clients = new ArrayList<>();
+        try {
+            for (String name : clientNames) {
+                clients.add(new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"),
+                        Client.class.getName(), directory.toString(), "http://127.0.0.1:" + server.getAddress().getPort(), name,
+                        String.valueOf(perClient))
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.DISCARD)
+                        .start());
+            }
+            awaitCondition(() -> received.size() == clientNames.length * perClient
+                    && pendingInCopy(DISPLAY_NAME).isEmpty() && pendingInCopy(DISPLAY_NAME_2).isEmpty());
+            // give a stray resend the chance to show up
+            Thread.sleep(300);
+        } finally {
+            clients.forEach(Process::destroy);
+        }
+        Assert.assertEquals(clientNames.length * perClient, received.size());
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(1, maxInFlight.get());
+    }
+
+    @Test
+    public void testOddAcknowledgementsDontStallTheSync() throws Exception {
+        List<Transaction> backlog = storeBacklog(1000);
+        acknowledgement = i -> i == 0 ? "null" : i == 1 ? "[null]" : i == 2 ? "[{\"id\":" : "[]";
+
+        transactionManger.scheduleSyncIn(0, DISPLAY_NAME);
+        awaitCondition(() -> received.size() == backlog.size() && pendingInCopy().isEmpty());
+        Assert.assertEquals(1, maxInFlight.get());
+    }
+
+    @Test
+    public void testRetryDelayBoundedAndJittered() {
+        transactionManger.retryBaseMillis = 1000;
+        transactionManger.retryCapMillis = 60_000;
+        Set<Long> delays = new HashSet<>();
+        for (int failures = 1; failures < 40; failures++) {
+            long expected = Math.min(60_000, 1000L << Math.min(failures - 1, 20));
+            long delay = transactionManger.retryDelayMillis(failures);
+            Assert.assertTrue(delay >= expected / 2 && delay <= expected);
+            delays.add(transactionManger.retryDelayMillis(30));
+        }
+        Assert.assertTrue(delays.size() > 1);
+    }
+
+    private List<Transaction> storeBacklog(int n) {
+        UnAckedTransactionLog log = unAckedLog();
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Transaction t = transaction(i);
+            log.append(t);
+            transactions.add(t);
+        }
+        return transactions;
+    }
+
+    private Transaction transaction(int i) {
+        Transaction t = new Transaction();
+        t.setId(UUID.randomUUID());
+        t.setType(i % 2 == 0 ? OfferStatus.BUY : OfferStatus.SELL);
+        t.setItemId(560 + i % 7);
+        t.setQuantity(1 + i % 13);
+        t.setPrice(1000 + i);
+        t.setAmountSpent(t.getQuantity() * t.getPrice());
+        t.setTimestamp(Instant.ofEpochSecond(1_700_000_000 + i));
+        return t;
+    }
+
+    private UnAckedTransactionLog unAckedLog() {
+        return UnAckedTransactionLog.load(Persistance.unAckedTransactionsFile(DISPLAY_NAME), gson);
+    }
+
+    private List<Transaction> pendingInCopy() throws IOException {
+        return pendingInCopy(DISPLAY_NAME);
+    }
+
+    // loads a copy so that polling never compacts the file the manager is appending to
+    private List<Transaction> pendingInCopy(String displayName) throws IOException {
+        Path copy = directory.resolve("copy.bin");
+        Files.copy(Persistance.unAckedTransactionsFile(displayName).toPath(), copy, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        try {
+            return UnAckedTransactionLog.load(copy.toFile(), gson).pending();
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    private void serveTransactions(HttpExchange ex) throws IOException {
+        AtomicInteger nameInFlight = inFlight.computeIfAbsent(ex.getRequestURI().getQuery(), k -> new AtomicInteger());
+        maxInFlight.accumulateAndGet(nameInFlight.incrementAndGet(), Math::max);
+        try {
+            int i = requests.getAndIncrement();
+            byte[] body = ex.getRequestBody().readAllBytes();
+            Thread.sleep(new Random(i).nextInt(30));
+            if (failBeforeStoring.test(i)) {
+                failedRequestTimes.add(System.currentTimeMillis());
+                respond(ex, 503, "{\"message\":\"unavailable\"}");
+                return;
+            }
+            JsonArray batch = gson.fromJson(new String(body, StandardCharsets.UTF_8), JsonArray.class);
+            batchSizes.add(batch.size());
+            batchBytes.add(body.length);
+            Set<String> ids = new HashSet<>();
+            for (JsonElement e : batch) {
+                ids.add(e.getAsJsonObject().get("id").getAsString());
+            }
+            if (failAfterStoring.test(i)) {
+                // stored, but the response is lost
+                received.addAll(ids);
+                failedRequestTimes.add(System.currentTimeMillis());
+                respond(ex, 500, "{\"message\":\"internal error\"}");
+                return;
+            }
+            for (String id : ids) {
+                if (!received.add(id)) {
+                    duplicates.incrementAndGet();
+                }
+            }
+            respond(ex, 200, acknowledgement.apply(i));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            nameInFlight.decrementAndGet();
+        }
+    }
+
+    private static void respond(HttpExchange ex, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static void awaitCondition(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!condition.holds()) {
+            Assert.assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    /**
+     * A client process adding transactions while its manager syncs them, for the shared log test.
+     */
+    public static class Client {
+
+        public static void main(String[] args) throws Exception {
+            String displayName = args[2];
+            int n = Integer.parseInt(args[3]);
+            TransactionMangerTest test = new TransactionMangerTest();
+            Persistance.setUp(args[0]);
+            Persistance.gson = test.gson;
+            OkHttpClient okHttpClient = new OkHttpClient.Builder().build();
+            LoginResponseManager loginResponseManager = new LoginResponseManager(test.gson, new DoesNothingExecutorService());
+            loginResponseManager.setLoginResponse(new LoginResponse(false, "", "test-jwt", 7));
+            ApiRequestHandler api = new ApiRequestHandler(okHttpClient, test.gson, loginResponseManager, null, null, new NameInterner(), args[1]);
+            FlipManager flipManager = new FlipManager(api, new DoesNothingExecutorService(), okHttpClient, loginResponseManager);
+            OsrsLoginManager osrsLoginManager = new OsrsLoginManager(null) {
+                @Override
+                public String getPlayerDisplayName() {
+                    return displayName;
+                }
+            };
+            TransactionManger transactionManger = new TransactionManger(flipManager, Executors.newSingleThreadScheduledExecutor(),
+                    api, loginResponseManager, osrsLoginManager);
+            transactionManger.retryBaseMillis = 20;
+            transactionManger.retryCapMillis = 200;
+            transactionManger.leaseRetryMillis = 20;
+            Random random = new Random();
+            for (int i = 0; i < n; i++) {
+                Transaction t = test.transaction(i);
+                transactionManger.addTransaction(t, displayName);
+                // a retried fill is recorded only once
+                if (i % 10 == 0) {
+                    transactionManger.addTransaction(t, displayName);
+                }
+                Thread.sleep(random.nextInt(3));
+            }
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
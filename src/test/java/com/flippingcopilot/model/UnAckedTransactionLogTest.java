@@ -0,0 +1,163 @@
+package com.flippingcopilot.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class UnAckedTransactionLogTest {
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, (JsonSerializer<Instant>) (src, type, ctx) -> new JsonPrimitive(src.getEpochSecond()))
+            .registerTypeAdapter(Instant.class, (JsonDeserializer<Instant>) (json, type, ctx) -> Instant.ofEpochSecond(json.getAsLong()))
+            .create();
+    private Path file;
+    private Path legacyFile;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("un-acked-test", ".bin");
+        Files.delete(file);
+        legacyFile = file.resolveSibling(file.getFileName() + ".jsonl");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(legacyFile);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".lock"));
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".send.lock"));
+    }
+
+    @Test
+    public void testPendingRebuiltAfterCrash() throws IOException {
+        UnAckedTransactionLog log = UnAckedTransactionLog.load(file.toFile(), gson);
+        List<Transaction> added = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Transaction t = transaction(i);
+            added.add(t);
+            log.append(t);
+        }
+        log.ack(added.subList(0, 30));
+        log.ack(added.subList(50, 60));
+        // a crash while appending leaves a torn last record
+        Files.write(file, Arrays.copyOf(RecordCodec.encode(transaction(1000)), 12), StandardOpenOption.APPEND);
+
+        UnAckedTransactionLog recovered = UnAckedTransactionLog.load(file.toFile(), gson);
+        List<Transaction> expected = new ArrayList<>(added.subList(30, 50));
+        expected.addAll(added.subList(60, 100));
+        Assert.assertEquals(ids(expected), ids(recovered.pending()));
+
+        // the torn record was dropped so new records still load
+        Transaction t = transaction(100);
+        recovered.append(t);
+        expected.add(t);
+        Assert.assertEquals(ids(expected), ids(UnAckedTransactionLog.load(file.toFile(), gson).pending()));
+    }
+
+    @Test
+    public void testLegacyFileImportedAsPending() throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(legacyFile.toFile()))) {
+            w.write("{\"log\":\"" + UUID.randomUUID() + "\"}");
+            w.newLine();
+            for (int i = 0; i < 10; i++) {
+                Transaction t = transaction(i);
+                transactions.add(t);
+                w.write(gson.toJson(t));
+                w.newLine();
+            }
+            w.write("{\"ack\":\"" + transactions.get(3).getId() + "\"}");
+            w.newLine();
+        }
+        transactions.remove(3);
+        UnAckedTransactionLog log = UnAckedTransactionLog.load(file.toFile(), legacyFile.toFile(), gson);
+        Assert.assertEquals(ids(transactions), ids(log.pending()));
+        Assert.assertFalse(Files.exists(legacyFile));
+        Assert.assertEquals(ids(transactions), ids(UnAckedTransactionLog.load(file.toFile(), gson).pending()));
+    }
+
+    @Test
+    public void testAcknowledgedRecordsCompacted() {
+        UnAckedTransactionLog log = UnAckedTransactionLog.load(file.toFile(), gson);
+        List<Transaction> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Transaction t = transaction(i);
+            added.add(t);
+            log.append(t);
+            if (added.size() == 10) {
+                log.ack(added);
+                added.clear();
+            }
+        }
+        Assert.assertTrue(log.isEmpty());
+        Assert.assertTrue(log.records() < UnAckedTransactionLog.COMPACT_MIN_RECORDS);
+        Assert.assertTrue(UnAckedTransactionLog.load(file.toFile(), gson).isEmpty());
+    }
+
+    @Test
+    public void testUnlockableLogStillAppendsOnceAndSeesOtherClients() throws IOException {
+        // a directory in place of the lock file can't be opened, so each operation runs unlocked
+        Files.createDirectory(file.resolveSibling(file.getFileName() + ".lock"));
+        UnAckedTransactionLog a = UnAckedTransactionLog.load(file.toFile(), gson);
+        UnAckedTransactionLog b = UnAckedTransactionLog.load(file.toFile(), gson);
+        Transaction first = transaction(1);
+        Transaction second = transaction(2);
+
+        Assert.assertTrue(a.append(first));
+        Assert.assertEquals(ids(Collections.singletonList(first)), ids(b.pending()));
+        Assert.assertFalse(b.append(first));
+        Assert.assertTrue(b.append(second));
+        Assert.assertEquals(ids(Arrays.asList(first, second)), ids(a.pending()));
+        Assert.assertEquals(2, a.records());
+    }
+
+    @Test
+    public void testAppendOnlyWritesItsRecordAsBacklogGrows() throws IOException {
+        int backlog = 10_000;
+        UnAckedTransactionLog log = UnAckedTransactionLog.load(file.toFile(), gson);
+        List<Transaction> all = new ArrayList<>();
+        long size = 0;
+        for (int i = 0; i < backlog; i++) {
+            Transaction t = transaction(i);
+            all.add(t);
+            log.append(t);
+            // a fill used to rewrite the whole backlog, now the file grows by the one record
+            long grown = Files.size(file) - size;
+            Assert.assertTrue(grown > 0 && grown < 100);
+            size += grown;
+        }
+        Assert.assertEquals(ids(all), ids(UnAckedTransactionLog.load(file.toFile(), gson).pending()));
+    }
+
+    private static List<UUID> ids(List<Transaction> transactions) {
+        return transactions.stream().map(Transaction::getId).collect(Collectors.toList());
+    }
+
+    static Transaction transaction(int i) {
+        Transaction t = new Transaction();
+        t.setId(UUID.randomUUID());
+        t.setType(i % 2 == 0 ? OfferStatus.BUY : OfferStatus.SELL);
+        t.setItemId(560 + i % 7);
+        t.setQuantity(1 + i % 13);
+        t.setPrice(1000 + i);
+        t.setAmountSpent(t.getQuantity() * t.getPrice());
+        t.setTimestamp(Instant.ofEpochSecond(1_700_000_000 + i));
+        return t;
+    }
+}
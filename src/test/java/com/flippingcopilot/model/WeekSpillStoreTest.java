@@ -0,0 +1,122 @@
+package com.flippingcopilot.model;
+
+import com.flippingcopilot.controller.Persistance;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class WeekSpillStoreTest {
+
+    @Test
+    public void testSegmentsSurviveCompaction() throws Exception {
+        Path file = Files.createTempFile("week-spill-test", ".seg");
+        try (WeekSpillStore store = new WeekSpillStore(file)) {
+            List<Map<Integer, FlipColumns>> weeks = new ArrayList<>();
+            List<WeekSpillStore.Segment> segments = new ArrayList<>();
+            for (int w = 0; w < 40; w++) {
+                Map<Integer, FlipColumns> week = new HashMap<>();
+                for (int accountId = 0; accountId < 2; accountId++) {
+                    FlipColumns c = new FlipColumns(accountId);
+                    for (int i = 0; i < 500; i++) {
+                        FlipV2 f = new FlipV2();
+                        f.setId(UUID.randomUUID());
+                        f.setAccountId(accountId);
+                        f.setItemId(i);
+                        f.setClosedTime(w * 1000 + i);
+                        f.setProfit(w * i);
+                        c.append(f);
+                    }
+                    week.put(accountId, c);
+                }
+                weeks.add(week);
+                segments.add(store.write(week));
+            }
+            long written = store.fileBytes();
+
+            // release three quarters of the weeks, compaction then keeps only the rest
+            for (int w = 0; w < 40; w++) {
+                if (w % 4 != 0) {
+                    store.release(segments.get(w));
+                }
+            }
+            store.compactIfWasteful();
+            Assert.assertEquals(written / 4, store.fileBytes());
+            Assert.assertEquals(written / 4, Files.size(file));
+
+            for (int w = 0; w < 40; w += 4) {
+                Map<Integer, FlipColumns> loaded = w % 8 == 0 ? store.load(segments.get(w)) : store.take(segments.get(w));
+                for (FlipColumns expected : weeks.get(w).values()) {
+                    FlipColumns actual = loaded.get(expected.accountId);
+                    Assert.assertEquals(expected.size(), actual.size());
+                    for (int i = 0; i < expected.size(); i++) {
+                        Assert.assertEquals(expected.get(i, id -> null), actual.get(i, id -> null));
+                    }
+                }
+            }
+            Assert.assertTrue(store.loadedWeeks() <= WeekSpillStore.CACHED_WEEKS);
+        }
+        Assert.assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testClientsSpillToFilesOfTheirOwn() throws Exception {
+        Path directory = Files.createTempDirectory("week-spill-test");
+        Persistance.setUp(directory.toString());
+        File first = Persistance.createFlipSpillFile(7);
+        File second = Persistance.createFlipSpillFile(7);
+        Assert.assertNotEquals(first, second);
+        Map<Integer, FlipColumns> week = week(0, 100);
+        try (WeekSpillStore a = new WeekSpillStore(first.toPath()); WeekSpillStore b = new WeekSpillStore(second.toPath())) {
+            WeekSpillStore.Segment segment = a.write(week);
+            b.write(week(1, 300));
+            // opening another client's store truncates nothing of this one's
+            new WeekSpillStore(Persistance.createFlipSpillFile(7).toPath()).close();
+            Assert.assertEquals(100, a.load(segment).get(0).size());
+        }
+        Assert.assertFalse(first.exists());
+        Assert.assertFalse(second.exists());
+        Files.delete(Persistance.directory.toPath().resolve("login-response.json"));
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testCorruptCountsRejected() throws Exception {
+        Path file = Files.createTempFile("week-spill-test", ".seg");
+        try (WeekSpillStore store = new WeekSpillStore(file)) {
+            WeekSpillStore.Segment segment = store.write(week(0, 100));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, -1), 0);
+            }
+            try {
+                store.load(segment);
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains("account count -1"));
+            }
+        }
+    }
+
+    private static Map<Integer, FlipColumns> week(int accountId, int n) {
+        FlipColumns c = new FlipColumns(accountId);
+        for (int i = 0; i < n; i++) {
+            FlipV2 f = new FlipV2();
+            f.setId(UUID.randomUUID());
+            f.setAccountId(accountId);
+            f.setItemId(i);
+            f.setClosedTime(1000 + i);
+            c.append(f);
+        }
+        Map<Integer, FlipColumns> week = new HashMap<>();
+        week.put(accountId, c);
+        return week;
+    }
+}